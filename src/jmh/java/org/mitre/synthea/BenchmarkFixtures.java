@@ -0,0 +1,86 @@
+package org.mitre.synthea;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+import org.mitre.synthea.engine.Generator;
+import org.mitre.synthea.engine.Generator.GeneratorOptions;
+import org.mitre.synthea.helpers.Config;
+import org.mitre.synthea.world.agents.Person;
+
+/**
+ * Fixture persons shared by the benchmarks. They are simulated once per JMH fork from fixed
+ * seeds and a fixed end time, so every benchmark run (and every release) measures the same
+ * records. Nothing is written to the usual output folder: the exporters are switched off while
+ * the fixtures are simulated, and the base directory is a temporary folder.
+ */
+public abstract class BenchmarkFixtures {
+  /** Seed of the fixture population, and of its clinicians. */
+  public static final long SEED = 20230101L;
+  /** End of the simulation of the fixture persons: 2023-01-01T00:00:00Z. */
+  public static final long TIME =
+      LocalDateTime.of(2023, 1, 1, 0, 0).toInstant(ZoneOffset.UTC).toEpochMilli();
+  /** Number of fixture persons. */
+  public static final int COUNT = 10;
+  /** State the fixture persons live in. */
+  public static final String STATE = "Massachusetts";
+
+  private static Generator generator;
+  private static Person[] people;
+
+  /**
+   * Get a Generator for the fixture population. The first call also loads the providers,
+   * payers and modules.
+   * @return the generator.
+   */
+  public static synchronized Generator generator() {
+    if (generator == null) {
+      exportOff();
+      GeneratorOptions options = new GeneratorOptions();
+      options.population = COUNT;
+      options.seed = SEED;
+      options.clinicianSeed = SEED;
+      options.referenceTime = TIME;
+      options.endTime = TIME;
+      options.state = STATE;
+      options.overflow = false;
+      generator = new Generator(options);
+    }
+    return generator;
+  }
+
+  /**
+   * Get the fixture persons, simulating them on the first call.
+   * @return the fixture persons, alive at TIME.
+   */
+  public static synchronized Person[] people() {
+    if (people == null) {
+      Generator generator = generator();
+      people = new Person[COUNT];
+      for (int i = 0; i < COUNT; i++) {
+        people[i] = generator.generatePerson(i, SEED + i);
+      }
+    }
+    return people;
+  }
+
+  /**
+   * Switch off the exporters that are on by default, and send any output to a temporary folder.
+   */
+  private static void exportOff() {
+    try {
+      Config.set("exporter.baseDirectory",
+          Files.createTempDirectory("synthea-jmh").toString());
+    } catch (IOException e) {
+      throw new RuntimeException("Couldn't create a temporary output folder", e);
+    }
+    Config.set("exporter.metadata.export", "false");
+    Config.set("exporter.fhir.export", "false");
+    Config.set("exporter.hospital.fhir.export", "false");
+    Config.set("exporter.practitioner.fhir.export", "false");
+    Config.set("exporter.cost_access_outcomes_report", "false");
+    Config.set("generate.terminology_service_url", "");
+  }
+}
@@ -0,0 +1,389 @@
+package org.mitre.synthea;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import org.mitre.synthea.engine.Generator;
+import org.mitre.synthea.engine.Generator.GeneratorOptions;
+import org.mitre.synthea.helpers.Config;
+
+/**
+ * End-to-end throughput regression check. Generates a fixed-seed population with a chosen mix
+ * of exporters, records its throughput, bytes written per format, peak heap and RSS, and
+ * allocation rate, and compares them against a checked-in baseline. Each metric of the baseline
+ * has a tolerance, as a fraction of its value, and a direction: "higher" (a drop is a
+ * regression), "lower" (a rise is a regression) or "both". The process exits with status 1 if
+ * any metric regressed, or has no baseline value to compare against.
+ *
+ * <p>The run is described by the baseline (population, seed, state and exporters), so the same
+ * population is compared every time. Timings depend on the machine, so the baseline should be
+ * recorded, with --update, on the machine that runs the check. The baseline file is only ever
+ * written with --update.
+ *
+ * <p>Run with: ./gradlew perfRun, optionally passing options, ex. -Pperf="['-p', '1000']"
+ */
+public class PerformanceRun {
+  /** Default tolerance of a metric that is not yet in the baseline. */
+  private static final double DEFAULT_TOLERANCE = 0.10;
+  /** Interval between samples of the heap, RSS and thread allocations, in milliseconds. */
+  private static final long SAMPLE_INTERVAL = 100L;
+
+  private final Map<Long, Long> threadAllocations = new HashMap<Long, Long>();
+  private long peakHeap = 0L;
+  private long peakRss = 0L;
+
+  /**
+   * Display usage info.
+   */
+  public static void usage() {
+    System.out.println("Usage: perfRun [-p populationSize] [-s seed] [-x exporter,exporter]");
+    System.out.println("               [-b baselinePath] [-o resultsPath] [--update] [state]");
+    System.out.println("Defaults for the population, seed, exporters and state are read from"
+        + " the baseline.");
+    System.out.println("--update records the results as the new baseline, keeping the"
+        + " tolerances.");
+  }
+
+  /**
+   * Run the population described by the baseline and compare the results against it.
+   * @param args See usage().
+   * @throws Exception On errors.
+   */
+  public static void main(String[] args) throws Exception {
+    Path baselinePath = Paths.get("src/jmh/resources/perf_baseline.json");
+    Path resultsPath = Paths.get("build/reports/perf/results.json");
+    boolean update = false;
+    Map<String, String> overrides = new HashMap<String, String>();
+
+    Queue<String> argsQ = new LinkedList<String>(Arrays.asList(args));
+    while (!argsQ.isEmpty()) {
+      String arg = argsQ.poll();
+      if (arg.equals("-p")) {
+        overrides.put("population", argsQ.poll());
+      } else if (arg.equals("-s")) {
+        overrides.put("seed", argsQ.poll());
+      } else if (arg.equals("-x")) {
+        overrides.put("exporters", argsQ.poll());
+      } else if (arg.equals("-b")) {
+        baselinePath = Paths.get(argsQ.poll());
+      } else if (arg.equals("-o")) {
+        resultsPath = Paths.get(argsQ.poll());
+      } else if (arg.equals("--update")) {
+        update = true;
+      } else if (arg.startsWith("-")) {
+        usage();
+        System.exit(2);
+      } else {
+        overrides.put("state", arg);
+      }
+    }
+
+    JsonObject baseline = JsonParser.parseString(
+        new String(Files.readAllBytes(baselinePath), StandardCharsets.UTF_8)).getAsJsonObject();
+    JsonObject run = baseline.getAsJsonObject("run");
+    boolean comparable = true;
+    for (Map.Entry<String, String> override : overrides.entrySet()) {
+      JsonElement value = run.get(override.getKey());
+      if (value == null || !value.getAsString().equals(override.getValue())) {
+        comparable = false;
+      }
+      run.addProperty(override.getKey(), override.getValue());
+    }
+
+    Map<String, Double> results = new PerformanceRun().execute(run.get("population").getAsInt(),
+        run.get("seed").getAsLong(), run.get("state").getAsString(),
+        run.get("exporters").getAsString());
+
+    JsonObject metrics = baseline.getAsJsonObject("metrics");
+    boolean regressed = false;
+    if (comparable && !update) {
+      regressed = compare(metrics, results);
+    } else if (!update) {
+      System.out.println("The run differs from the baseline, so the results are not compared.");
+    }
+
+    Gson gson = new GsonBuilder().setPrettyPrinting().serializeNulls().create();
+    JsonObject output = new JsonObject();
+    output.add("run", run);
+    output.add("metrics", gson.toJsonTree(results));
+    resultsPath.toAbsolutePath().getParent().toFile().mkdirs();
+    Files.write(resultsPath, gson.toJson(output).getBytes(StandardCharsets.UTF_8));
+    System.out.println("Results written to " + resultsPath);
+
+    if (update) {
+      for (Map.Entry<String, JsonElement> metric : metrics.entrySet()) {
+        if (!results.containsKey(metric.getKey())) {
+          metric.getValue().getAsJsonObject().add("value", JsonNull.INSTANCE);
+        }
+      }
+      for (Map.Entry<String, Double> result : results.entrySet()) {
+        JsonObject metric = metrics.getAsJsonObject(result.getKey());
+        if (metric == null) {
+          metric = new JsonObject();
+          metric.addProperty("tolerance", DEFAULT_TOLERANCE);
+          metric.addProperty("direction", defaultDirection(result.getKey()));
+          metrics.add(result.getKey(), metric);
+        }
+        metric.addProperty("value", result.getValue());
+      }
+      Files.write(baselinePath, gson.toJson(baseline).getBytes(StandardCharsets.UTF_8));
+      System.out.println("Baseline updated: " + baselinePath);
+    } else if (regressed) {
+      System.exit(1);
+    }
+    System.exit(0);
+  }
+
+  /**
+   * Compare the results against the baseline metrics, printing a line per metric.
+   * @param metrics The baseline metrics, by name.
+   * @param results The results, by name.
+   * @return true if any metric regressed beyond its tolerance, or has no baseline value.
+   */
+  static boolean compare(JsonObject metrics, Map<String, Double> results) {
+    boolean regressed = false;
+    System.out.printf("%-40s %16s %16s %9s\n", "metric", "baseline", "result", "change");
+    for (Map.Entry<String, Double> result : results.entrySet()) {
+      String name = result.getKey();
+      double value = result.getValue();
+      JsonObject metric = metrics.getAsJsonObject(name);
+      JsonElement expected = metric == null ? null : metric.get("value");
+      if (expected == null || expected.isJsonNull()) {
+        System.out.printf("%-40s %16s %16.1f %9s %s\n", name, "-", value, "", "NO BASELINE");
+        regressed = true;
+        continue;
+      }
+      double base = expected.getAsDouble();
+      double tolerance = metric.has("tolerance")
+          ? metric.get("tolerance").getAsDouble() : DEFAULT_TOLERANCE;
+      String direction = metric.has("direction")
+          ? metric.get("direction").getAsString() : defaultDirection(name);
+      double change = base == 0.0 ? (value == 0.0 ? 0.0 : 1.0) : (value - base) / base;
+      boolean failed = (change < -tolerance && !direction.equals("lower"))
+          || (change > tolerance && !direction.equals("higher"));
+      regressed |= failed;
+      System.out.printf("%-40s %16.1f %16.1f %+8.1f%% %s\n", name, base, value, change * 100,
+          failed ? "REGRESSION" : "");
+    }
+    if (regressed) {
+      System.out.println("Metrics marked NO BASELINE must be recorded with --update.");
+    }
+    return regressed;
+  }
+
+  /**
+   * Get the direction a new metric is allowed to move in: throughput may rise, the size of the
+   * output should not change, and everything else may fall.
+   */
+  private static String defaultDirection(String name) {
+    if (name.equals("persons_per_second")) {
+      return "higher";
+    } else if (name.startsWith("bytes.")) {
+      return "both";
+    }
+    return "lower";
+  }
+
+  /**
+   * Generate the population into a temporary folder and measure it. The folder is deleted
+   * afterwards.
+   * @param population Number of persons to generate.
+   * @param seed Seed of the population and its clinicians.
+   * @param state State the population lives in.
+   * @param exporters Comma separated exporters to enable, by their configuration name,
+   *     ex. "fhir,csv" for exporter.fhir.export and exporter.csv.export.
+   * @return the metrics, by name.
+   * @throws IOException if the output could not be measured.
+   */
+  Map<String, Double> execute(int population, long seed, String state, String exporters)
+      throws IOException {
+    Path output = Files.createTempDirectory("synthea-perf");
+    try {
+      return measure(output, population, seed, state, exporters);
+    } finally {
+      delete(output);
+    }
+  }
+
+  private Map<String, Double> measure(Path output, int population, long seed, String state,
+      String exporters) throws IOException {
+    Config.set("exporter.baseDirectory", output.toString());
+    Config.set("generate.log_patients.detail", "none");
+    Config.set("generate.terminology_service_url", "");
+    Config.set("exporter.metadata.export", "false");
+    Config.set("exporter.fhir.export", "false");
+    Config.set("exporter.hospital.fhir.export", "false");
+    Config.set("exporter.practitioner.fhir.export", "false");
+    Config.set("exporter.cost_access_outcomes_report", "false");
+    for (String exporter : exporters.split(",")) {
+      if (!exporter.trim().isEmpty()) {
+        Config.set("exporter." + exporter.trim() + ".export", "true");
+      }
+    }
+
+    GeneratorOptions options = new GeneratorOptions();
+    options.population = population;
+    options.seed = seed;
+    options.clinicianSeed = seed;
+    options.referenceTime = BenchmarkFixtures.TIME;
+    options.endTime = BenchmarkFixtures.TIME;
+    options.state = state;
+
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      pool.resetPeakUsage();
+    }
+    Thread sampler = new Thread(() -> {
+      while (!Thread.currentThread().isInterrupted()) {
+        sample();
+        try {
+          Thread.sleep(SAMPLE_INTERVAL);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }, "perf-sampler");
+    sampler.setDaemon(true);
+    sampler.start();
+
+    long start = System.nanoTime();
+    Generator generator = new Generator(options);
+    generator.run();
+    double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+
+    sampler.interrupt();
+    sample();
+
+    Map<String, Double> results = new TreeMap<String, Double>();
+    results.put("seconds", seconds);
+    results.put("persons_per_second", population / seconds);
+    results.put("peak_heap_bytes", (double) peakHeap);
+    if (peakRss > 0L) {
+      results.put("peak_rss_bytes", (double) peakRss);
+    }
+    long allocated = allocatedBytes();
+    if (allocated > 0L) {
+      results.put("allocated_bytes_per_person", (double) allocated / population);
+      results.put("allocation_rate_bytes_per_second", allocated / seconds);
+    }
+    long total = 0L;
+    File[] formats = output.toFile().listFiles();
+    if (formats != null) {
+      for (File format : formats) {
+        long bytes = size(format.toPath());
+        results.put("bytes." + format.getName(), (double) bytes);
+        total += bytes;
+      }
+    }
+    results.put("bytes.total", (double) total);
+    return results;
+  }
+
+  /**
+   * Record the heap in use, the RSS of the process, and the bytes allocated by each live thread.
+   */
+  private synchronized void sample() {
+    long heap = 0L;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        MemoryUsage usage = pool.getPeakUsage();
+        heap += usage == null ? 0L : usage.getUsed();
+      }
+    }
+    peakHeap = Math.max(peakHeap, heap);
+    peakRss = Math.max(peakRss, readPeakRss());
+
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threads;
+      if (bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled()) {
+        long[] ids = bean.getAllThreadIds();
+        long[] bytes = bean.getThreadAllocatedBytes(ids);
+        for (int i = 0; i < ids.length; i++) {
+          if (bytes[i] > 0L) {
+            threadAllocations.merge(ids[i], bytes[i], Math::max);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Get the bytes allocated by every thread sampled so far. Allocations of a thread after its
+   * last sample are missed, so this is a lower bound, but the generator threads live for the
+   * whole run.
+   */
+  private synchronized long allocatedBytes() {
+    long total = 0L;
+    for (long bytes : threadAllocations.values()) {
+      total += bytes;
+    }
+    return total;
+  }
+
+  /**
+   * Read the peak resident set size of this process, where the operating system reports it.
+   * @return the peak RSS in bytes, or 0 if it is not available.
+   */
+  private static long readPeakRss() {
+    File status = new File("/proc/self/status");
+    if (!status.exists()) {
+      return 0L;
+    }
+    try {
+      List<String> lines = Files.readAllLines(status.toPath(), StandardCharsets.UTF_8);
+      for (String line : lines) {
+        if (line.startsWith("VmHWM:")) {
+          // ex. "VmHWM:     123456 kB"
+          String[] fields = line.trim().split("\\s+");
+          return Long.parseLong(fields[1]) * 1024L;
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      // not available on this platform
+    }
+    return 0L;
+  }
+
+  /**
+   * Delete the given folder and everything under it.
+   */
+  private static void delete(Path path) throws IOException {
+    try (Stream<Path> files = Files.walk(path)) {
+      files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+    }
+  }
+
+  /**
+   * Get the total size of the files under the given path.
+   */
+  private static long size(Path path) throws IOException {
+    try (Stream<Path> files = Files.walk(path)) {
+      return files.filter(Files::isRegularFile).mapToLong(p -> p.toFile().length()).sum();
+    }
+  }
+}
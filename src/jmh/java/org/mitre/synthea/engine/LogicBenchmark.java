@@ -0,0 +1,109 @@
+package org.mitre.synthea.engine;
+
+import com.google.gson.Gson;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.mitre.synthea.helpers.Utilities;
+import org.mitre.synthea.world.agents.Person;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the evaluation of a typical Guard condition: an And of an Or and several leaf
+ * conditions. "streams" evaluates the same tree the way Logic trees were evaluated before they
+ * were compiled: And and Or stream over their list of conditions, and Attribute looks up the
+ * attribute by name. "compiled" evaluates the compiled tree.
+ *
+ * <p>Run with: ./gradlew jmh -Pjmh="['LogicBenchmark', '-prof', 'gc']"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogicBenchmark {
+  private static final String[] CHILDREN = {
+      "{\"condition_type\": \"Gender\", \"gender\": \"F\"}",
+      "{\"condition_type\": \"Age\", \"operator\": \">=\", \"quantity\": 18, \"unit\": \"years\"}",
+      "{\"condition_type\": \"Or\", \"conditions\": ["
+          + "{\"condition_type\": \"Attribute\", \"attribute\": \"smoker\","
+          + " \"operator\": \"==\", \"value\": false},"
+          + "{\"condition_type\": \"Attribute\", \"attribute\": \"alcoholic\","
+          + " \"operator\": \"==\", \"value\": false}]}",
+      "{\"condition_type\": \"Attribute\", \"attribute\": \"diabetes_severity\","
+          + " \"operator\": \"<\", \"value\": 3}"
+  };
+
+  /** A condition evaluated the way Logic was before it was compiled. */
+  private interface Uncompiled {
+    boolean test(Person person, long time);
+  }
+
+  private Person person;
+  private long time;
+  private Logic compiled;
+  private Uncompiled streams;
+
+  private static Uncompiled and(Uncompiled... conditions) {
+    List<Uncompiled> list = Arrays.asList(conditions);
+    return (person, time) -> list.stream().allMatch(c -> c.test(person, time));
+  }
+
+  private static Uncompiled or(Uncompiled... conditions) {
+    List<Uncompiled> list = Arrays.asList(conditions);
+    return (person, time) -> list.stream().anyMatch(c -> c.test(person, time));
+  }
+
+  private static Uncompiled attribute(String attribute, String operator, Object value) {
+    return (person, time) ->
+        Utilities.compare(person.attributes.get(attribute), value, operator);
+  }
+
+  /**
+   * Create the person and load the condition under test.
+   */
+  @Setup
+  public void setup() {
+    time = System.currentTimeMillis();
+    person = new Person(0L);
+    person.attributes.put(Person.GENDER, "F");
+    person.attributes.put(Person.BIRTHDATE, time - Utilities.convertTime("years", 35));
+    person.attributes.put("smoker", false);
+    person.attributes.put("alcoholic", true);
+    person.attributes.put("diabetes_severity", 1);
+
+    Gson gson = Utilities.getGson();
+    compiled = gson.fromJson("{\"condition_type\": \"And\", \"conditions\": ["
+        + String.join(",", CHILDREN) + "]}", Logic.class);
+    compiled.compile();
+    // Gender and Age were not changed by compiling
+    Logic gender = gson.fromJson(CHILDREN[0], Logic.class);
+    Logic age = gson.fromJson(CHILDREN[1], Logic.class);
+    // Gson reads the numbers in the JSON as doubles
+    streams = and(gender::test, age::test,
+        or(attribute("smoker", "==", false), attribute("alcoholic", "==", false)),
+        attribute("diabetes_severity", "<", 3.0));
+  }
+
+  @Benchmark
+  public boolean streams() {
+    return streams.test(person, time);
+  }
+
+  @Benchmark
+  public boolean compiled() {
+    return compiled.test(person, time);
+  }
+}
@@ -0,0 +1,51 @@
+package org.mitre.synthea.engine;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mitre.synthea.BenchmarkFixtures;
+import org.mitre.synthea.world.agents.Person;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures following a lookup table transition: the ACE/ARB ingredient table, keyed by age,
+ * gender and state, with fifteen possible destinations. Each invocation looks up the next
+ * fixture person.
+ *
+ * <p>Run with: ./gradlew jmh -Pjmh="['LookupTableTransitionBenchmark', '-prof', 'gc']"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LookupTableTransitionBenchmark {
+  private Transition transition;
+  private Person[] people;
+  private int index;
+
+  /**
+   * Load the fixture persons and the module that uses the lookup table.
+   */
+  @Setup
+  public void setup() {
+    people = BenchmarkFixtures.people();
+    transition = Module.getModuleByPath("medications/ace_arb")
+        .getState("Prescribe_Ingredient").getTransition();
+  }
+
+  @Benchmark
+  public String follow() {
+    Person person = people[index++ % people.length];
+    return transition.follow(person, BenchmarkFixtures.TIME);
+  }
+}
@@ -0,0 +1,48 @@
+package org.mitre.synthea.engine;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mitre.synthea.BenchmarkFixtures;
+import org.mitre.synthea.world.agents.Person;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the simulation of a whole person, from birth to the fixture end time, with all the
+ * modules loaded. Each invocation simulates the next person of a fixed sequence of seeds, so the
+ * average is over the same population on every run.
+ *
+ * <p>Run with: ./gradlew jmh -Pjmh="['SimulationBenchmark', '-prof', 'gc']"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class SimulationBenchmark {
+  private Generator generator;
+  private int index;
+
+  @Setup
+  public void setup() {
+    generator = BenchmarkFixtures.generator();
+  }
+
+  /**
+   * Simulate the next person, until they are alive at the end time.
+   */
+  @Benchmark
+  public Person generatePerson() {
+    int i = index++;
+    return generator.generatePerson(i, BenchmarkFixtures.SEED + i);
+  }
+}
@@ -0,0 +1,76 @@
+package org.mitre.synthea.export;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.mitre.synthea.BenchmarkFixtures;
+import org.mitre.synthea.world.agents.Person;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the export of one record in each format, over the fixture persons in turn. The
+ * FHIR, C-CDA and JSON exporters are measured up to the serialized record; the CSV, CPCDS and
+ * text exporters write to files in a temporary folder, as they do not return the record.
+ *
+ * <p>Run with: ./gradlew jmh -Pjmh="['ExporterBenchmark', '-p', 'format=fhir,csv']"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExporterBenchmark {
+  @Param({"fhir", "fhir_stu3", "fhir_dstu2", "ccda", "json", "csv", "cpcds", "text"})
+  public String format;
+
+  private Person[] people;
+  private int index;
+
+  @Setup
+  public void setup() {
+    people = BenchmarkFixtures.people();
+  }
+
+  /**
+   * Export the next fixture person in the chosen format.
+   */
+  @Benchmark
+  public Object export() throws IOException {
+    Person person = people[index++ % people.length];
+    long time = BenchmarkFixtures.TIME;
+    switch (format) {
+      case "fhir":
+        return FhirR4.convertToFHIRJson(person, time);
+      case "fhir_stu3":
+        return FhirStu3.convertToFHIRJson(person, time);
+      case "fhir_dstu2":
+        return FhirDstu2.convertToFHIRJson(person, time);
+      case "ccda":
+        return CCDAExporter.export(person, time);
+      case "json":
+        return JSONExporter.export(person);
+      case "csv":
+        CSVExporter.getInstance().export(person, time);
+        return person;
+      case "cpcds":
+        CPCDSExporter.getInstance().export(person, time);
+        return person;
+      case "text":
+        TextExporter.exportAll(person, "", time);
+        return person;
+      default:
+        throw new IllegalArgumentException("Unknown format: " + format);
+    }
+  }
+}
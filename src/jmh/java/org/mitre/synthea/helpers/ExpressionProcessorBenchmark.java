@@ -0,0 +1,55 @@
+package org.mitre.synthea.helpers;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mitre.synthea.BenchmarkFixtures;
+import org.mitre.synthea.world.agents.Person;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the evaluation of CQL expressions against the fixture persons. "evaluate" reuses
+ * the shared processor, as the expression states do; "create" also looks up the translated
+ * expression and builds a new processor for it.
+ *
+ * <p>Run with: ./gradlew jmh -Pjmh="['ExpressionProcessorBenchmark', '-prof', 'gc']"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExpressionProcessorBenchmark {
+  @Param({"220 - #{age}", "#{Weight} / ((#{Height} / 100) * (#{Height} / 100))"})
+  public String expression;
+
+  private Person[] people;
+  private int index;
+
+  @Setup
+  public void setup() {
+    people = BenchmarkFixtures.people();
+  }
+
+  @Benchmark
+  public Object evaluate() {
+    Person person = people[index++ % people.length];
+    return ExpressionProcessor.shared(expression).evaluate(person, BenchmarkFixtures.TIME);
+  }
+
+  @Benchmark
+  public Object create() {
+    Person person = people[index++ % people.length];
+    return new ExpressionProcessor(expression).evaluate(person, BenchmarkFixtures.TIME);
+  }
+}
@@ -0,0 +1,55 @@
+package org.mitre.synthea.helpers;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the random numbers most often drawn while simulating a person, with each
+ * RandomEngine.
+ *
+ * <p>Run with: ./gradlew jmh -Pjmh="['RandomNumberGeneratorBenchmark', '-prof', 'gc']"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RandomNumberGeneratorBenchmark {
+  @Param({"legacy", "xoshiro256", "splitmix64"})
+  public String engine;
+
+  private DefaultRandomNumberGenerator random;
+
+  @Setup
+  public void setup() {
+    random = new DefaultRandomNumberGenerator(0L, RandomEngine.fromString(engine));
+  }
+
+  @Benchmark
+  public double rand() {
+    return random.rand();
+  }
+
+  @Benchmark
+  public double randGaussian() {
+    return random.randGaussian();
+  }
+
+  @Benchmark
+  public UUID randUUID() {
+    return random.randUUID();
+  }
+}
@@ -0,0 +1,58 @@
+package org.mitre.synthea.world.agents;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mitre.synthea.helpers.Config;
+import org.mitre.synthea.world.concepts.VitalSign;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of creating a Person and filling in the maps that every simulated person
+ * uses, with and without generate.thread_confined_persons. Run with the gc profiler to compare
+ * the heap allocated per person:
+ *
+ * <p>./gradlew jmh -Pjmh="['PersonBenchmark', '-prof', 'gc']"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PersonBenchmark {
+  @Param({"false", "true"})
+  public String threadConfined;
+
+  private long seed;
+
+  @Setup
+  public void setup() {
+    Config.set("generate.thread_confined_persons", threadConfined);
+  }
+
+  /**
+   * Create a person with a typical set of attributes, vital signs and symptoms.
+   */
+  @Benchmark
+  public Person createPerson() {
+    Person person = new Person(seed++);
+    person.attributes.put(Person.BIRTHDATE, 0L);
+    person.attributes.put(Person.GENDER, "F");
+    person.attributes.put(Person.SMOKER, false);
+    person.attributes.put(Person.SOCIOECONOMIC_SCORE, 0.5);
+    person.setVitalSign(VitalSign.HEIGHT, 160.0);
+    person.setVitalSign(VitalSign.WEIGHT, 60.0);
+    person.setSymptom("Benchmark", "cause", "fatigue", 0L, 10, false);
+    return person;
+  }
+}
@@ -0,0 +1,48 @@
+package org.mitre.synthea.world.agents;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mitre.synthea.BenchmarkFixtures;
+import org.mitre.synthea.world.concepts.HealthRecord.EncounterType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the search for the provider of a service, around the homes of the fixture persons,
+ * with the providers of the fixture state loaded.
+ *
+ * <p>Run with: ./gradlew jmh -Pjmh="['ProviderBenchmark', '-prof', 'gc']"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProviderBenchmark {
+  @Param({"WELLNESS", "EMERGENCY", "INPATIENT"})
+  public EncounterType service;
+
+  private Person[] people;
+  private int index;
+
+  @Setup
+  public void setup() {
+    people = BenchmarkFixtures.people();
+  }
+
+  @Benchmark
+  public Provider findService() {
+    Person person = people[index++ % people.length];
+    return Provider.findService(person, service, BenchmarkFixtures.TIME);
+  }
+}
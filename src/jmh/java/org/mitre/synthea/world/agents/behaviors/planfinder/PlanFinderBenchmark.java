@@ -0,0 +1,73 @@
+package org.mitre.synthea.world.agents.behaviors.planfinder;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.mitre.synthea.BenchmarkFixtures;
+import org.mitre.synthea.world.agents.PayerManager;
+import org.mitre.synthea.world.agents.Person;
+import org.mitre.synthea.world.concepts.HealthRecord.EncounterType;
+import org.mitre.synthea.world.concepts.healthinsurance.InsurancePlan;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures each plan finder choosing an insurance plan for the fixture persons, among the plans
+ * of the fixture state that are active at the fixture end time.
+ *
+ * <p>Run with: ./gradlew jmh -Pjmh="['PlanFinderBenchmark', '-prof', 'gc']"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PlanFinderBenchmark {
+  @Param({"best_rate", "priority", "random"})
+  public String behavior;
+
+  private IPlanFinder finder;
+  private List<InsurancePlan> plans;
+  private Person[] people;
+  private int index;
+
+  /**
+   * Load the fixture persons and payers, and create the plan finder under test.
+   */
+  @Setup
+  public void setup() {
+    people = BenchmarkFixtures.people();
+    plans = PayerManager.getActivePlans(PayerManager.getAllPayers(), BenchmarkFixtures.TIME)
+        .stream().filter(plan -> !plan.isMedicareSupplementPlan()).collect(Collectors.toList());
+    switch (behavior) {
+      case "best_rate":
+        finder = new PlanFinderBestRates();
+        break;
+      case "priority":
+        finder = new PlanFinderPriority();
+        break;
+      case "random":
+        finder = new PlanFinderRandom();
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown plan finder: " + behavior);
+    }
+  }
+
+  @Benchmark
+  public InsurancePlan find() {
+    Person person = people[index++ % people.length];
+    return finder.find(plans, person, EncounterType.WELLNESS, BenchmarkFixtures.TIME);
+  }
+}
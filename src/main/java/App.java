@@ -13,6 +13,7 @@ import java.util.TimeZone;
 
 import org.mitre.synthea.engine.Generator;
 import org.mitre.synthea.engine.Module;
+import org.mitre.synthea.engine.PopulationSnapshot;
 import org.mitre.synthea.export.Exporter;
 import org.mitre.synthea.export.flexporter.Mapping;
 import org.mitre.synthea.helpers.Config;
@@ -29,7 +30,7 @@ public class App {
   public static void usage() {
     System.out.println("Usage: run_synthea [options] [state [city]]");
     System.out.println("Options: [-s seed] [-cs clinicianSeed] [-p populationSize]");
-    System.out.println("         [-ps singlePersonSeed]");
+    System.out.println("         [-ps singlePersonSeed] [-pi singlePersonIndex]");
     System.out.println("         [-r referenceDate as YYYYMMDD]");
     System.out.println("         [-e endDate as YYYYMMDD]");
     System.out.println("         [-g gender] [-a minAge-maxAge]");
@@ -41,6 +42,8 @@ public class App {
     System.out.println("         [-t updateTimePeriodInDays]");
     System.out.println("         [-f fixedRecordPath]");
     System.out.println("         [-k keepMatchingPatientsPath]");
+    System.out.println("         [-j progressJournalPath [--resume]]");
+    System.out.println("         [-shard shardIndex/shardCount]");
     System.out.println("         [--config*=value]");
     System.out.println("          * any setting from src/main/resources/synthea.properties");
     System.out.println("Examples:");
@@ -51,6 +54,9 @@ public class App {
     System.out.println("run_synthea -s 987 Washington Seattle");
     System.out.println("run_synthea -s 21 -p 100 Utah \"Salt Lake City\"");
     System.out.println("run_synthea -g M -a 60-65");
+    System.out.println("run_synthea -p 100000 -j progress.journal --resume");
+    System.out.println("run_synthea -s 42 -e 20240101 -p 100000 -shard 0/4 "
+        + "--exporter.baseDirectory=\"./output_0/\"");
     System.out.println("run_synthea -p 10 --exporter.fhir.export=true");
     System.out.println("run_synthea --exporter.baseDirectory=\"./output_tx/\" Texas");
   }
@@ -67,6 +73,11 @@ public class App {
     boolean validArgs = true;
     boolean overrideFutureDateError = false;
     boolean reloadConfig = false;
+    // sharded runs must all generate the same population, so they cannot use the current time
+    boolean seedSpecified = false;
+    boolean clinicianSeedSpecified = false;
+    boolean referenceTimeSpecified = false;
+    boolean endTimeSpecified = false;
     if (args != null && args.length > 0) {
       try {
         Queue<String> argsQ = new LinkedList<String>(Arrays.asList(args));
@@ -80,12 +91,17 @@ public class App {
           } else if (currArg.equalsIgnoreCase("-s")) {
             String value = argsQ.poll();
             options.seed = Long.parseLong(value);
+            seedSpecified = true;
           } else if (currArg.equalsIgnoreCase("-cs")) {
             String value = argsQ.poll();
             options.clinicianSeed = Long.parseLong(value);
+            clinicianSeedSpecified = true;
           } else if (currArg.equalsIgnoreCase("-ps")) {
             String value = argsQ.poll();
             options.singlePersonSeed = Long.valueOf(value);
+          } else if (currArg.equalsIgnoreCase("-pi")) {
+            String value = argsQ.poll();
+            options.singlePersonIndex = Integer.valueOf(value);
           } else if (currArg.equalsIgnoreCase("-r")) {
             String value = argsQ.poll();
             // note that Y = "week year" and y = "year" per the formatting guidelines
@@ -94,6 +110,7 @@ public class App {
             SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd");
             format.setTimeZone(TimeZone.getTimeZone("UTC"));
             options.referenceTime = format.parse(value).getTime();
+            referenceTimeSpecified = true;
           } else if (currArg.equalsIgnoreCase("-e")) {
             if (currArg.equals("-E")) {
               overrideFutureDateError = true;
@@ -102,6 +119,7 @@ public class App {
             SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd");
             format.setTimeZone(TimeZone.getTimeZone("UTC"));
             options.endTime = format.parse(value).getTime();
+            endTimeSpecified = true;
           } else if (currArg.equalsIgnoreCase("-p")) {
             String value = argsQ.poll();
             options.population = Integer.parseInt(value);
@@ -235,6 +253,25 @@ public class App {
               throw new FileNotFoundException(String.format(
                   "Specified IG directory (%s) does not exist", value));
             }
+          } else if (currArg.equals("-shard")) {
+            String value = argsQ.poll();
+            String[] values = value.split("/");
+            if (values.length != 2) {
+              throw new IllegalArgumentException(String.format(
+                  "Shard (%s) must be shardIndex/shardCount, e.g. 0/4", value));
+            }
+            options.shardIndex = Integer.parseInt(values[0]);
+            options.shardCount = Integer.parseInt(values[1]);
+            if (options.shardCount < 1 || options.shardIndex < 0
+                || options.shardIndex >= options.shardCount) {
+              throw new IllegalArgumentException(String.format(
+                  "Shard index must be from 0 to %d (%s)", options.shardCount - 1, value));
+            }
+          } else if (currArg.equals("-j")) {
+            String value = argsQ.poll();
+            options.journalPath = new File(value);
+          } else if (currArg.equalsIgnoreCase("--resume")) {
+            options.resume = true;
           } else if (currArg.startsWith("--")) {
             String configSetting;
             String value;
@@ -270,6 +307,26 @@ public class App {
       resetOptionsFromConfig(options, exportOptions);
     }
 
+    if (options.resume && options.journalPath == null) {
+      System.out.println("Error: --resume requires a progress journal (-j)");
+      validArgs = false;
+    }
+
+    if (options.shardCount > 1) {
+      if (!seedSpecified || !endTimeSpecified) {
+        System.out.println("Error: -shard requires a seed (-s) and an end date (-e), "
+            + "so that every shard generates the same population and output files");
+        validArgs = false;
+      }
+      // the remaining dates and seeds otherwise default to the current time
+      if (!referenceTimeSpecified) {
+        options.referenceTime = options.endTime;
+      }
+      if (!clinicianSeedSpecified) {
+        options.clinicianSeed = options.seed;
+      }
+    }
+
     if (validArgs && validateConfig(options, overrideFutureDateError)) {
       Generator generator = new Generator(options, exportOptions);
       generator.run();
@@ -285,6 +342,12 @@ public class App {
       // file during options initialization need to be reset here.
       options.population = Config.getAsInteger("generate.default_population", 1);
       options.threadPoolSize = Config.getAsInteger("generate.thread_pool_size", -1);
+      options.executorStrategy = Config.get("generate.executor_strategy", "fixed");
+      options.maxInFlight = Config.getAsInteger("generate.max_in_flight", -1);
+      options.snapshotChunkSize = Config.getAsInteger("generate.snapshot_chunk_size",
+          PopulationSnapshot.DEFAULT_CHUNK_SIZE);
+      options.checkpointInterval = Config.getAsInteger("generate.checkpoint_interval", 1000);
+      options.counterSeeds = Config.getAsBoolean("generate.counter_based_seeds", false);
 
       exportOptions.yearsOfHistory = Config.getAsInteger("exporter.years_of_history", 10);
       exportOptions.terminologyService = !Config.get("generate.terminology_service_url", "").isEmpty();
@@ -0,0 +1,140 @@
+package org.mitre.synthea.engine;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * ExecutorStrategy selects how the Generator schedules the simulation and export of each Person.
+ * The strategy is chosen with the "generate.executor_strategy" configuration setting.
+ */
+public enum ExecutorStrategy {
+  /** A fixed pool of platform threads. This is the default. */
+  FIXED,
+  /** A work-stealing ForkJoinPool sized to the thread pool size. */
+  WORK_STEALING,
+  /**
+   * One virtual thread per Person. Exporter I/O and terminology lookups no longer tie up a
+   * platform thread while blocked. Requires a JDK with virtual thread support (Java 21+),
+   * otherwise the fixed thread pool is used.
+   */
+  VIRTUAL;
+
+  /**
+   * Convert the given string into an ExecutorStrategy.
+   *
+   * @param value the string to convert, e.g. "fixed", "work_stealing" or "virtual".
+   * @return the matching strategy, or FIXED if the value is null or empty.
+   * @throws IllegalArgumentException if the value does not name a strategy.
+   */
+  public static ExecutorStrategy fromString(String value) {
+    if (value == null || value.trim().isEmpty()) {
+      return FIXED;
+    }
+    try {
+      return ExecutorStrategy.valueOf(value.trim().toUpperCase().replace('-', '_'));
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException(String.format(
+          "Unknown executor strategy (%s), must be one of fixed, work_stealing or virtual",
+          value), e);
+    }
+  }
+
+  /**
+   * The default maximum number of persons queued or running at once with this strategy, used
+   * when "generate.max_in_flight" is -1. The thread pools only run threadPoolSize persons at a
+   * time, so a few per thread keeps them busy. Virtual threads run every submitted person at once
+   * and park while blocked on I/O, so they are given many more.
+   *
+   * @param threadPoolSize the number of platform threads to use.
+   * @return the default maximum number of persons in flight.
+   */
+  public int defaultMaxInFlight(int threadPoolSize) {
+    if (this == VIRTUAL && virtualThreadsSupported()) {
+      return threadPoolSize * 64;
+    }
+    return threadPoolSize * 4;
+  }
+
+  /**
+   * Create a new ExecutorService for this strategy.
+   *
+   * @param threadPoolSize the number of platform threads to use, where applicable.
+   * @return a new ExecutorService.
+   */
+  public ExecutorService create(int threadPoolSize) {
+    switch (this) {
+      case WORK_STEALING:
+        return new ForkJoinPool(threadPoolSize);
+      case VIRTUAL:
+        ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+        if (virtual != null) {
+          return virtual;
+        }
+        System.out.println("Virtual threads are not supported by this JDK ("
+            + System.getProperty("java.version") + "), using a fixed thread pool instead.");
+        return Executors.newFixedThreadPool(threadPoolSize);
+      case FIXED:
+      default:
+        return Executors.newFixedThreadPool(threadPoolSize);
+    }
+  }
+
+  /**
+   * Whether or not the running JDK supports virtual threads.
+   * @return true if virtual threads are available.
+   */
+  public static boolean virtualThreadsSupported() {
+    return getVirtualThreadFactoryMethod() != null;
+  }
+
+  /**
+   * Whether or not the given thread is a virtual thread. The JVM cannot measure the CPU time or
+   * allocations of a virtual thread, since it runs on whichever platform thread is free.
+   * @param thread the thread to check.
+   * @return true if the thread is a virtual thread.
+   */
+  public static boolean isVirtual(Thread thread) {
+    if (IS_VIRTUAL == null) {
+      return false;
+    }
+    try {
+      return (Boolean) IS_VIRTUAL.invoke(thread);
+    } catch (ReflectiveOperationException e) {
+      return false;
+    }
+  }
+
+  private static final Method IS_VIRTUAL = getIsVirtualMethod();
+
+  private static Method getIsVirtualMethod() {
+    // looked up reflectively so the code still compiles and runs on Java 11
+    try {
+      return Thread.class.getMethod("isVirtual");
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+
+  private static ExecutorService newVirtualThreadPerTaskExecutor() {
+    Method method = getVirtualThreadFactoryMethod();
+    if (method == null) {
+      return null;
+    }
+    try {
+      return (ExecutorService) method.invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return null;
+    }
+  }
+
+  private static Method getVirtualThreadFactoryMethod() {
+    // looked up reflectively so the code still compiles and runs on Java 11
+    try {
+      return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+}
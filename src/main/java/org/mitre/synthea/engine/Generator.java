@@ -1,26 +1,22 @@
 package org.mitre.synthea.engine;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
@@ -32,6 +28,7 @@ import org.mitre.synthea.export.Exporter;
 import org.mitre.synthea.helpers.Config;
 import org.mitre.synthea.helpers.DefaultRandomNumberGenerator;
 import org.mitre.synthea.helpers.RandomNumberGenerator;
+import org.mitre.synthea.helpers.RunMetrics;
 import org.mitre.synthea.helpers.Utilities;
 import org.mitre.synthea.identity.Entity;
 import org.mitre.synthea.identity.EntityManager;
@@ -75,11 +72,42 @@ public class Generator {
   private boolean onlyDeadPatients;
   private boolean onlyVeterans;
   private Module keepPatientsModule;
+  private boolean rejectEarly;
+  private boolean keepModuleLockstep;
+  private boolean skipParkedModules;
   private Long maxAttemptsToKeepPatient;
   public static String DEFAULT_STATE = "Massachusetts";
   private Exporter.ExporterRuntimeOptions exporterRuntimeOptions;
   public static EntityManager entityManager;
   public final int threadPoolSize;
+  public final ExecutorStrategy executorStrategy;
+  /**
+   * Maximum number of persons queued or running in the thread pool at once,
+   * or zero if the entire population is submitted up front.
+   */
+  public final int maxInFlight;
+  /** Highest number of persons that were queued or running in the thread pool at once. */
+  public final AtomicInteger peakQueueDepth = new AtomicInteger(0);
+  private final AtomicInteger queueDepth = new AtomicInteger(0);
+  private Semaphore inFlightPermits;
+  /** Writes the updated population snapshot as persons complete, if one was requested. */
+  private volatile PopulationSnapshot.Writer snapshotWriter;
+  /** Records the cost of each attempt at a person, if generate.person_costs is set. */
+  private volatile PersonCosts personCosts;
+  /** Records the progress of the run so it can be resumed, if a journal was requested. */
+  private ProgressJournal journal;
+  /** Number of simulated persons that were thrown away for not meeting the criteria. */
+  public final AtomicLong rejectedPersons = new AtomicLong(0);
+  /** Number of rejected persons whose simulation was stopped as soon as they were doomed. */
+  public final AtomicLong earlyRejectedPersons = new AtomicLong(0);
+  /** Total simulated lifetime of the rejected persons, in milliseconds. */
+  public final AtomicLong rejectedSimulatedTime = new AtomicLong(0);
+  /** Number of persons that were kept, having met the criteria. */
+  public final AtomicLong keptPersons = new AtomicLong(0);
+  /** Total number of attempts it took to make the kept persons. */
+  public final AtomicLong keepAttempts = new AtomicLong(0);
+  /** Highest number of attempts it took to make a single person that met the criteria. */
+  public final AtomicInteger maxKeepAttempts = new AtomicInteger(0);
 
   /**
    * Used only for testing and debugging. Populate this field to keep track of all patients
@@ -103,6 +131,10 @@ public class Generator {
   public static class GeneratorOptions {
     public int population = Config.getAsInteger("generate.default_population", 1);
     public int threadPoolSize = Config.getAsInteger("generate.thread_pool_size", -1);
+    /** How persons are scheduled: "fixed", "work_stealing" or "virtual". */
+    public String executorStrategy = Config.get("generate.executor_strategy", "fixed");
+    /** Maximum number of persons queued or running at once. -1 for automatic, 0 for unbounded. */
+    public int maxInFlight = Config.getAsInteger("generate.max_in_flight", -1);
     /** Reference Time when to start Synthea. By default equal to the current system time. */
     public long referenceTime = System.currentTimeMillis();
     /** End time of Synthea simulation. By default equal to the current system time. */
@@ -113,6 +145,13 @@ public class Generator {
     public long seed = referenceTime;
     public long clinicianSeed = referenceTime;
     public Long singlePersonSeed;
+    /** Index of a single person of the population to generate, instead of all of them. */
+    public Integer singlePersonIndex;
+    /**
+     * Derive the seed of each person from the population seed and their index, rather than
+     * drawing seeds in order. Produces a different population than sequential seeds.
+     */
+    public boolean counterSeeds = Config.getAsBoolean("generate.counter_based_seeds", false);
     /** Population as exclusively live persons or including deceased.
      * True for live, false includes deceased */
     public boolean overflow = true;
@@ -135,11 +174,24 @@ public class Generator {
     public File initialPopulationSnapshotPath;
     /** File used to store a population snapshot. */
     public File updatedPopulationSnapshotPath;
+    /** Number of persons per chunk of the population snapshot. */
+    public int snapshotChunkSize = Config.getAsInteger("generate.snapshot_chunk_size",
+        PopulationSnapshot.DEFAULT_CHUNK_SIZE);
     /** Time period in days to evolve the population loaded from initialPopulationSnapshotPath. A
      *  value of -1 will evolve the population to the current system time. */
     public int daysToTravelForward = -1;
     /** Path to a module defining which patients should be kept and exported. */
     public Path keepPatientsModulePath;
+    /** File recording the progress of the run, so an interrupted run can be resumed. */
+    public File journalPath;
+    /** Resume the run recorded in journalPath, skipping the persons it already completed. */
+    public boolean resume = false;
+    /** Index of the shard to generate, when the population is split across several runs. */
+    public int shardIndex = 0;
+    /** Number of shards the population is split across. Each generates every Nth person. */
+    public int shardCount = 1;
+    /** Number of persons completed between checkpoints of the progress journal. */
+    public int checkpointInterval = Config.getAsInteger("generate.checkpoint_interval", 1000);
   }
 
   /**
@@ -194,10 +246,6 @@ public class Generator {
   public Generator(GeneratorOptions o, Exporter.ExporterRuntimeOptions ero) {
     options = o;
     exporterRuntimeOptions = ero;
-    if (options.updatedPopulationSnapshotPath != null) {
-      exporterRuntimeOptions.deferExports = true;
-      internalStore = Collections.synchronizedList(new LinkedList<>());
-    }
     if (options.threadPoolSize == -1) {
       threadPoolSize = Runtime.getRuntime().availableProcessors();
     } else if (options.threadPoolSize > 0) {
@@ -206,9 +254,70 @@ public class Generator {
       throw new IllegalArgumentException(String.format(
               "Illegal thread pool size (%d)", options.threadPoolSize));
     }
+    executorStrategy = ExecutorStrategy.fromString(options.executorStrategy);
+    if (options.maxInFlight == -1
+        || (options.maxInFlight == 0 && options.journalPath != null)) {
+      // checkpoints of the progress journal wait for the persons in flight, so must be bounded
+      maxInFlight = executorStrategy.defaultMaxInFlight(threadPoolSize);
+    } else if (options.maxInFlight >= 0) {
+      maxInFlight = options.maxInFlight;
+    } else {
+      throw new IllegalArgumentException(String.format(
+              "Illegal maximum persons in flight (%d)", options.maxInFlight));
+    }
+    if (options.shardCount < 1 || options.shardIndex < 0
+        || options.shardIndex >= options.shardCount) {
+      throw new IllegalArgumentException(String.format(
+              "Illegal shard (%d/%d)", options.shardIndex, options.shardCount));
+    }
+    if (options.journalPath != null) {
+      openJournal();
+    }
     init();
   }
 
+  /**
+   * Open the progress journal. When resuming, this also restores the seeds and time period of
+   * the interrupted run, and returns the output files and exporter state to their state at its
+   * last checkpoint, so it must happen before anything is initialized or exported.
+   */
+  private void openJournal() {
+    try {
+      if (options.resume && options.journalPath.exists()) {
+        if (Config.getAsBoolean("exporter.cdw.export")) {
+          // the CDW exporter starts its files again, and numbers their rows as it goes
+          throw new IOException("Runs exporting to CDW cannot be resumed");
+        }
+        journal = ProgressJournal.resume(options.journalPath, options);
+        journal.restoreOutputs(journalOutputDirectory());
+        if (journal.completedCount() > 0) {
+          // continue the shared output files rather than starting them again
+          Config.set("exporter.csv.append_mode", "true");
+          Config.set("exporter.cpcds.append_mode", "true");
+          Config.set("exporter.symptoms.csv.append_mode", "true");
+        }
+        Exporter.restoreState(journal.exporterState());
+        // persons that were in flight may have written some of their own files
+        exporterRuntimeOptions.overwriteFiles = true;
+        System.out.printf("Resuming run from %s, %d of %d persons already completed\n",
+            options.journalPath, journal.completedCount(), options.population);
+      } else {
+        journal = ProgressJournal.create(options.journalPath, options);
+        journal.checkpoint(journalOutputDirectory(), Exporter.getState());
+      }
+    } catch (IOException ex) {
+      throw new RuntimeException("Couldn't open the progress journal "
+          + options.journalPath, ex);
+    }
+  }
+
+  /**
+   * Get the base directory of the exported files, whose shared files the journal records.
+   */
+  private static Path journalOutputDirectory() {
+    return ProgressJournal.outputDirectory(Config.get("exporter.baseDirectory", "./output/"));
+  }
+
   private void init() {
     if (options.state == null) {
       options.state = DEFAULT_STATE;
@@ -222,6 +331,7 @@ public class Generator {
     this.populationRandom = new DefaultRandomNumberGenerator(options.seed);
     this.clinicianRandom = new DefaultRandomNumberGenerator(options.clinicianSeed);
     this.timestep = Long.parseLong(Config.get("generate.timestep"));
+    this.skipParkedModules = Config.getAsBoolean("generate.skip_parked_modules", true);
     this.stop = options.endTime;
     this.referenceTime = options.referenceTime;
 
@@ -251,6 +361,9 @@ public class Generator {
       this.maxAttemptsToKeepPatient = null;
     }
 
+    this.rejectEarly = Config.getAsBoolean("generate.early_rejection", false);
+    this.keepModuleLockstep = Config.getAsBoolean("generate.keep_module_lockstep", false);
+
     this.onlyVeterans = Config.getAsBoolean("generate.veteran_population_override");
     this.totalGeneratedPopulation = new AtomicInteger(0);
     this.stats = Collections.synchronizedMap(new HashMap<String, AtomicInteger>());
@@ -344,41 +457,44 @@ public class Generator {
 
     }
 
-    ExecutorService threadPool = Executors.newFixedThreadPool(threadPoolSize);
-
-    if (options.initialPopulationSnapshotPath != null) {
-      FileInputStream fis = null;
-      List<Person> initialPopulation = null;
+    // Save a snapshot of the generated population as each person completes
+    if (options.updatedPopulationSnapshotPath != null) {
       try {
-        fis = new FileInputStream(options.initialPopulationSnapshotPath);
-        ObjectInputStream ois = new ObjectInputStream(fis);
-        initialPopulation = (List<Person>) ois.readObject();
-        ois.close();
-      } catch (Exception ex) {
-        System.out.printf("Unable to load population snapshot, error: %s", ex.getMessage());
+        snapshotWriter = new PopulationSnapshot.Writer(options.updatedPopulationSnapshotPath,
+            options.snapshotChunkSize);
+      } catch (IOException ex) {
+        System.out.printf("Unable to save population snapshot, error: %s", ex.getMessage());
       }
-      if (initialPopulation != null && initialPopulation.size() > 0) {
-        // default is to run until current system time.
-        if (options.daysToTravelForward > 0) {
-          stop = initialPopulation.get(0).lastUpdated
-              + Utilities.convertTime("days", options.daysToTravelForward);
-        }
-        for (int i = 0; i < initialPopulation.size(); i++) {
-          final int index = i;
-          final Person p = initialPopulation.get(i);
-          threadPool.submit(() -> updateRecordExportPerson(p, index));
+    }
+
+    // Record the allocations and CPU time of each person to the metrics folder
+    if (Config.getAsBoolean("generate.person_costs", false)) {
+      File file = Paths.get(Config.get("exporter.baseDirectory", "./output/"), "metrics",
+          "person_costs.csv").toFile();
+      try {
+        personCosts = new PersonCosts(file);
+        if (executorStrategy == ExecutorStrategy.VIRTUAL
+            && ExecutorStrategy.virtualThreadsSupported()) {
+          System.out.println("Allocations and CPU time cannot be measured on virtual threads, "
+              + "so person costs will leave them empty.");
         }
+      } catch (IOException ex) {
+        System.out.printf("Unable to record person costs, error: %s\n", ex.getMessage());
       }
-    } else if (this.options.singlePersonSeed == null) {
-      // Generate patients up to the specified population size.
-      for (int i = 0; i < this.options.population; i++) {
-        final int index = i;
-        final long seed = this.populationRandom.randLong();
-        threadPool.submit(() -> generatePerson(index, seed));
-      }
-    } else {
-      // we have a single fixed seed to generate, don't bother with threadpool
-      generatePerson(0, this.options.singlePersonSeed);
+    }
+
+    ExecutorService threadPool = executorStrategy.create(threadPoolSize);
+    inFlightPermits = maxInFlight > 0 ? new Semaphore(maxInFlight) : null;
+
+    RunMetrics.reset();
+    registerMetrics();
+    RunMetrics.start();
+    long runStart = System.nanoTime();
+    try {
+      submitPopulation(threadPool);
+    } catch (InterruptedException e) {
+      System.out.println("Generator interrupted while submitting the population.");
+      Thread.currentThread().interrupt();
     }
 
     try {
@@ -391,25 +507,273 @@ public class Generator {
       threadPool.shutdownNow();
     }
 
-    // Save a snapshot of the generated population using Java Serialization
-    if (options.updatedPopulationSnapshotPath != null) {
-      FileOutputStream fos = null;
+    long runNanos = System.nanoTime() - runStart;
+
+    if (journal != null) {
+      if (threadPool.isTerminated()) {
+        writeCheckpoint();
+      }
       try {
-        fos = new FileOutputStream(options.updatedPopulationSnapshotPath);
-        ObjectOutputStream oos = new ObjectOutputStream(fos);
-        oos.writeObject(internalStore);
-        oos.close();
-        fos.close();
-      } catch (Exception ex) {
+        journal.close();
+      } catch (IOException ex) {
+        System.out.printf("Unable to write progress journal, error: %s\n", ex.getMessage());
+      }
+      journal = null;
+    }
+
+    if (snapshotWriter != null) {
+      try {
+        snapshotWriter.close();
+      } catch (IOException ex) {
         System.out.printf("Unable to save population snapshot, error: %s", ex.getMessage());
       }
+      snapshotWriter = null;
+    }
+    if (personCosts != null) {
+      try {
+        personCosts.close();
+      } catch (IOException ex) {
+        System.out.printf("Unable to record person costs, error: %s\n", ex.getMessage());
+      }
+      personCosts = null;
     }
     Exporter.runPostCompletionExports(this, exporterRuntimeOptions);
+    RunMetrics.stop();
 
     System.out.printf("Records: total=%d, alive=%d, dead=%d\n", totalGeneratedPopulation.get(),
             stats.get("alive").get(), stats.get("dead").get());
+    if (rejectedPersons.get() > 0) {
+      System.out.printf("Rejected: %d records (%d early), %.1f simulated years wasted\n",
+          rejectedPersons.get(), earlyRejectedPersons.get(),
+          rejectedSimulatedTime.get() / (double) Utilities.convertTime("years", 1));
+      System.out.printf("Attempts per kept record: %.2f (max %d)\n",
+          keepAttempts.get() / (double) Math.max(1, keptPersons.get()), maxKeepAttempts.get());
+    }
     System.out.printf("RNG=%d\n", this.populationRandom.getCount());
     System.out.printf("Clinician RNG=%d\n", this.clinicianRandom.getCount());
+    System.out.printf("Peak queue depth=%d (max in flight=%s)\n", peakQueueDepth.get(),
+            maxInFlight > 0 ? Integer.toString(maxInFlight) : "unbounded");
+    double runSeconds = runNanos / 1_000_000_000.0;
+    System.out.printf("Throughput: %d records in %.1fs = %.2f records/s "
+            + "(executor=%s, threads=%d)\n", totalGeneratedPopulation.get(), runSeconds,
+            runSeconds > 0 ? totalGeneratedPopulation.get() / runSeconds : 0.0,
+            executorStrategy.toString().toLowerCase(), threadPoolSize);
+  }
+
+  /**
+   * Register the gauges of this generator with the run metrics.
+   */
+  private void registerMetrics() {
+    RunMetrics.gauge("persons_completed", totalGeneratedPopulation::get);
+    RunMetrics.gauge("persons_per_second",
+        () -> totalGeneratedPopulation.get() / Math.max(1e-9, RunMetrics.elapsedSeconds()));
+    RunMetrics.gauge("persons_alive", () -> stats.get("alive").get());
+    RunMetrics.gauge("persons_dead", () -> stats.get("dead").get());
+    RunMetrics.gauge("queue_depth", queueDepth::get);
+    RunMetrics.gauge("queue_depth_peak", peakQueueDepth::get);
+    RunMetrics.gauge("rejected_persons", rejectedPersons::get);
+    RunMetrics.gauge("rejected_persons_early", earlyRejectedPersons::get);
+    RunMetrics.gauge("rejected_simulated_years",
+        () -> rejectedSimulatedTime.get() / (double) Utilities.convertTime("years", 1));
+    RunMetrics.gauge("kept_persons", keptPersons::get);
+    RunMetrics.gauge("keep_attempts", keepAttempts::get);
+    RunMetrics.gauge("keep_attempts_max", maxKeepAttempts::get);
+  }
+
+  /**
+   * Submit each person in the population to the thread pool. When a maximum number of persons
+   * in flight is configured, this blocks until earlier persons complete, so the thread pool
+   * queue never holds more than that many persons.
+   * @param threadPool the thread pool that simulates and exports each person.
+   * @throws InterruptedException if interrupted while waiting for space in the queue.
+   */
+  private void submitPopulation(ExecutorService threadPool) throws InterruptedException {
+    if (options.initialPopulationSnapshotPath != null) {
+      submitSnapshot(threadPool);
+    } else if (this.options.singlePersonSeed == null && this.options.singlePersonIndex == null) {
+      // Generate patients up to the specified population size.
+      for (int i = 0; i < this.options.population; i++) {
+        final int index = i;
+        final long seed = personSeed(index);
+        if (index % options.shardCount != options.shardIndex) {
+          // belongs to another shard, but the seed is drawn so every shard uses the same seeds
+          // as a single run
+          continue;
+        }
+        if (journal == null) {
+          submitPerson(threadPool, () -> generatePerson(index, seed));
+        } else if (journal.isCompleted(index)) {
+          // persons completed before a resumed run was interrupted are simulated again, but not
+          // exported, so the statistics, providers and post-completion exports include them,
+          // and the remaining persons are the same as an uninterrupted run
+          submitPerson(threadPool, () -> generatePerson(index, seed, true));
+        } else {
+          if (journal.completedSinceCheckpoint() >= options.checkpointInterval) {
+            checkpoint();
+          }
+          submitPerson(threadPool, () -> {
+            Person person = generatePerson(index, seed);
+            try {
+              journal.completed(index, person.getSeed());
+            } catch (IOException ex) {
+              System.out.printf("Unable to write progress journal, error: %s\n",
+                  ex.getMessage());
+            }
+          });
+        }
+      }
+    } else if (this.options.singlePersonIndex != null) {
+      // regenerate a single person of the population
+      int index = this.options.singlePersonIndex;
+      if (!options.counterSeeds) {
+        // sequential seeds can only be reached by drawing every seed before it
+        for (int i = 0; i < index; i++) {
+          personSeed(i);
+        }
+      }
+      generatePerson(index, personSeed(index));
+    } else {
+      // we have a single fixed seed to generate, don't bother with threadpool
+      generatePerson(0, this.options.singlePersonSeed);
+    }
+  }
+
+  /**
+   * Get the seed of the person at the given index of the population. Sequential seeds are drawn
+   * from the population random number generator, so this must be called for every index in
+   * order. Counter based seeds depend only on the population seed and the index.
+   * @param index the index of the person within the population.
+   * @return the seed of the person.
+   */
+  private long personSeed(int index) {
+    if (options.counterSeeds) {
+      return DefaultRandomNumberGenerator.deriveSeed(options.seed, index);
+    }
+    return this.populationRandom.randLong();
+  }
+
+  /**
+   * Wait for every person in flight to complete, then write a checkpoint to the progress journal.
+   * @throws InterruptedException if interrupted while waiting for the persons in flight.
+   */
+  private void checkpoint() throws InterruptedException {
+    inFlightPermits.acquire(maxInFlight);
+    try {
+      writeCheckpoint();
+    } finally {
+      inFlightPermits.release(maxInFlight);
+    }
+  }
+
+  /**
+   * Flush the shared output files and write a checkpoint to the progress journal. No persons
+   * may be in flight.
+   */
+  private void writeCheckpoint() {
+    try {
+      Exporter.flushOpenFiles();
+      journal.checkpoint(journalOutputDirectory(), Exporter.getState());
+    } catch (IOException ex) {
+      System.out.printf("Unable to write progress journal, error: %s\n", ex.getMessage());
+    }
+  }
+
+  /**
+   * Read the initial population snapshot one chunk at a time, deserialize each chunk, and submit
+   * each of its persons to the thread pool to be updated and exported. Only the persons in
+   * flight and the chunk being read are held in memory.
+   * @param threadPool the thread pool that updates and exports each person.
+   * @throws InterruptedException if interrupted while waiting for space in the queue.
+   */
+  private void submitSnapshot(ExecutorService threadPool) throws InterruptedException {
+    try (PopulationSnapshot.Reader reader =
+        new PopulationSnapshot.Reader(options.initialPopulationSnapshotPath)) {
+      boolean first = true;
+      PopulationSnapshot.Chunk chunk;
+      while ((chunk = reader.next()) != null) {
+        if (first && options.daysToTravelForward > 0) {
+          // the stop time depends on the first person, so it is known before any are updated.
+          // default is to run until current system time.
+          List<Person> persons = chunk.decode();
+          if (!persons.isEmpty()) {
+            stop = persons.get(0).lastUpdated
+                + Utilities.convertTime("days", options.daysToTravelForward);
+          }
+        }
+        first = false;
+        final PopulationSnapshot.Chunk persons = chunk;
+        submitPersons(threadPool, chunk.size, () -> updateRecordExportChunk(persons));
+      }
+    } catch (IOException ex) {
+      System.out.printf("Unable to load population snapshot, error: %s", ex.getMessage());
+    }
+  }
+
+  /**
+   * Decode a chunk of the population snapshot, then update, record and export each of its
+   * persons in turn. Each chunk is decoded by the thread pool, so decoding is not limited to
+   * the thread reading the snapshot.
+   * @param chunk the chunk of the snapshot.
+   */
+  private void updateRecordExportChunk(PopulationSnapshot.Chunk chunk) {
+    List<Person> persons;
+    try {
+      persons = chunk.decode();
+    } catch (IOException ex) {
+      System.out.printf("Unable to load population snapshot, error: %s\n", ex.getMessage());
+      return;
+    }
+    for (int i = 0; i < persons.size(); i++) {
+      updateRecordExportPerson(persons.get(i), chunk.firstIndex + i);
+    }
+  }
+
+  /**
+   * Submit a single person to the thread pool, first waiting for a free slot if the number
+   * of persons in flight is bounded.
+   * @param threadPool the thread pool that simulates and exports each person.
+   * @param task the work to perform for the person.
+   * @throws InterruptedException if interrupted while waiting for a free slot.
+   */
+  private void submitPerson(ExecutorService threadPool, Runnable task)
+      throws InterruptedException {
+    submitPersons(threadPool, 1, task);
+  }
+
+  /**
+   * Submit a task for the given number of persons to the thread pool, first waiting for a slot
+   * for each of them if the number of persons in flight is bounded. A task for more persons than
+   * the bound waits for every slot.
+   * @param threadPool the thread pool that simulates and exports each person.
+   * @param count the number of persons the task works on.
+   * @param task the work to perform for the persons.
+   * @throws InterruptedException if interrupted while waiting for free slots.
+   */
+  private void submitPersons(ExecutorService threadPool, int count, Runnable task)
+      throws InterruptedException {
+    int permits = inFlightPermits == null ? 0 : Math.min(count, maxInFlight);
+    if (permits > 0) {
+      inFlightPermits.acquire(permits);
+    }
+    peakQueueDepth.accumulateAndGet(queueDepth.addAndGet(count), Math::max);
+    try {
+      threadPool.submit(() -> {
+        try {
+          task.run();
+        } finally {
+          queueDepth.addAndGet(-count);
+          if (permits > 0) {
+            inFlightPermits.release(permits);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      queueDepth.addAndGet(-count);
+      if (permits > 0) {
+        inFlightPermits.release(permits);
+      }
+      throw e;
+    }
   }
 
   /**
@@ -443,9 +807,28 @@ public class Generator {
    * @return generated Person
    */
   public Person generatePerson(int index, long personSeed) {
+    return generatePerson(index, personSeed, false);
+  }
+
+  /**
+   * Generate a random Person, from the given seed, as generatePerson(int, long) does. A person
+   * completed before a resumed run was interrupted is simulated again but not exported, and the
+   * progress journal decides which of the attempts to make them the exporters turned down.
+   *
+   * @param index
+   *          Target index in the whole set of people to generate
+   * @param personSeed
+   *          Seed for the random person
+   * @param exportedBefore
+   *          Whether the person was completed before the run was resumed
+   * @return generated Person
+   */
+  private Person generatePerson(int index, long personSeed, boolean exportedBefore) {
 
     Person person = new Person(personSeed);
     boolean wasExported = true;
+    long personStart = System.nanoTime();
+    PersonCosts costs = personCosts;
 
     try {
       int tryNumber = 0; // Number of tries to create these demographics
@@ -465,13 +848,26 @@ public class Generator {
 
       do {
         tryNumber++;
-        person = createPerson(personSeed, demoAttributes);
+        long simulateStart = System.nanoTime();
+        PersonCosts.Sample cost = costs == null ? null : costs.start(index, personSeed, tryNumber);
+        person = initializePerson(personSeed, demoAttributes);
+        boolean completed = updatePerson(person, true);
         long finishTime = person.lastUpdated + timestep;
 
         boolean isAlive = person.alive(finishTime);
 
-        CriteriaCheck check = checkCriteria(person, finishTime, index, isAlive);
+        CriteriaCheck check;
+        if (completed) {
+          check = checkCriteria(person, finishTime, index, isAlive);
+        } else {
+          check = new CriteriaCheck();
+          check.rejectedEarly = true;
+        }
         patientMeetsCriteria = check.meetsCriteria();
+        RunMetrics.record("simulate", simulateStart);
+        if (cost != null) {
+          cost.simulated(person, finishTime);
+        }
 
         if (!patientMeetsCriteria) {
           if (this.maxAttemptsToKeepPatient != null
@@ -496,6 +892,15 @@ public class Generator {
           // this should be false for any clauses in checkCriteria below
           // when we want to export this patient, but keep trying to produce one meeting criteria
           if (!check.exportAnyway()) {
+            rejectedPersons.incrementAndGet();
+            if (check.rejectedEarly) {
+              earlyRejectedPersons.incrementAndGet();
+            }
+            rejectedSimulatedTime.addAndGet(
+                person.lastUpdated - (long) person.attributes.get(Person.BIRTHDATE));
+            if (cost != null) {
+              costs.write(cost, false, 0L);
+            }
             // rotate the seed so the next attempt gets a consistent but different one
             personSeed = person.randLong();
             continue;
@@ -526,9 +931,35 @@ public class Generator {
           }
         }
 
+        addToSnapshot(person);
+
         // TODO - export is DESTRUCTIVE when it filters out data
         // this means export must be the LAST THING done with the person
-        wasExported = Exporter.export(person, finishTime, exporterRuntimeOptions);
+        long exportStart = System.nanoTime();
+        if (!exportedBefore) {
+          wasExported = Exporter.export(person, finishTime, exporterRuntimeOptions);
+          if (!wasExported && journal != null) {
+            try {
+              journal.turnedDown(index, person.getSeed());
+            } catch (IOException ex) {
+              System.out.printf("Unable to write progress journal, error: %s\n",
+                  ex.getMessage());
+            }
+          }
+        } else {
+          wasExported = !journal.wasTurnedDown(index, person.getSeed());
+          if (wasExported) {
+            Exporter.exportedBefore(person, finishTime, exporterRuntimeOptions);
+          }
+        }
+        RunMetrics.record("export", exportStart);
+        if (cost != null) {
+          costs.write(cost, wasExported, System.nanoTime() - exportStart);
+        }
+        if (snapshotWriter != null) {
+          // the person is already in the snapshot, so don't replace them with another
+          wasExported = true;
+        }
         if (!wasExported) {
           personSeed = person.randLong();
           demoAttributes = randomDemographics(person);
@@ -542,6 +973,15 @@ public class Generator {
       // if the patient is dead and we want live ones => loop & try again
       //  (but do export the record anyway)
       // if the patient is alive and we want live ones => done
+      keptPersons.incrementAndGet();
+      keepAttempts.addAndGet(tryNumber);
+      maxKeepAttempts.accumulateAndGet(tryNumber, Math::max);
+      RunMetrics.record("person", personStart);
+      if (exportedBefore && person.getSeed() != journal.completedSeed(index)) {
+        System.out.printf("Person %d was generated from seed %d, but exported from seed %d "
+            + "before the run was resumed\n", index, person.getSeed(),
+            journal.completedSeed(index));
+      }
     } catch (Throwable e) {
       // lots of fhir things throw errors for some reason
       e.printStackTrace();
@@ -562,6 +1002,8 @@ public class Generator {
     private boolean isDeadButAliveRequired;
     private boolean insufficientProviders;
     private boolean failedKeepModule;
+    // the simulation was stopped once the patient could no longer meet the criteria
+    private boolean rejectedEarly;
 
     private boolean meetsCriteria() {
       // if any of the flags are true, the patient does not meet criteria
@@ -569,7 +1011,8 @@ public class Generator {
         || isAliveButDeadRequired
         || isDeadButAliveRequired
         || insufficientProviders
-        || failedKeepModule);
+        || failedKeepModule
+        || rejectedEarly);
     }
 
     private boolean exportAnyway() {
@@ -578,7 +1021,8 @@ public class Generator {
       return !isAliveButDeadRequired
         && !isDeadButAliveRequired
         && !insufficientProviders
-        && !failedKeepModule;
+        && !failedKeepModule
+        && !rejectedEarly;
     }
   }
 
@@ -629,10 +1073,23 @@ public class Generator {
     updatePerson(person);
     recordPerson(person, index);
     long finishTime = person.lastUpdated + timestep;
+    addToSnapshot(person);
     Exporter.export(person, finishTime, exporterRuntimeOptions);
     return person;
   }
 
+  /**
+   * Add a recorded person to the updated population snapshot, if one is being saved. The person
+   * is serialized right away, so this must be called before they are exported, since exporting
+   * may filter their record.
+   * @param person the person to add.
+   */
+  private void addToSnapshot(Person person) {
+    if (snapshotWriter != null) {
+      snapshotWriter.add(person);
+    }
+  }
+
   /**
    * Create a new person and update them until Generator.stop or
    * they die, whichever comes sooner.
@@ -641,8 +1098,21 @@ public class Generator {
    * @return the new person
    */
   public Person createPerson(long personSeed, Map<String, Object> demoAttributes) {
+    Person person = initializePerson(personSeed, demoAttributes);
 
-    // Initialize person.
+    // Enter the loop of updating the person's life.
+    updatePerson(person);
+
+    return person;
+  }
+
+  /**
+   * Create a new person at birth, ready to be updated.
+   * @param personSeed Seed for the random person
+   * @param demoAttributes Demographic attributes for the new person, {@link #randomDemographics}
+   * @return the new person
+   */
+  private Person initializePerson(long personSeed, Map<String, Object> demoAttributes) {
     Person person = new Person(personSeed);
     person.populationSeed = this.options.seed;
     person.attributes.putAll(demoAttributes);
@@ -654,9 +1124,6 @@ public class Generator {
 
     person.currentModules = Module.getModules(modulePredicate);
 
-    // Enter the loop of updating the person's life.
-    updatePerson(person);
-
     return person;
   }
 
@@ -667,11 +1134,38 @@ public class Generator {
    * @param person the previously created person to update
    */
   public void updatePerson(Person person) {
+    updatePerson(person, false);
+  }
+
+  /**
+   * Update a person from the time they were last updated until Generator.stop or they die,
+   * whichever comes sooner. When applying the criteria for keeping the person, the update may
+   * stop as soon as the person can no longer meet them: with early rejection, when they die and
+   * only living patients are kept, or when the keep patients module can no longer end in its Keep
+   * state; with a lock-step keep module, when it reaches a terminal state other than Keep.
+   * @param person the person to update
+   * @param applyCriteria whether to stop the update once the person can't be kept
+   * @return false if the update was stopped because the person can't be kept, otherwise true
+   */
+  private boolean updatePerson(Person person, boolean applyCriteria) {
     HealthInsuranceModule healthInsuranceModule = new HealthInsuranceModule();
     EncounterModule encounterModule = new EncounterModule();
 
+    ModuleSchedule schedule = new ModuleSchedule(person.currentModules, skipParkedModules);
     long time = person.lastUpdated;
+    // fixed demographics may change over time, so the keep module can't be forecast for them
+    boolean forecastKeep = applyCriteria && rejectEarly && keepPatientsModule != null
+        && !person.attributes.containsKey(Person.ENTITY);
+    boolean lockstepKeep = applyCriteria && keepModuleLockstep && keepPatientsModule != null;
+    long nextForecast = time;
     while (person.alive(time) && time < stop) {
+      if (forecastKeep && time >= nextForecast) {
+        // the keep module is processed once the simulation finishes
+        if (!keepPatientsModule.canReach("Keep", person, time, stop + timestep)) {
+          return false;
+        }
+        nextForecast = time + Utilities.convertTime("years", 1);
+      }
 
       // If fixed demographics are in use then check to update the person's current fixed record.
       Entity entity = (Entity) person.attributes.get(Person.ENTITY);
@@ -695,19 +1189,22 @@ public class Generator {
       // Process encounters.
       encounterModule.process(person, time);
 
-      Iterator<Module> iter = person.currentModules.iterator();
-      while (iter.hasNext()) {
-        Module module = iter.next();
-
-        if (module.process(person, time)) {
-          iter.remove(); // this module has completed/terminated.
-        }
-      }
+      // Process the modules that are due, skipping those parked in a delay.
+      schedule.process(person, time);
       encounterModule.endEncounterModuleEncounters(person, time);
       person.lastUpdated = time;
       HealthRecordEditors.getInstance().executeAll(person, person.record, time, timestep);
+      // the keep module is shared by every thread; everything it changes is kept on the person
+      if (lockstepKeep && keepPatientsModule.process(person, time, false)
+          && !person.history.get(0).name.equals("Keep")) {
+        return false;
+      }
       time += timestep;
     }
+    schedule.removeCompleted();
+    if (applyCriteria && rejectEarly && onlyAlivePatients && !person.alive(time)) {
+      return false;
+    }
 
     // If the person has an open encounter, we need to override the default
     // encounter times and charges, with the current length of stay and activities.
@@ -744,6 +1241,7 @@ public class Generator {
 
     // If the person is dead, we need a death certificate.
     DeathModule.process(person, time);
+    return true;
   }
 
   /**
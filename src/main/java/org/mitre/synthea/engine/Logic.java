@@ -1,9 +1,12 @@
 package org.mitre.synthea.engine;
 
 import java.io.Serializable;
+import java.time.LocalDate;
 import java.util.Calendar;
 import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.TimeZone;
 
 import org.mitre.synthea.engine.Components.DateInput;
@@ -11,6 +14,7 @@ import org.mitre.synthea.engine.Components.ExactWithUnit;
 import org.mitre.synthea.helpers.Config;
 import org.mitre.synthea.helpers.Utilities;
 import org.mitre.synthea.world.agents.Person;
+import org.mitre.synthea.world.agents.PersonAttributes;
 import org.mitre.synthea.world.concepts.HealthRecord;
 import org.mitre.synthea.world.concepts.HealthRecord.CarePlan;
 import org.mitre.synthea.world.concepts.HealthRecord.Code;
@@ -22,6 +26,9 @@ import org.mitre.synthea.world.concepts.HealthRecord.Medication;
  * expression. This class is stateless, and calling 'test' on an instance
  * must not modify state as instances of Logic within Modules are shared
  * across the population.
+ *
+ * <p>When a module is loaded (or read from the module cache), the Logic of each State is compiled
+ * (see compile()), so that test() can run without allocating or looking anything up by name.
  */
 public abstract class Logic implements Serializable {
   public List<String> remarks;
@@ -35,6 +42,81 @@ public abstract class Logic implements Serializable {
    */
   public abstract boolean test(Person person, long time);
 
+  /**
+   * Prepare this logic and its children for repeated testing, once it has been read from the
+   * module JSON. This is where lists are flattened into arrays and configuration settings are
+   * read, so that test() doesn't need to. Logic that was never compiled (for example, read
+   * directly with Gson) compiles itself the first time it is tested.
+   *
+   * <p>Logic is shared between threads, so each compiled form is built in local variables and
+   * published through a single volatile field; a thread either sees all of it or none of it.
+   */
+  public void compile() {
+    // nothing to prepare by default
+  }
+
+  /**
+   * The compiled form of a list of codes.
+   */
+  private static final class CompiledCodes {
+    private final Code[] codes;
+
+    private CompiledCodes(List<Code> codes) {
+      this.codes = codes == null ? null : codes.toArray(new Code[0]);
+    }
+  }
+
+  /**
+   * Add the inputs this logic reads to the given set of inputs. This is used when modules are
+   * loaded to decide when a Guard needs to be re-tested. By default the logic is assumed to read
+   * inputs that are not tracked, so it is re-tested every time.
+   *
+   * @param inputs The set of inputs to add to.
+   */
+  public void collectInputs(Inputs inputs) {
+    inputs.untracked = true;
+  }
+
+  /**
+   * Get the earliest time, after the given time, at which the result of this logic could change
+   * through the passage of time alone, when all other inputs stay the same.
+   *
+   * @param person Person the logic was tested against
+   * @param time Timestamp the logic was tested against
+   * @return the time at which the logic must be re-tested, or Long.MAX_VALUE if never.
+   */
+  public long timeThreshold(Person person, long time) {
+    return Long.MAX_VALUE;
+  }
+
+  /**
+   * Forecast the result of this logic when tested at some time between the given times, if it
+   * can already be known. That is the case when the logic only reads inputs that never change,
+   * such as the gender, or depends on time in the same way across the whole interval. This is
+   * used to stop simulating a patient as soon as they can no longer be kept.
+   *
+   * @param person Person to forecast the logic for
+   * @param from The earliest time the logic could be tested
+   * @param until The latest time the logic could be tested
+   * @return the result of the logic at any time in the interval, or null if it isn't known yet
+   */
+  public Boolean forecast(Person person, long from, long until) {
+    return null;
+  }
+
+  /**
+   * The set of inputs read by a Logic tree: the person attributes, whether it reads the
+   * conditions and allergies present in the health record, and whether it depends on time.
+   * Untracked means the logic reads anything else, such as symptoms, vital signs, observations
+   * or the module history, and must always be re-tested.
+   */
+  public static class Inputs implements Serializable {
+    public final Set<String> attributes = new LinkedHashSet<String>();
+    public boolean record;
+    public boolean time;
+    public boolean untracked;
+  }
+
   /**
    * Find the most recent entry, of a specific type of HealthRecord.Entry
    * within the patient history. May return null.
@@ -47,8 +129,9 @@ public abstract class Logic implements Serializable {
   private static <T extends HealthRecord.Entry> HealthRecord.Entry findEntryFromHistory(
       Person person, Class<T> classType, Code code) {
     // Find the most recent health record entry from the patient history
+    // (compact history records never carry an entry, so only retained states are checked)
     HealthRecord.Entry entry = null;
-    for (State state : person.history) {
+    for (State state : StateHistory.retained(person.history)) {
       if (state.entry != null && classType.isInstance(state.entry)) {
         T candidate = (T) state.entry;
         for (Code candidateCode : candidate.codes) {
@@ -75,6 +158,16 @@ public abstract class Logic implements Serializable {
     public boolean test(Person person, long time) {
       return gender.equals(person.attributes.get(Person.GENDER));
     }
+
+    @Override
+    public Boolean forecast(Person person, long from, long until) {
+      return test(person, from);
+    }
+
+    @Override
+    public void collectInputs(Inputs inputs) {
+      inputs.attributes.add(Person.GENDER);
+    }
   }
 
   /**
@@ -105,6 +198,44 @@ public abstract class Logic implements Serializable {
 
       return Utilities.compare(age, quantity, operator);
     }
+
+    @Override
+    public Boolean forecast(Person person, long from, long until) {
+      if (operator.startsWith("<") || operator.startsWith(">")) {
+        // the age only grows, so an ordering that holds at both ends holds in between
+        boolean result = test(person, from);
+        return result == test(person, until) ? result : null;
+      }
+      return null;
+    }
+
+    @Override
+    public void collectInputs(Inputs inputs) {
+      inputs.time = true;
+    }
+
+    @Override
+    public long timeThreshold(Person person, long time) {
+      // the result can only change when the age in the given unit does
+      LocalDate next;
+      switch (unit) {
+        case "years":
+          next = birthdate(person, time).plusYears(person.ageInYears(time) + 1);
+          break;
+        case "months":
+          next = birthdate(person, time).plusMonths(person.ageInMonths(time) + 1);
+          break;
+        default:
+          return time;
+      }
+      return Utilities.localDateToTimestamp(next);
+    }
+
+    private static LocalDate birthdate(Person person, long time) {
+      // person.age() caches the birthdate as a LocalDate
+      person.age(time);
+      return (LocalDate) person.attributes.get(Person.BIRTHDATE_AS_LOCALDATE);
+    }
   }
 
   /**
@@ -138,6 +269,33 @@ public abstract class Logic implements Serializable {
             + "not currently supported in Date logic.");
       }
     }
+
+    @Override
+    public void collectInputs(Inputs inputs) {
+      inputs.time = true;
+    }
+
+    @Override
+    public long timeThreshold(Person person, long time) {
+      LocalDate today = Utilities.timestampToLocalDate(time);
+      if (year != null) {
+        return Utilities.localDateToTimestamp(LocalDate.of(today.getYear() + 1, 1, 1));
+      } else if (month != null) {
+        return Utilities.localDateToTimestamp(today.withDayOfMonth(1).plusMonths(1));
+      } else {
+        // the comparison against a fixed date only changes at, or just after, that date
+        Calendar testDate = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        testDate.set(date.year, date.month - 1, date.day, date.hour, date.minute, date.second);
+        testDate.set(Calendar.MILLISECOND,date.millisecond);
+        long testTime = testDate.getTimeInMillis();
+        if (time < testTime) {
+          return testTime;
+        } else if (time == testTime) {
+          return time + 1;
+        }
+        return Long.MAX_VALUE;
+      }
+    }
   }
 
   /**
@@ -152,6 +310,11 @@ public abstract class Logic implements Serializable {
     public boolean test(Person person, long time) {
       return category.equals(person.attributes.get(Person.SOCIOECONOMIC_CATEGORY));
     }
+
+    @Override
+    public void collectInputs(Inputs inputs) {
+      inputs.attributes.add(Person.SOCIOECONOMIC_CATEGORY);
+    }
   }
 
   /**
@@ -165,6 +328,16 @@ public abstract class Logic implements Serializable {
     public boolean test(Person person, long time) {
       return race.equalsIgnoreCase((String) person.attributes.get(Person.RACE));
     }
+
+    @Override
+    public Boolean forecast(Person person, long from, long until) {
+      return test(person, from);
+    }
+
+    @Override
+    public void collectInputs(Inputs inputs) {
+      inputs.attributes.add(Person.RACE);
+    }
   }
 
   /**
@@ -199,12 +372,23 @@ public abstract class Logic implements Serializable {
     private String referencedByAttribute;
     private Object value;
     private Code valueCode;
+    private transient volatile CompiledCodes compiled;
+
+    @Override
+    public void compile() {
+      compiled = new CompiledCodes(codes);
+    }
 
     @Override
     public boolean test(Person person, long time) {
       HealthRecord.Observation observation = null;
       if (this.codes != null) {
-        for (Code code : this.codes) {
+        CompiledCodes compiled = this.compiled;
+        if (compiled == null) {
+          compiled = new CompiledCodes(codes);
+          this.compiled = compiled;
+        }
+        for (Code code : compiled.codes) {
           // First, look in the current health record for the latest observation
           HealthRecord.Observation last = person.record.getLatestObservation(code.code);
           if (person.lossOfCareEnabled) {
@@ -279,6 +463,12 @@ public abstract class Logic implements Serializable {
     private String operator;
 
     private Object value;
+    private transient volatile PersonAttributes.Key attributeKey;
+
+    @Override
+    public void compile() {
+      attributeKey = PersonAttributes.intern(attribute);
+    }
 
     @Override
     public boolean test(Person person, long time) {
@@ -286,13 +476,27 @@ public abstract class Logic implements Serializable {
         if (value instanceof String) {
           value = person.attributes.getOrDefault(value, value);
         }
-        return Utilities.compare(person.attributes.get(attribute), value, operator);
+        PersonAttributes.Key attributeKey = this.attributeKey;
+        if (attributeKey == null) {
+          attributeKey = PersonAttributes.intern(attribute);
+          this.attributeKey = attributeKey;
+        }
+        return Utilities.compare(person.attributes.get(attributeKey), value, operator);
       } catch (Exception e) {
         String message = "Attribute Logic error: " + attribute + " " + operator + " " + value;
         message += ": " + e.getMessage();
         throw new RuntimeException(message, e);
       }
     }
+
+    @Override
+    public void collectInputs(Inputs inputs) {
+      inputs.attributes.add(attribute);
+      if (value instanceof String) {
+        // a string value may be the name of another attribute
+        inputs.attributes.add((String) value);
+      }
+    }
   }
 
   /**
@@ -301,6 +505,59 @@ public abstract class Logic implements Serializable {
    */
   private abstract static class GroupedCondition extends Logic {
     protected Collection<Logic> conditions;
+    /** The conditions as an array, so they can be tested without an iterator or stream. */
+    private transient volatile Logic[] children;
+
+    @Override
+    public void compile() {
+      Logic[] children = conditions.toArray(new Logic[0]);
+      for (Logic child : children) {
+        child.compile();
+      }
+      this.children = children;
+    }
+
+    protected Logic[] children() {
+      Logic[] children = this.children;
+      if (children == null) {
+        children = conditions.toArray(new Logic[0]);
+        this.children = children;
+      }
+      return children;
+    }
+
+    @Override
+    public void collectInputs(Inputs inputs) {
+      for (Logic condition : conditions) {
+        condition.collectInputs(inputs);
+      }
+    }
+
+    @Override
+    public long timeThreshold(Person person, long time) {
+      long threshold = Long.MAX_VALUE;
+      for (Logic condition : children()) {
+        threshold = Math.min(threshold, condition.timeThreshold(person, time));
+      }
+      return threshold;
+    }
+
+    /**
+     * Count the children whose forecast is true, and those whose forecast isn't known.
+     * @return an array of the number of true children and the number of unknown children.
+     */
+    protected int[] countForecasts(Person person, long from, long until) {
+      int[] counts = new int[2];
+      for (Logic condition : children()) {
+        Boolean child = condition.forecast(person, from, until);
+        if (child == null) {
+          counts[1]++;
+        } else if (child) {
+          counts[0]++;
+        }
+      }
+      return counts;
+    }
   }
 
   /**
@@ -311,7 +568,26 @@ public abstract class Logic implements Serializable {
   public static class And extends GroupedCondition {
     @Override
     public boolean test(Person person, long time) {
-      return conditions.stream().allMatch(c -> c.test(person, time));
+      for (Logic condition : children()) {
+        if (!condition.test(person, time)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public Boolean forecast(Person person, long from, long until) {
+      Boolean result = true;
+      for (Logic condition : children()) {
+        Boolean child = condition.forecast(person, from, until);
+        if (child == null) {
+          result = null;
+        } else if (!child) {
+          return false;
+        }
+      }
+      return result;
     }
   }
 
@@ -323,7 +599,26 @@ public abstract class Logic implements Serializable {
   public static class Or extends GroupedCondition {
     @Override
     public boolean test(Person person, long time) {
-      return conditions.stream().anyMatch(c -> c.test(person, time));
+      for (Logic condition : children()) {
+        if (condition.test(person, time)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public Boolean forecast(Person person, long from, long until) {
+      Boolean result = false;
+      for (Logic condition : children()) {
+        Boolean child = condition.forecast(person, from, until);
+        if (child == null) {
+          result = null;
+        } else if (child) {
+          return true;
+        }
+      }
+      return result;
     }
   }
 
@@ -335,10 +630,31 @@ public abstract class Logic implements Serializable {
   public static class Not extends Logic {
     private Logic condition;
 
+    @Override
+    public void compile() {
+      condition.compile();
+    }
+
     @Override
     public boolean test(Person person, long time) {
       return !condition.test(person, time);
     }
+
+    @Override
+    public void collectInputs(Inputs inputs) {
+      condition.collectInputs(inputs);
+    }
+
+    @Override
+    public long timeThreshold(Person person, long time) {
+      return condition.timeThreshold(person, time);
+    }
+
+    @Override
+    public Boolean forecast(Person person, long from, long until) {
+      Boolean result = condition.forecast(person, from, until);
+      return result == null ? null : !result;
+    }
   }
 
   /**
@@ -355,7 +671,24 @@ public abstract class Logic implements Serializable {
 
     @Override
     public boolean test(Person person, long time) {
-      return conditions.stream().filter(c -> c.test(person, time)).count() >= minimum;
+      int count = 0;
+      for (Logic condition : children()) {
+        if (condition.test(person, time) && ++count >= minimum) {
+          return true;
+        }
+      }
+      return count >= minimum;
+    }
+
+    @Override
+    public Boolean forecast(Person person, long from, long until) {
+      int[] counts = countForecasts(person, from, until);
+      if (counts[0] >= minimum) {
+        return true;
+      } else if (counts[0] + counts[1] < minimum) {
+        return false;
+      }
+      return null;
     }
   }
 
@@ -369,7 +702,24 @@ public abstract class Logic implements Serializable {
 
     @Override
     public boolean test(Person person, long time) {
-      return conditions.stream().filter(c -> c.test(person, time)).count() <= maximum;
+      int count = 0;
+      for (Logic condition : children()) {
+        if (condition.test(person, time) && ++count > maximum) {
+          return false;
+        }
+      }
+      return count <= maximum;
+    }
+
+    @Override
+    public Boolean forecast(Person person, long from, long until) {
+      int[] counts = countForecasts(person, from, until);
+      if (counts[0] > maximum) {
+        return false;
+      } else if (counts[0] + counts[1] <= maximum) {
+        return true;
+      }
+      return null;
     }
   }
 
@@ -384,6 +734,16 @@ public abstract class Logic implements Serializable {
     public boolean test(Person person, long time) {
       return true;
     }
+
+    @Override
+    public Boolean forecast(Person person, long from, long until) {
+      return true;
+    }
+
+    @Override
+    public void collectInputs(Inputs inputs) {
+      // constant
+    }
   }
 
   /**
@@ -396,6 +756,16 @@ public abstract class Logic implements Serializable {
     public boolean test(Person person, long time) {
       return false;
     }
+
+    @Override
+    public Boolean forecast(Person person, long from, long until) {
+      return false;
+    }
+
+    @Override
+    public void collectInputs(Inputs inputs) {
+      // constant
+    }
   }
 
   /**
@@ -433,6 +803,7 @@ public abstract class Logic implements Serializable {
   private abstract static class ActiveLogic extends Logic {
     protected List<Code> codes;
     protected String referencedByAttribute;
+    private transient volatile CompiledCodes compiled;
 
     abstract boolean checkCode(Person person, HealthRecord.Code code);
 
@@ -442,10 +813,20 @@ public abstract class Logic implements Serializable {
 
     abstract void addItemWhenDataIsDuplicated(Person person, long time, HealthRecord.Entry entry);
 
+    @Override
+    public void compile() {
+      compiled = new CompiledCodes(codes);
+    }
+
     @Override
     public boolean test(Person person, long time) {
       if (this.codes != null) {
-        for (Code code : this.codes) {
+        CompiledCodes compiled = this.compiled;
+        if (compiled == null) {
+          compiled = new CompiledCodes(codes);
+          this.compiled = compiled;
+        }
+        for (Code code : compiled.codes) {
           if (checkCode(person, code)) {
             return true;
           }
@@ -472,6 +853,14 @@ public abstract class Logic implements Serializable {
       throw new RuntimeException(String.format("%s logic must be specified by code or attribute",
           this.getClass().getSimpleName()));
     }
+
+    @Override
+    public void collectInputs(Inputs inputs) {
+      inputs.record = true;
+      if (referencedByAttribute != null) {
+        inputs.attributes.add(referencedByAttribute);
+      }
+    }
   }
 
   /**
@@ -537,6 +926,12 @@ public abstract class Logic implements Serializable {
       return person.record.medicationActive(code.code);
     }
 
+    @Override
+    public void collectInputs(Inputs inputs) {
+      // medications can be stopped without being removed from the record
+      inputs.untracked = true;
+    }
+
     @Override
     boolean checkAttribute(Person person, Entry entry) {
       return person.record.medicationActive(entry.type);
@@ -563,6 +958,12 @@ public abstract class Logic implements Serializable {
       return person.record.careplanActive(code.code);
     }
 
+    @Override
+    public void collectInputs(Inputs inputs) {
+      // care plans can be stopped without being removed from the record
+      inputs.untracked = true;
+    }
+
     @Override
     boolean checkAttribute(Person person, Entry entry) {
       return person.record.careplanActive(entry.type);
@@ -20,16 +20,19 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.Enumeration;
-import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Properties;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
@@ -47,14 +50,16 @@ import org.mitre.synthea.modules.QualityOfLifeModule;
 import org.mitre.synthea.modules.WeightLossModule;
 import org.mitre.synthea.modules.covid.C19ImmunizationModule;
 import org.mitre.synthea.world.agents.Person;
+import org.mitre.synthea.world.agents.PersonAttributes;
 
 /**
  * Module represents the entry point of a generic module.
  *
  * <p>The `modules` map is the static list of generic modules. It is loaded once per process,
- * and the list of modules is shared between the generated population. Because we share modules
- * across the population, it is important that States are cloned before they are executed.
- * This keeps the "master" copy of the module clean.
+ * and the list of modules is shared between the generated population. Each person receives a
+ * lightweight clone of a module, which shares the immutable graph of State definitions with
+ * the "master" copy. Because we share States across the population, it is important that
+ * States are cloned before they are executed. This keeps the "master" copy of the module clean.
  */
 public class Module implements Cloneable, Serializable {
 
@@ -188,7 +193,8 @@ public class Module implements Cloneable, Serializable {
   }
 
   /**
-   * Loads the module defined from the file at the given path.
+   * Loads the module defined from the file at the given path. If "generate.module_cache" is set,
+   * the module is read from the module cache when its JSON and overrides are unchanged.
    *
    * @param path Path to the module file
    * @param submodule whether or not this module is a submodule
@@ -202,11 +208,25 @@ public class Module implements Cloneable, Serializable {
     String jsonString = localFiles
             ? new String(Files.readAllBytes(path), StandardCharsets.UTF_8)
             : Utilities.readResource(path.toString());
+    String cacheKey = null;
+    if (ModuleCache.enabled()) {
+      cacheKey = ModuleCache.key(path, jsonString, overrides, submodule);
+      Module cached = ModuleCache.read(cacheKey);
+      if (cached != null) {
+        // the compiled logic is not cached
+        cached.compileLogic();
+        return cached;
+      }
+    }
     if (overrides != null) {
       jsonString = applyOverrides(jsonString, overrides, path.getFileName().toString());
     }
     JsonObject object = JsonParser.parseString(jsonString).getAsJsonObject();
-    return new Module(object, submodule);
+    Module module = new Module(object, submodule);
+    if (cacheKey != null) {
+      ModuleCache.write(cacheKey, module);
+    }
+    return module;
   }
 
   private static String applyOverrides(String jsonString, Properties overrides,
@@ -299,7 +319,13 @@ public class Module implements Cloneable, Serializable {
   public String submoduleName;
   public Double gmfVersion;
   public List<String> remarks;
+  /** State definitions, shared by every clone of this module. Never modify these. */
   private Map<String, State> states;
+  /** The attribute holding the person's history in this module. */
+  private transient PersonAttributes.Key historyKey;
+  /** The attribute that tracks wellness encounters for this module, and the name it is for. */
+  private transient PersonAttributes.Key wellnessKey;
+  private transient String wellnessKeyName;
 
   protected Module() {
     // no-args constructor only allowed to be used by subclasses
@@ -342,10 +368,27 @@ public class Module implements Cloneable, Serializable {
       State state = State.build(this, entry.getKey(), entry.getValue().getAsJsonObject());
       states.put(entry.getKey(), state);
     }
+    compileLogic();
+
+    // intern the attributes used on every timestep. Clones of a submodule
+    // keep their history under the submodule's own name.
+    historyKey = PersonAttributes.intern(name);
+    wellnessKey();
+  }
+
+  /**
+   * Compile the logic of every state, so it is ready before the module is shared between threads.
+   */
+  private void compileLogic() {
+    for (State state : states.values()) {
+      state.compileLogic();
+    }
   }
 
   /**
    * Clone this module. Never provide the original.
+   * The clone shares the State definitions of the original, which are only ever cloned
+   * (never executed) so there is no need to copy them for every person.
    */
   public Module clone() {
     Module clone = new Module();
@@ -358,17 +401,48 @@ public class Module implements Cloneable, Serializable {
       clone.submoduleName = clone.name;
     }
     clone.remarks = this.remarks;
-    if (this.states != null) {
-      clone.states = new ConcurrentHashMap<String, State>();
-      for (String key : this.states.keySet()) {
-        State state = this.states.get(key).clone();
-        state.module = clone;
-        clone.states.put(key, state);
-      }
-    }
+    clone.states = this.states;
+    clone.historyKey = this.historyKey;
+    clone.wellnessKey = this.wellnessKey;
+    clone.wellnessKeyName = this.wellnessKeyName;
     return clone;
   }
 
+  /**
+   * Get the attribute that holds a person's history in this module.
+   */
+  PersonAttributes.Key historyKey() {
+    String key = this.submodule ? this.submoduleName : this.name;
+    if (historyKey == null || !historyKey.getName().equals(key)) {
+      historyKey = PersonAttributes.intern(key);
+    }
+    return historyKey;
+  }
+
+  /**
+   * Get the attribute that tracks whether the current wellness encounter has been used by this
+   * module. The key is only built when the module name changes, not on every timestep.
+   */
+  PersonAttributes.Key wellnessKey() {
+    if (wellnessKey == null || !this.name.equals(wellnessKeyName)) {
+      wellnessKey = PersonAttributes.intern(
+          EncounterModule.ACTIVE_WELLNESS_ENCOUNTER + " " + this.name);
+      wellnessKeyName = this.name;
+    }
+    return wellnessKey;
+  }
+
+  /**
+   * Take the name of the module that called this submodule, so the submodule acts on the
+   * encounters and wellness visits of the parent.
+   * @param parent the module that called this submodule.
+   */
+  void runAs(Module parent) {
+    this.name = parent.name;
+    this.wellnessKey = parent.wellnessKey();
+    this.wellnessKeyName = parent.name;
+  }
+
   /**
    * Process this Module with the given Person at the specified time within the simulation.
    * Processing will complete if the person dies.
@@ -400,42 +474,39 @@ public class Module implements Cloneable, Serializable {
       return true;
     }
     // Possibly reset wellness encounters for this module.
-    String activeKey = EncounterModule.ACTIVE_WELLNESS_ENCOUNTER + " " + this.name;
+    PersonAttributes.Key activeKey = wellnessKey();
     if (!person.attributes.containsKey(activeKey)) {
       // "false" means the person has not entered (or is still within) a wellness encounter
-      person.attributes.put(activeKey, false);
+      person.attributes.putBoolean(activeKey, false);
     }
     person.history = null;
     // what current state is this person in?
-    String historyKey = this.name;
-    if (this.submodule) {
-      historyKey = this.submoduleName;
-    }
-    if (!person.attributes.containsKey(historyKey)) {
-      person.history = new LinkedList<State>();
+    PersonAttributes.Key historyAttribute = historyKey();
+    String historyKey = historyAttribute.getName();
+    person.history = (List<State>) person.attributes.get(historyAttribute);
+    if (person.history == null) {
+      person.history = new StateHistory();
       State initial = initialState();
       person.history.add(initial);
-      person.attributes.put(historyKey, person.history);
+      person.attributes.put(historyAttribute, person.history);
       /* TODO - determining whether or not this the first time a person has
          entered a submodule is currently not easily computed, so we use `true` below. */
       TransitionMetrics.enter(historyKey, initial.name, true);
     }
-    person.history = (List<State>) person.attributes.get(historyKey);
     State current = person.history.get(0);
     // System.out.println(" Resuming at " + current.name);
     // process the current state,
     // looping until module is finished,
     // probably more than one state
     String nextStateName = null;
-    while (current.run(person, time, terminateOnDeath)) {
+    while (run(current, person, time, terminateOnDeath)) {
       Long entered = current.entered;
       Long exited = current.exited;
       Long duration = (exited - entered);
       nextStateName = current.transition(person, time);
       boolean firstTime = !person.hadPriorState(nextStateName);
       TransitionMetrics.exit(historyKey, current.name, nextStateName, duration);
-      current = states.get(nextStateName).clone(); // clone the state so we don't dirty the original
-      person.history.add(0, current);
+      current = enter(person, nextStateName);
       TransitionMetrics.enter(historyKey, nextStateName, firstTime);
       if (exited != null && exited < time) {
         // stop if the patient died in the meantime...
@@ -455,8 +526,77 @@ public class Module implements Cloneable, Serializable {
     return (current instanceof State.Terminal);
   }
 
+  /**
+   * Run a single state, profiling it if this execution is sampled. A CallSubmodule is not
+   * profiled, since the states of the submodule are.
+   * @return whether the state is ready to transition.
+   */
+  private static boolean run(State state, Person person, long time, boolean terminateOnDeath) {
+    if (state instanceof State.CallSubmodule || !TransitionMetrics.shouldProfile()) {
+      return state.run(person, time, terminateOnDeath);
+    }
+    long profileStart = System.nanoTime();
+    long allocated = TransitionMetrics.allocatedBytes();
+    boolean exited = state.run(person, time, terminateOnDeath);
+    TransitionMetrics.profileState(state.getClass().getSimpleName(), profileStart, allocated);
+    return exited;
+  }
+
+  /**
+   * Get the earliest time at which this module next needs to be processed for the person,
+   * based on the State the person is currently in. Java modules, and modules the person has
+   * not started yet, need to be processed at every timestep.
+   *
+   * @param person the person being simulated
+   * @param time the date within the simulated world, at which this module was last processed.
+   * @return the time at which this module next needs to be processed.
+   */
+  @SuppressWarnings("unchecked")
+  public long wakeTime(Person person, long time) {
+    if (states == null) {
+      return time;
+    }
+    List<State> history = (List<State>) person.attributes.get(historyKey());
+    if (history == null || history.isEmpty()) {
+      return time;
+    }
+    return history.get(0).wakeTime(time);
+  }
+
   private State initialState() {
-    return states.get("Initial").clone(); // all Initial states have name Initial
+    return instantiate("Initial"); // all Initial states have name Initial
+  }
+
+  /**
+   * Move the person into the named State, adding it to the front of their history.
+   * States which the history stores as compact records re-use a single instance per person,
+   * held by the person's StateHistory, all others are freshly cloned from the shared definition.
+   * The keep module is shared by every person, so nothing here may be kept on the Module.
+   * @param person the person being simulated
+   * @param name - case-sensitive state name.
+   * @return the State the person is now in.
+   */
+  private State enter(Person person, String name) {
+    State state;
+    if (!states.get(name).retainInHistory() && person.history instanceof StateHistory) {
+      state = ((StateHistory) person.history).reuse(this, name);
+    } else {
+      state = instantiate(name);
+    }
+    person.history.add(0, state);
+    return state;
+  }
+
+  /**
+   * Clone the named State so we don't dirty the shared definition, and bind the clone to
+   * this module so it acts under this module's (possibly submodule) name.
+   * @param name - case-sensitive state name.
+   * @return a new State, ready to be executed.
+   */
+  private State instantiate(String name) {
+    State state = states.get(name).clone();
+    state.module = this;
+    return state;
   }
 
   /**
@@ -468,6 +608,42 @@ public class Module implements Cloneable, Serializable {
     return states.get(name);
   }
 
+  /**
+   * Determine whether processing this module, at some time between the given times, could end
+   * in the given state. Transitions are only ruled out when their conditions can already be
+   * forecast for the person (see Logic.forecast()), so a true result doesn't mean the state will
+   * be reached.
+   * @param name - case-sensitive state name.
+   * @param person - the person the module would be processed for.
+   * @param from - the earliest time the module could be processed.
+   * @param until - the latest time the module could be processed.
+   * @return false if the state can't be reached, otherwise true.
+   */
+  public boolean canReach(String name, Person person, long from, long until) {
+    if (states == null) {
+      return true;
+    }
+    Set<String> visited = new HashSet<String>();
+    Deque<String> pending = new ArrayDeque<String>();
+    pending.add("Initial");
+    while (!pending.isEmpty()) {
+      String next = pending.pop();
+      if (next.equals(name)) {
+        return true;
+      }
+      State state = states.get(next);
+      if (state == null || !visited.add(next) || state.getTransition() == null) {
+        continue;
+      }
+      Collection<String> following = state.getTransition().forecast(person, from, until);
+      if (following == null) {
+        return true;
+      }
+      pending.addAll(following);
+    }
+    return false;
+  }
+
   /**
    * Get a collection of the names of all the states this Module contains.
    *
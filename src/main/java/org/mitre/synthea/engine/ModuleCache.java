@@ -0,0 +1,140 @@
+package org.mitre.synthea.engine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.mitre.synthea.helpers.Config;
+import org.mitre.synthea.helpers.Utilities;
+
+/**
+ * ModuleCache keeps generic modules in Java serialized form, so that later runs can skip reading
+ * the JSON with Gson, applying the module overrides with JsonPath, and building every State.
+ *
+ * <p>Each module is a file in the cache folder, named by a SHA-256 hash of everything the loaded
+ * module depends on: the cache format, the Synthea version, the path and JSON of the module, the
+ * overrides that apply to it, and whether it was loaded as a submodule. A changed module or
+ * override therefore misses the cache rather than loading stale definitions. A cache file that
+ * cannot be read, for example after the classes of the engine change, is replaced.
+ */
+final class ModuleCache {
+  /** Incremented whenever the contents of the cache files change incompatibly. */
+  private static final int FORMAT = 1;
+
+  private ModuleCache() {
+    // static methods only
+  }
+
+  /**
+   * Whether the cache is enabled, with the "generate.module_cache" configuration setting.
+   * @return true if modules should be cached.
+   */
+  static boolean enabled() {
+    return Config.getAsBoolean("generate.module_cache", false);
+  }
+
+  /**
+   * Get the cache key of a module.
+   * @param path the path the module is loaded from.
+   * @param json the JSON of the module, before any overrides are applied.
+   * @param overrides the module overrides, or null.
+   * @param submodule whether the module is a submodule.
+   * @return the key, as a hex string.
+   */
+  static String key(Path path, String json, Properties overrides, boolean submodule) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException("Couldn't create a module cache key", e);
+    }
+    StringBuilder identity = new StringBuilder();
+    identity.append(FORMAT).append('\n');
+    identity.append(Utilities.SYNTHEA_VERSION).append('\n');
+    identity.append(Module.GMF_VERSION).append('\n');
+    identity.append(path.toString().replace("\\", "/")).append('\n');
+    identity.append(submodule).append('\n');
+    if (overrides != null) {
+      // only the overrides of this module, in a stable order
+      String prefix = path.getFileName().toString() + "::";
+      TreeMap<String, String> applicable = new TreeMap<String, String>();
+      overrides.forEach((key, value) -> {
+        if (((String) key).startsWith(prefix)) {
+          applicable.put((String) key, (String) value);
+        }
+      });
+      applicable.forEach((key, value) -> identity.append(key).append('=').append(value)
+          .append('\n'));
+    }
+    digest.update(identity.toString().getBytes(StandardCharsets.UTF_8));
+    digest.update(json.getBytes(StandardCharsets.UTF_8));
+    StringBuilder hex = new StringBuilder();
+    for (byte b : digest.digest()) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+
+  /**
+   * Read a module from the cache.
+   * @param key the cache key of the module.
+   * @return the module, or null if it is not in the cache or could not be read.
+   */
+  static Module read(String key) {
+    File file = file(key);
+    if (!file.exists()) {
+      return null;
+    }
+    try (ObjectInputStream in = new ObjectInputStream(
+        new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+      return (Module) in.readObject();
+    } catch (IOException | ClassNotFoundException | ClassCastException e) {
+      System.out.printf("Unable to read module cache %s, error: %s\n", file, e.getMessage());
+      file.delete();
+      return null;
+    }
+  }
+
+  /**
+   * Write a module to the cache. The file is written under a temporary name and then moved into
+   * place, so concurrent runs never read a partial file.
+   * @param key the cache key of the module.
+   * @param module the module, as built from its JSON.
+   */
+  static void write(String key, Module module) {
+    File file = file(key);
+    Path temp = null;
+    try {
+      file.getParentFile().mkdirs();
+      temp = Files.createTempFile(file.getParentFile().toPath(), key, ".tmp");
+      try (ObjectOutputStream out = new ObjectOutputStream(
+          new BufferedOutputStream(Files.newOutputStream(temp)))) {
+        out.writeObject(module);
+      }
+      Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      System.out.printf("Unable to write module cache %s, error: %s\n", file, e.getMessage());
+      if (temp != null) {
+        temp.toFile().delete();
+      }
+    }
+  }
+
+  private static File file(String key) {
+    return Paths.get(Config.get("generate.module_cache.folder", "cache/modules"), key + ".bin")
+        .toFile();
+  }
+}
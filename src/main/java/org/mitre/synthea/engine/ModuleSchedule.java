@@ -0,0 +1,107 @@
+package org.mitre.synthea.engine;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.mitre.synthea.helpers.TransitionMetrics;
+import org.mitre.synthea.world.agents.Person;
+
+/**
+ * ModuleSchedule decides which of a person's current modules need to be processed at each
+ * timestep. A module parked in a State that cannot change before a known future time (such as a
+ * Delay) is moved onto a priority queue keyed on that wake time, and skipped until it is due.
+ * Modules that are due are still processed in their original order, so the simulation is the
+ * same as processing every module at every timestep.
+ */
+class ModuleSchedule {
+  private final List<Module> modules;
+  private final boolean skipParkedModules;
+  /** Modules to process at the next timestep. */
+  private final BitSet awake;
+  private final BitSet completed;
+  private final PriorityQueue<Wake> parked;
+
+  /** A module that is parked until the given time. */
+  private static final class Wake implements Comparable<Wake> {
+    private final long time;
+    private final int index;
+
+    private Wake(long time, int index) {
+      this.time = time;
+      this.index = index;
+    }
+
+    @Override
+    public int compareTo(Wake other) {
+      int result = Long.compare(time, other.time);
+      return result != 0 ? result : Integer.compare(index, other.index);
+    }
+  }
+
+  /**
+   * Create a new schedule in which every module is due.
+   * @param modules the person's current modules.
+   * @param skipParkedModules whether modules may be parked until their wake time.
+   *     If false, every module is processed at every timestep.
+   */
+  ModuleSchedule(List<Module> modules, boolean skipParkedModules) {
+    this.modules = modules;
+    this.skipParkedModules = skipParkedModules;
+    this.awake = new BitSet(modules.size());
+    this.awake.set(0, modules.size());
+    this.completed = new BitSet(modules.size());
+    this.parked = new PriorityQueue<Wake>();
+  }
+
+  /**
+   * Process each module that is due at the given time, in order.
+   * @param person the person being simulated.
+   * @param time the date within the simulated world.
+   */
+  void process(Person person, long time) {
+    while (!parked.isEmpty() && parked.peek().time <= time) {
+      awake.set(parked.poll().index);
+    }
+    for (int i = awake.nextSetBit(0); i >= 0; i = awake.nextSetBit(i + 1)) {
+      Module module = modules.get(i);
+      if (process(module, person, time)) {
+        // this module has completed/terminated.
+        awake.clear(i);
+        completed.set(i);
+      } else if (skipParkedModules) {
+        long wakeTime = module.wakeTime(person, time);
+        if (wakeTime > time) {
+          awake.clear(i);
+          parked.add(new Wake(wakeTime, i));
+        }
+      }
+    }
+  }
+
+  /**
+   * Process a single module, profiling it if this execution is sampled.
+   * @return whether the module completed.
+   */
+  private static boolean process(Module module, Person person, long time) {
+    if (!TransitionMetrics.shouldProfile()) {
+      return module.process(person, time);
+    }
+    long profileStart = System.nanoTime();
+    long allocated = TransitionMetrics.allocatedBytes();
+    boolean completed = module.process(person, time);
+    TransitionMetrics.profileModule(module.name, profileStart, allocated);
+    return completed;
+  }
+
+  /**
+   * Remove the modules that have completed from the person's list of current modules.
+   */
+  void removeCompleted() {
+    for (int i = completed.previousSetBit(modules.size() - 1); i >= 0;
+        i = completed.previousSetBit(i - 1)) {
+      modules.remove(i);
+    }
+    completed.clear();
+  }
+}
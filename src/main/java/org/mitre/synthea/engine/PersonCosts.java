@@ -0,0 +1,145 @@
+package org.mitre.synthea.engine;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+
+import org.mitre.synthea.helpers.TransitionMetrics;
+import org.mitre.synthea.world.agents.Person;
+import org.mitre.synthea.world.concepts.HealthRecord.Encounter;
+
+/**
+ * PersonCosts records what it cost to simulate and export each person, to find the outliers
+ * that use far more memory or time than the rest (for example, persons with huge numbers of
+ * observations from the physiology or dialysis modules).
+ *
+ * <p>Each attempt at a person is a line of a CSV file: the index and seed of the attempt, whether
+ * it was exported or rejected, the age and size of the record when the simulation finished, and
+ * the bytes allocated and CPU time used by the thread from the start of the simulation to the end
+ * of the export, along with the real time taken by the export alone. The JVM cannot measure the
+ * allocations or CPU time of a virtual thread, so those cells are left empty for attempts run on
+ * one, rather than recorded as 0. Each line is flushed as it
+ * is written, so the file is complete up to the last finished attempt if the run runs out of
+ * memory.
+ */
+final class PersonCosts implements Closeable {
+  private static final String HEADER = "index,seed,attempt,exported,age,encounters,observations,"
+      + "allocated_bytes,cpu_ns,export_ns";
+  private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+  private final Writer writer;
+
+  /**
+   * Start a new file of person costs, replacing any existing file.
+   * @param file the CSV file.
+   * @throws IOException if the file cannot be written.
+   */
+  PersonCosts(File file) throws IOException {
+    file.getParentFile().mkdirs();
+    writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8);
+    writer.write(HEADER + "\n");
+    writer.flush();
+  }
+
+  /**
+   * Start measuring an attempt at a person, on the current thread.
+   * @param index the index of the person in the population.
+   * @param seed the seed of this attempt.
+   * @param attempt the number of the attempt, starting at 1.
+   * @return the measurements of the attempt so far.
+   */
+  Sample start(int index, long seed, int attempt) {
+    return new Sample(index, seed, attempt);
+  }
+
+  /**
+   * Finish measuring an attempt, on the thread that started it, and write it to the file.
+   * @param sample the measurements of the attempt.
+   * @param exported whether the attempt was exported, rather than rejected.
+   * @param exportNanos the real time taken by the export, or 0 if the attempt was rejected.
+   */
+  void write(Sample sample, boolean exported, long exportNanos) {
+    String line = sample.index + "," + sample.seed + "," + sample.attempt + ","
+        + exported + "," + sample.age + "," + sample.encounters + ","
+        + sample.observations + ","
+        + difference(sample.allocated, TransitionMetrics.allocatedBytes()) + ","
+        + difference(sample.cpu, cpuTime()) + "," + exportNanos + "\n";
+    synchronized (this) {
+      try {
+        writer.write(line);
+        writer.flush();
+      } catch (IOException e) {
+        System.out.printf("Unable to write person costs, error: %s\n", e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Get the difference between two measurements as a CSV cell, which is empty if either one
+   * could not be measured.
+   */
+  private static String difference(long start, long end) {
+    return start < 0 || end < 0 ? "" : Long.toString(end - start);
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    writer.close();
+  }
+
+  /**
+   * Get the CPU time used so far by the current thread, if the JVM can measure it.
+   * CPU time cannot be measured on virtual threads.
+   * @return the CPU time in nanoseconds, or -1 if it cannot be measured.
+   */
+  static long cpuTime() {
+    if (threads.isCurrentThreadCpuTimeSupported() && threads.isThreadCpuTimeEnabled()
+        && !ExecutorStrategy.isVirtual(Thread.currentThread())) {
+      return threads.getCurrentThreadCpuTime();
+    }
+    return -1L;
+  }
+
+  /**
+   * The measurements of one attempt at a person.
+   */
+  static final class Sample {
+    private final int index;
+    private final long seed;
+    private final int attempt;
+    private final long allocated;
+    private final long cpu;
+    private int age;
+    private int encounters;
+    private int observations;
+
+    private Sample(int index, long seed, int attempt) {
+      this.index = index;
+      this.seed = seed;
+      this.attempt = attempt;
+      this.allocated = TransitionMetrics.allocatedBytes();
+      this.cpu = cpuTime();
+    }
+
+    /**
+     * Record the size of the person's record when the simulation finished, before the export
+     * filters it.
+     * @param person the simulated person.
+     * @param time the time the simulation finished.
+     */
+    void simulated(Person person, long time) {
+      age = person.ageInYears(time);
+      encounters = person.record.encounters.size();
+      observations = 0;
+      for (Encounter encounter : person.record.encounters) {
+        observations += encounter.observations.size();
+      }
+    }
+  }
+}
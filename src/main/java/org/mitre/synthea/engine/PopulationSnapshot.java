@@ -0,0 +1,297 @@
+package org.mitre.synthea.engine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.mitre.synthea.world.agents.Person;
+
+/**
+ * PopulationSnapshot reads and writes population snapshots (the -u and -i options) one chunk
+ * of persons at a time, so neither saving nor loading a snapshot needs the whole population in
+ * memory at once.
+ *
+ * <p>A snapshot starts with a header of a magic number and a format version. Each chunk that
+ * follows is the number of persons in the chunk, the length in bytes of the chunk, and the
+ * persons in the chunk written with Java serialization. Persons within a chunk share objects
+ * such as Providers, so they are only written once per chunk. A chunk with zero persons marks
+ * the end of the snapshot; a snapshot that ends without one (because the run was interrupted)
+ * can still be read up to the last complete chunk.
+ *
+ * <p>Snapshots written by earlier versions, which are a single serialized List of Persons,
+ * can still be read.
+ */
+public final class PopulationSnapshot {
+  /** The magic number at the start of every snapshot, "SYNS". */
+  static final int MAGIC = 0x53594E53;
+  /** The current version of the snapshot format. */
+  static final int VERSION = 1;
+  /** The number of persons written per chunk by default. */
+  public static final int DEFAULT_CHUNK_SIZE = 32;
+
+  /** The first two bytes of a Java serialization stream, used by earlier snapshots. */
+  private static final int JAVA_SERIALIZATION_MAGIC = 0xACED;
+
+  private PopulationSnapshot() {
+    // static helpers only
+  }
+
+  /**
+   * A chunk of persons read from a snapshot. The persons are only deserialized when decode()
+   * is called, so this can be done on another thread.
+   */
+  public static final class Chunk {
+    /** The index of the first person in this chunk, within the whole snapshot. */
+    public final int firstIndex;
+    /** The number of persons in this chunk. */
+    public final int size;
+    private byte[] data;
+    private List<Person> persons;
+
+    private Chunk(int firstIndex, int size, byte[] data) {
+      this.firstIndex = firstIndex;
+      this.size = size;
+      this.data = data;
+    }
+
+    private Chunk(int firstIndex, List<Person> persons) {
+      this.firstIndex = firstIndex;
+      this.size = persons.size();
+      this.persons = persons;
+    }
+
+    /**
+     * Deserialize the persons in this chunk. The serialized form is released afterwards.
+     * @return the persons in this chunk, in the order they were written.
+     * @throws IOException if the chunk cannot be deserialized.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized List<Person> decode() throws IOException {
+      if (persons == null) {
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data))) {
+          persons = new ArrayList<Person>(size);
+          for (int i = 0; i < size; i++) {
+            persons.add((Person) ois.readObject());
+          }
+        } catch (ClassNotFoundException e) {
+          throw new IOException("Unable to deserialize snapshot chunk", e);
+        }
+        data = null;
+      }
+      return persons;
+    }
+  }
+
+  /**
+   * Writes persons to a snapshot as they complete. Safe to use from multiple threads.
+   *
+   * <p>Each person is serialized as soon as they are added, so they may be modified (for
+   * example, filtered by an exporter) or discarded right afterwards. Persons are serialized into
+   * one of a pool of open chunks, one per thread adding at the same time, so writer threads
+   * don't wait for each other while serializing; they only wait while a full chunk is copied to
+   * the file. A person stays reachable until their chunk is written, so at most chunkSize persons
+   * per open chunk are held in memory.
+   */
+  public static final class Writer implements Closeable {
+    private final DataOutputStream out;
+    private final int chunkSize;
+    /** The open chunks that no thread is currently adding to. */
+    private final ConcurrentLinkedQueue<OpenChunk> idle = new ConcurrentLinkedQueue<OpenChunk>();
+    private volatile boolean closed;
+    private IOException error;
+
+    /** A chunk that persons are being serialized into. */
+    private static final class OpenChunk {
+      private ByteArrayOutputStream bytes;
+      private ObjectOutputStream oos;
+      private int count;
+
+      private void start() throws IOException {
+        bytes = new ByteArrayOutputStream();
+        oos = new ObjectOutputStream(bytes);
+        count = 0;
+      }
+    }
+
+    /**
+     * Create a new snapshot file and write the header.
+     * @param file the file to write.
+     * @param chunkSize the number of persons to write per chunk.
+     * @throws IOException if the file cannot be written.
+     */
+    public Writer(File file, int chunkSize) throws IOException {
+      if (chunkSize < 1) {
+        throw new IllegalArgumentException("Illegal snapshot chunk size (" + chunkSize + ")");
+      }
+      this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+      this.chunkSize = chunkSize;
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+    }
+
+    /**
+     * Add a person to the snapshot. The person is serialized before this returns.
+     * @param person the person to add.
+     */
+    public void add(Person person) {
+      if (closed) {
+        throw new IllegalStateException("Population snapshot is already closed");
+      }
+      OpenChunk chunk = idle.poll();
+      try {
+        if (chunk == null) {
+          chunk = new OpenChunk();
+          chunk.start();
+        }
+        chunk.oos.writeObject(person);
+        chunk.count++;
+        if (chunk.count >= chunkSize) {
+          writeChunk(chunk);
+          chunk.start();
+        }
+        idle.add(chunk);
+      } catch (IOException e) {
+        // the chunk may be partly written, so it is dropped
+        failed(e);
+      }
+    }
+
+    private void writeChunk(OpenChunk chunk) throws IOException {
+      chunk.oos.close();
+      synchronized (out) {
+        out.writeInt(chunk.count);
+        out.writeInt(chunk.bytes.size());
+        chunk.bytes.writeTo(out);
+      }
+    }
+
+    private synchronized void failed(IOException e) {
+      if (error == null) {
+        error = e;
+      }
+    }
+
+    /**
+     * Write the remaining partly filled chunks and the end of snapshot marker, and close the
+     * file. No persons may be added during or after this call.
+     * @throws IOException if any part of the snapshot could not be written.
+     */
+    @Override
+    public void close() throws IOException {
+      closed = true;
+      OpenChunk chunk;
+      while ((chunk = idle.poll()) != null) {
+        if (chunk.count > 0) {
+          try {
+            writeChunk(chunk);
+          } catch (IOException e) {
+            failed(e);
+          }
+        }
+      }
+      synchronized (out) {
+        out.writeInt(0);
+        out.close();
+      }
+      synchronized (this) {
+        if (error != null) {
+          throw error;
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads the chunks of a snapshot in order, without deserializing the persons in them.
+   */
+  public static final class Reader implements Closeable {
+    private final DataInputStream in;
+    private final List<Person> legacy;
+    private int nextIndex;
+    private boolean finished;
+
+    /**
+     * Open a snapshot and check its header.
+     * @param file the snapshot file.
+     * @throws IOException if the file is not a snapshot, or is from a newer version.
+     */
+    @SuppressWarnings("unchecked")
+    public Reader(File file) throws IOException {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      in.mark(4);
+      int magic = in.readInt();
+      if (magic == MAGIC) {
+        int version = in.readInt();
+        if (version > VERSION) {
+          in.close();
+          throw new IOException(String.format("Snapshot %s is format version %d, "
+              + "this version of Synthea reads up to version %d", file, version, VERSION));
+        }
+        legacy = null;
+      } else if ((magic >>> 16) == JAVA_SERIALIZATION_MAGIC) {
+        // a snapshot from an earlier version, which is a single serialized List
+        in.reset();
+        try (ObjectInputStream ois = new ObjectInputStream(in)) {
+          legacy = (List<Person>) ois.readObject();
+        } catch (ClassNotFoundException e) {
+          throw new IOException("Unable to read snapshot " + file, e);
+        }
+      } else {
+        in.close();
+        throw new StreamCorruptedException(file + " is not a population snapshot");
+      }
+    }
+
+    /**
+     * Read the next chunk of the snapshot.
+     * @return the next chunk, or null at the end of the snapshot.
+     * @throws IOException if the snapshot cannot be read.
+     */
+    public Chunk next() throws IOException {
+      if (finished) {
+        return null;
+      }
+      if (legacy != null) {
+        finished = true;
+        return legacy.isEmpty() ? null : new Chunk(0, legacy);
+      }
+      try {
+        int size = in.readInt();
+        if (size <= 0) {
+          finished = true;
+          return null;
+        }
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        Chunk chunk = new Chunk(nextIndex, size, data);
+        nextIndex += size;
+        return chunk;
+      } catch (EOFException e) {
+        // the run that wrote the snapshot did not finish, stop at the last complete chunk
+        System.out.printf("Population snapshot is incomplete, read %d persons\n", nextIndex);
+        finished = true;
+        return null;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+}
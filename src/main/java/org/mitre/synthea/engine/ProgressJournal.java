@@ -0,0 +1,469 @@
+package org.mitre.synthea.engine;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.mitre.synthea.helpers.Config;
+
+/**
+ * ProgressJournal records the progress of a generation run, so that a run that is killed part
+ * way through can be resumed rather than started again from the beginning.
+ *
+ * <p>The journal is a text file. After a header identifying the run, each completed person is
+ * appended as a "done" line with their index and the seed they were finally generated from
+ * (after any retries), preceded by an "unexported" line for each attempt the exporters turned
+ * down. Periodically the Generator waits for every person in flight to complete
+ * and writes a checkpoint: the number of completed persons and the time, the state of the
+ * exporters that is not kept in their output files (such as the next BFD and CSV identifiers),
+ * and the length of each shared output file (the CSV and bulk NDJSON files in the exporter
+ * folders that many persons append to), followed by an "end" line.
+ *
+ * <p>On resume, the journal is cut back to the last complete checkpoint. Shared output files are
+ * truncated to their recorded lengths, and any created since are deleted, which removes the rows
+ * of persons that were in flight. Files written per person since the checkpoint are deleted too.
+ * Files outside of the exporter folders are never changed. The persons completed by the
+ * checkpoint are then simulated again from their seeds, but not exported, so the statistics of
+ * the run and the exporters that run once the population is complete include them, and the rest
+ * are generated from the same seeds and exporter state as an uninterrupted run. A checkpoint is
+ * also written when the journal is created, so output files that existed before the run are kept.
+ *
+ * <p>The header records the options and configuration that decide which persons are generated
+ * and how they are exported. A run can only be resumed with the same ones.
+ */
+final class ProgressJournal implements Closeable {
+  private static final String HEADER = "synthea-journal 1";
+  /** The exporter folders with files that many persons append to. */
+  private static final List<String> SHARED_OUTPUT_FOLDERS = Arrays.asList("csv", "cdw", "cpcds",
+      "bfd", "fhir", "fhir_stu3", "fhir_dstu2", "symptoms/csv");
+  /** The exporter folders with files written for each person. */
+  private static final List<String> PERSON_OUTPUT_FOLDERS = Arrays.asList("ccda", "fhir",
+      "fhir_stu3", "fhir_dstu2", "json", "notes", "text", "text_encounters", "symptoms/text");
+  /** The options that a resumed run takes from the journal, rather than having to match. */
+  private static final List<String> RESTORED_OPTIONS = Arrays.asList("seed", "clinicianSeed",
+      "population", "referenceTime", "endTime", "shardIndex", "shardCount", "counterSeeds");
+  /**
+   * Settings that change how a run is executed or measured, but not the persons it generates or
+   * their exports, so may differ when it is resumed. Settings starting with these are ignored.
+   */
+  private static final List<String> EXECUTION_SETTINGS = Arrays.asList(
+      "generate.thread_pool_size", "generate.executor_strategy", "generate.max_in_flight",
+      "generate.checkpoint_interval", "generate.thread_confined_persons",
+      "generate.log_patients.detail", "generate.metrics.", "generate.profile_modules",
+      "generate.person_costs", "exporter.csv.append_mode", "exporter.cpcds.append_mode",
+      "exporter.symptoms.csv.append_mode");
+
+  private final File file;
+  private final BitSet completed;
+  /** The seed each completed person was finally generated from, by index. */
+  private final Map<Integer, Long> seeds;
+  /** The seeds of the attempts at each person that the exporters turned down, by index. */
+  private final Map<Integer, List<Long>> turnedDown;
+  private FileOutputStream stream;
+  private Writer writer;
+  private int sinceCheckpoint;
+  /** The lengths of the shared output files at the last checkpoint, by path. */
+  private Map<String, Long> fileLengths;
+  /** The state of the exporters at the last checkpoint. */
+  private Properties exporterState;
+  /** The time of the last checkpoint, from System.currentTimeMillis(). */
+  private long checkpointTime;
+
+  private ProgressJournal(File file) {
+    this.file = file;
+    this.completed = new BitSet();
+    this.seeds = new HashMap<Integer, Long>();
+    this.turnedDown = new HashMap<Integer, List<Long>>();
+    this.fileLengths = new TreeMap<String, Long>();
+    this.exporterState = new Properties();
+  }
+
+  /**
+   * Start a new journal, replacing any existing journal at the same location.
+   * @param file the journal file.
+   * @param options the options of the run.
+   * @return the new journal.
+   * @throws IOException if the journal cannot be written.
+   */
+  static ProgressJournal create(File file, Generator.GeneratorOptions options)
+      throws IOException {
+    ProgressJournal journal = new ProgressJournal(file);
+    journal.open(false);
+    journal.writer.write(HEADER + "\n");
+    for (Map.Entry<String, String> option : identity(options).entrySet()) {
+      journal.writer.write("option " + option.getKey() + " " + option.getValue() + "\n");
+    }
+    journal.sync();
+    return journal;
+  }
+
+  /**
+   * Open an existing journal to resume the run it records. The journal is cut back to its last
+   * complete checkpoint, and the options that identify the run (the seeds and how they are
+   * derived, population size, simulated time period and shard) are set to those recorded in the
+   * journal.
+   * @param file the journal file.
+   * @param options the options of the run, updated from the journal.
+   * @return the journal.
+   * @throws IOException if the journal cannot be read or written, or was recorded with other
+   *     options or configuration than the given ones.
+   */
+  static ProgressJournal resume(File file, Generator.GeneratorOptions options)
+      throws IOException {
+    ProgressJournal journal = new ProgressJournal(file);
+    Map<String, String> journalOptions = new TreeMap<String, String>();
+    BitSet done = new BitSet();
+    long time = 0L;
+    Map<String, Long> lengths = new TreeMap<String, Long>();
+    Properties state = new Properties();
+    long validLength = 0;
+    long position = 0;
+    try (BufferedReader reader = Files.newBufferedReader(file.toPath(),
+        StandardCharsets.UTF_8)) {
+      String line = reader.readLine();
+      if (!HEADER.equals(line)) {
+        throw new IOException(file + " is not a progress journal");
+      }
+      position += line.length() + 1;
+      validLength = position;
+      while ((line = reader.readLine()) != null) {
+        position += line.getBytes(StandardCharsets.UTF_8).length + 1;
+        String[] parts = line.split(" ", 3);
+        if (parts.length < 3 && !parts[0].equals("end")) {
+          // a partly written line at the end of the journal
+          break;
+        }
+        try {
+          switch (parts[0]) {
+            case "option":
+              journalOptions.put(parts[1], parts[2]);
+              validLength = position;
+              break;
+            case "done":
+              done.set(Integer.parseInt(parts[1]));
+              journal.seeds.put(Integer.parseInt(parts[1]), Long.parseLong(parts[2]));
+              break;
+            case "unexported":
+              journal.turnedDown.computeIfAbsent(Integer.parseInt(parts[1]),
+                  i -> new ArrayList<Long>()).add(Long.parseLong(parts[2]));
+              break;
+            case "checkpoint":
+              time = Long.parseLong(parts[2]);
+              lengths.clear();
+              state.clear();
+              break;
+            case "state":
+              state.setProperty(parts[1], parts[2]);
+              break;
+            case "file":
+              lengths.put(parts[2], Long.parseLong(parts[1]));
+              break;
+            case "end":
+              // the checkpoint is complete
+              journal.completed.or(done);
+              journal.fileLengths = new TreeMap<String, Long>(lengths);
+              journal.exporterState = new Properties();
+              journal.exporterState.putAll(state);
+              journal.checkpointTime = time;
+              validLength = position;
+              break;
+            default:
+              // a partly written line at the end of the journal
+              break;
+          }
+        } catch (NumberFormatException ex) {
+          // a partly written line at the end of the journal
+          break;
+        }
+      }
+    }
+    Map<String, String> identity = identity(options);
+    if (!journalOptions.keySet().equals(identity.keySet())) {
+      throw new IOException("Progress journal " + file + " is incomplete");
+    }
+    for (Map.Entry<String, String> option : identity.entrySet()) {
+      String recorded = journalOptions.get(option.getKey());
+      if (!RESTORED_OPTIONS.contains(option.getKey()) && !recorded.equals(option.getValue())) {
+        throw new IOException(String.format("Progress journal %s was recorded with %s '%s', "
+            + "not '%s'", file, option.getKey(), recorded, option.getValue()));
+      }
+    }
+    options.seed = Long.parseLong(journalOptions.get("seed"));
+    options.clinicianSeed = Long.parseLong(journalOptions.get("clinicianSeed"));
+    options.population = Integer.parseInt(journalOptions.get("population"));
+    options.referenceTime = Long.parseLong(journalOptions.get("referenceTime"));
+    options.endTime = Long.parseLong(journalOptions.get("endTime"));
+    options.shardIndex = Integer.parseInt(journalOptions.get("shardIndex"));
+    options.shardCount = Integer.parseInt(journalOptions.get("shardCount"));
+    options.counterSeeds = Boolean.parseBoolean(journalOptions.get("counterSeeds"));
+
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(validLength);
+    }
+    journal.open(true);
+    return journal;
+  }
+
+  /**
+   * The options that must be the same for a resumed run to continue the original one. Options
+   * that are not set are recorded as empty.
+   */
+  private static Map<String, String> identity(Generator.GeneratorOptions options) {
+    Map<String, String> identity = new TreeMap<String, String>();
+    identity.put("seed", Long.toString(options.seed));
+    identity.put("clinicianSeed", Long.toString(options.clinicianSeed));
+    identity.put("population", Integer.toString(options.population));
+    identity.put("referenceTime", Long.toString(options.referenceTime));
+    identity.put("endTime", Long.toString(options.endTime));
+    identity.put("shardIndex", Integer.toString(options.shardIndex));
+    identity.put("shardCount", Integer.toString(options.shardCount));
+    identity.put("counterSeeds", Boolean.toString(options.counterSeeds));
+    identity.put("state", toString(options.state));
+    identity.put("city", toString(options.city));
+    identity.put("gender", toString(options.gender));
+    identity.put("ageSpecified", Boolean.toString(options.ageSpecified));
+    identity.put("minAge", Integer.toString(options.minAge));
+    identity.put("maxAge", Integer.toString(options.maxAge));
+    identity.put("overflow", Boolean.toString(options.overflow));
+    identity.put("enabledModules", options.enabledModules == null ? ""
+        : String.join(",", options.enabledModules));
+    identity.put("localModuleDir", toString(options.localModuleDir));
+    identity.put("fixedRecordPath", toString(options.fixedRecordPath));
+    identity.put("keepPatientsModulePath", toString(options.keepPatientsModulePath));
+    identity.put("config", configDigest());
+    return identity;
+  }
+
+  private static String toString(Object option) {
+    return option == null ? "" : option.toString();
+  }
+
+  /**
+   * Get a digest of the configuration, leaving out the settings that only change how the run is
+   * executed.
+   */
+  private static String configDigest() {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException("Couldn't create a configuration digest", e);
+    }
+    for (String key : new TreeSet<String>(Config.allPropertyNames())) {
+      if (EXECUTION_SETTINGS.stream().noneMatch(key::startsWith)) {
+        String setting = key + "=" + Config.get(key) + "\n";
+        digest.update(setting.getBytes(StandardCharsets.UTF_8));
+      }
+    }
+    StringBuilder hex = new StringBuilder();
+    for (byte b : digest.digest()) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+
+  private void open(boolean append) throws IOException {
+    stream = new FileOutputStream(file, append);
+    writer = new OutputStreamWriter(stream, StandardCharsets.UTF_8);
+  }
+
+  private void sync() throws IOException {
+    writer.flush();
+    stream.getFD().sync();
+  }
+
+  /**
+   * Whether the person with the given index has been completed.
+   * @param index the index of the person within the population.
+   * @return true if the person does not need to be generated again.
+   */
+  synchronized boolean isCompleted(int index) {
+    return completed.get(index);
+  }
+
+  /**
+   * The number of persons completed.
+   */
+  synchronized int completedCount() {
+    return completed.cardinality();
+  }
+
+  /**
+   * The seed a person completed before the last checkpoint was finally generated from.
+   * @param index the index of the person within the population, who must have been completed.
+   * @return the seed.
+   */
+  synchronized long completedSeed(int index) {
+    return seeds.get(index);
+  }
+
+  /**
+   * Whether the exporters turned down the person generated from the given seed, before the run
+   * was resumed, so another attempt was made at the person with the given index.
+   * @param index the index of the person within the population.
+   * @param seed the seed of the attempt.
+   * @return true if the attempt was turned down.
+   */
+  synchronized boolean wasTurnedDown(int index, long seed) {
+    List<Long> attempts = turnedDown.get(index);
+    return attempts != null && attempts.contains(seed);
+  }
+
+  /**
+   * Record that the exporters turned down a person, so another attempt is made at them.
+   * @param index the index of the person within the population.
+   * @param seed the seed of the attempt that was turned down.
+   * @throws IOException if the journal cannot be written.
+   */
+  synchronized void turnedDown(int index, long seed) throws IOException {
+    writer.write("unexported " + index + " " + seed + "\n");
+  }
+
+  /**
+   * Record that a person has been generated and exported.
+   * @param index the index of the person within the population.
+   * @param seed the seed the person was finally generated from.
+   * @throws IOException if the journal cannot be written.
+   */
+  synchronized void completed(int index, long seed) throws IOException {
+    writer.write("done " + index + " " + seed + "\n");
+    completed.set(index);
+    sinceCheckpoint++;
+  }
+
+  /**
+   * The number of persons recorded since the last checkpoint.
+   */
+  synchronized int completedSinceCheckpoint() {
+    return sinceCheckpoint;
+  }
+
+  /**
+   * The state of the exporters at the last checkpoint, to continue from on resume.
+   */
+  synchronized Properties exporterState() {
+    return exporterState;
+  }
+
+  /**
+   * Write a checkpoint. Every person in flight must have completed, and their exports must have
+   * been flushed, so the output files are consistent with the persons recorded as done.
+   * @param outputDirectory the base directory of the exported files.
+   * @param state the state of the exporters that is not kept in their output files. Keys may
+   *     not contain spaces.
+   * @throws IOException if the journal cannot be written.
+   */
+  synchronized void checkpoint(Path outputDirectory, Properties state) throws IOException {
+    Map<String, Long> lengths = sharedOutputFiles(outputDirectory).stream()
+        .collect(Collectors.toMap(p -> p.toString(), p -> p.toFile().length(),
+            (a, b) -> a, TreeMap::new));
+    long time = System.currentTimeMillis();
+    writer.write("checkpoint " + completed.cardinality() + " " + time + "\n");
+    for (String key : new TreeSet<String>(state.stringPropertyNames())) {
+      writer.write("state " + key + " " + state.getProperty(key) + "\n");
+    }
+    for (Map.Entry<String, Long> entry : lengths.entrySet()) {
+      writer.write("file " + entry.getValue() + " " + entry.getKey() + "\n");
+    }
+    writer.write("end\n");
+    sync();
+    fileLengths = lengths;
+    exporterState = new Properties();
+    exporterState.putAll(state);
+    checkpointTime = time;
+    sinceCheckpoint = 0;
+  }
+
+  /**
+   * Return the output files to their state at the last checkpoint: shared files are truncated
+   * to their recorded length, and shared files created since the checkpoint are deleted, as are
+   * the files of persons written since the checkpoint.
+   * @param outputDirectory the base directory of the exported files.
+   * @throws IOException if a file cannot be truncated or deleted.
+   */
+  synchronized void restoreOutputs(Path outputDirectory) throws IOException {
+    List<Path> sharedFiles = sharedOutputFiles(outputDirectory);
+    for (String folder : PERSON_OUTPUT_FOLDERS) {
+      Path exporterDirectory = outputDirectory.resolve(folder);
+      if (!Files.isDirectory(exporterDirectory)) {
+        continue;
+      }
+      List<Path> written;
+      try (Stream<Path> paths = Files.walk(exporterDirectory)) {
+        written = paths.filter(Files::isRegularFile)
+            .map(p -> p.toAbsolutePath().normalize())
+            .filter(p -> !sharedFiles.contains(p))
+            .filter(p -> p.toFile().lastModified() > checkpointTime)
+            .collect(Collectors.toList());
+      }
+      for (Path path : written) {
+        Files.delete(path);
+      }
+    }
+    for (Path path : sharedFiles) {
+      Long length = fileLengths.get(path.toString());
+      if (length == null) {
+        Files.delete(path);
+      } else if (path.toFile().length() > length) {
+        try (RandomAccessFile raf = new RandomAccessFile(path.toFile(), "rw")) {
+          raf.setLength(length);
+        }
+      }
+    }
+  }
+
+  /**
+   * Find the output files in the exporter folders that many persons append to, which need to be
+   * restored on resume. Files written per person are simply written again.
+   */
+  private static List<Path> sharedOutputFiles(Path outputDirectory) throws IOException {
+    List<Path> files = new ArrayList<Path>();
+    for (String folder : SHARED_OUTPUT_FOLDERS) {
+      Path exporterDirectory = outputDirectory.resolve(folder);
+      if (!Files.isDirectory(exporterDirectory)) {
+        continue;
+      }
+      try (Stream<Path> paths = Files.walk(exporterDirectory)) {
+        paths.filter(Files::isRegularFile)
+            .filter(p -> p.toString().endsWith(".csv") || p.toString().endsWith(".ndjson"))
+            .map(p -> p.toAbsolutePath().normalize())
+            .forEach(files::add);
+      }
+    }
+    return files;
+  }
+
+  /**
+   * Get the base directory of the exported files.
+   */
+  static Path outputDirectory(String baseDirectory) {
+    return Paths.get(baseDirectory).toAbsolutePath().normalize();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    writer.close();
+  }
+}
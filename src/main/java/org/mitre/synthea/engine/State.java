@@ -42,10 +42,12 @@ import org.mitre.synthea.helpers.RandomNumberGenerator;
 import org.mitre.synthea.helpers.RandomValueGenerator;
 import org.mitre.synthea.helpers.Telemedicine;
 import org.mitre.synthea.helpers.TimeSeriesData;
+import org.mitre.synthea.helpers.TransitionMetrics;
 import org.mitre.synthea.helpers.Utilities;
 import org.mitre.synthea.helpers.physiology.IoMapper;
 import org.mitre.synthea.modules.EncounterModule;
 import org.mitre.synthea.world.agents.Person;
+import org.mitre.synthea.world.agents.PersonAttributes;
 import org.mitre.synthea.world.agents.Provider;
 import org.mitre.synthea.world.concepts.ClinicianSpecialty;
 import org.mitre.synthea.world.concepts.HealthRecord;
@@ -125,6 +127,16 @@ public abstract class State implements Cloneable, Serializable {
     return state;
   }
 
+  /**
+   * Compile the logic of this state and its transition, once it has been built or read from the
+   * module cache. See Logic.compile().
+   */
+  void compileLogic() {
+    if (transition != null) {
+      transition.compileLogic();
+    }
+  }
+
   /**
    * clone() should copy all the necessary variables of this State so that it can be correctly
    * executed and modified without altering the original copy. So for example, 'entered' and
@@ -147,10 +159,44 @@ public abstract class State implements Cloneable, Serializable {
     }
   }
 
+  /**
+   * Reset this instance so the same person can enter it again, as when it was cloned.
+   * Only called for States that are not retained in history (see StateHistory.reuse()).
+   */
+  void reset() {
+    entered = null;
+    exited = null;
+    entry = null;
+  }
+
   public String transition(Person person, long time) {
     return transition.follow(person, time);
   }
 
+  /**
+   * Whether this State must be kept in full in the module history once it has been exited.
+   * States that only need their name and entered/exited times remembered return false,
+   * so the history can store them as compact records and their instance can be re-used on
+   * the next visit instead of cloning the definition again.
+   *
+   * @return true if this State carries per-visit data other than its entered and exited times.
+   */
+  public boolean retainInHistory() {
+    return true;
+  }
+
+  /**
+   * Get the earliest time at which processing this State again could have any effect, while the
+   * person remains in it. The generator skips a module until its current State's wake time.
+   * By default, States must be processed at every timestep.
+   *
+   * @param time the date within the simulated world, at which this State was last processed.
+   * @return the time at which this State next needs to be processed.
+   */
+  public long wakeTime(long time) {
+    return time;
+  }
+
   public Transition getTransition() {
     return transition;
   }
@@ -224,6 +270,11 @@ public abstract class State implements Cloneable, Serializable {
     public boolean process(Person person, long time) {
       return true;
     }
+
+    @Override
+    public boolean retainInHistory() {
+      return false;
+    }
   }
 
   /**
@@ -237,6 +288,11 @@ public abstract class State implements Cloneable, Serializable {
     public boolean process(Person person, long time) {
       return true;
     }
+
+    @Override
+    public boolean retainInHistory() {
+      return false;
+    }
   }
 
   /**
@@ -248,6 +304,7 @@ public abstract class State implements Cloneable, Serializable {
   public static class CallSubmodule extends State {
     private String submodule;
     private transient long submoduleExited;
+    private transient Long submoduleWakeTime;
 
     @Override
     public CallSubmodule clone() {
@@ -266,8 +323,17 @@ public abstract class State implements Cloneable, Serializable {
       // set the submodule name to have the same name as this parent
       // module, that way the submodule is empowered (and vice versa)
       // to act on encounters created using the same name.
-      submod.name = module.name;
-      boolean completed = submod.process(person, time);
+      submod.runAs(module);
+      boolean completed;
+      if (TransitionMetrics.shouldProfile()) {
+        // profiled by path, since the submodule runs under the name of this module
+        long profileStart = System.nanoTime();
+        long allocated = TransitionMetrics.allocatedBytes();
+        completed = submod.process(person, time);
+        TransitionMetrics.profileModule(submodule, profileStart, allocated);
+      } else {
+        completed = submod.process(person, time);
+      }
 
       if (completed) {
         // keep track of when the submodule exited,
@@ -295,6 +361,10 @@ public abstract class State implements Cloneable, Serializable {
         person.history.add(0, this);
         return true;
       } else {
+        if (moduleHistory != person.history) {
+          // remember when the submodule's current state next needs processing
+          this.submoduleWakeTime = person.history.get(0).wakeTime(time);
+        }
         // reset person.history to this module's history
         person.history = moduleHistory;
         // the submodule is still processing
@@ -302,6 +372,11 @@ public abstract class State implements Cloneable, Serializable {
         return false;
       }
     }
+
+    @Override
+    public long wakeTime(long time) {
+      return submoduleWakeTime == null ? time : submoduleWakeTime;
+    }
   }
 
   /**
@@ -508,6 +583,11 @@ public abstract class State implements Cloneable, Serializable {
 
       return ((time >= this.next) && person.alive(this.next));
     }
+
+    @Override
+    public long wakeTime(long time) {
+      return this.next == null ? time : this.next;
+    }
   }
 
   public abstract static class LegacyStateWithUnitlessRV extends State {
@@ -620,20 +700,100 @@ public abstract class State implements Cloneable, Serializable {
    */
   public static class Guard extends State {
     private Logic allow;
+    /** The inputs read by the allow logic, derived when the module is loaded. */
+    private Logic.Inputs inputs;
+    // the remaining fields describe the last time allow was tested by the one person this
+    // instance belongs to, and are reset in clone() and reset(). while the guard is blocked, it
+    // is only re-tested once one of its inputs has changed.
+    private transient boolean blocked;
+    private transient long recheckTime;
+    private transient Object[] attributeValues;
+    private transient HealthRecord record;
+    private transient int recordVersion;
+
+    @Override
+    protected void initialize(Module module, String name, JsonObject definition) {
+      super.initialize(module, name, definition);
+      inputs = new Logic.Inputs();
+      allow.collectInputs(inputs);
+    }
+
+    @Override
+    void compileLogic() {
+      super.compileLogic();
+      allow.compile();
+    }
 
     @Override
     public Guard clone() {
       Guard clone = (Guard) super.clone();
+      clone.blocked = false;
+      clone.attributeValues = null;
+      clone.record = null;
       return clone;
     }
 
+    @Override
+    void reset() {
+      super.reset();
+      blocked = false;
+      attributeValues = null;
+      record = null;
+    }
+
     @Override
     public boolean process(Person person, long time) {
-      boolean exit = allow.test(person, time);
-      if (exit) {
-        this.exited = time;
+      if (blocked && !inputsChanged(person, time)) {
+        TransitionMetrics.guardSkipped();
+        return false;
+      }
+      TransitionMetrics.guardEvaluated();
+      // run() records the exit time
+      boolean allowed = allow.test(person, time);
+      blocked = !allowed && inputs != null && !inputs.untracked
+          && !(inputs.record && person.hasMultipleRecords);
+      if (blocked) {
+        recheckTime = inputs.time ? allow.timeThreshold(person, time) : Long.MAX_VALUE;
+        int i = 0;
+        attributeValues = new Object[inputs.attributes.size()];
+        for (String attribute : inputs.attributes) {
+          attributeValues[i++] = person.attributes.get(attribute);
+        }
+        record = person.record;
+        recordVersion = record.getPresentVersion();
+      }
+      return allowed;
+    }
+
+    private boolean inputsChanged(Person person, long time) {
+      if (time >= recheckTime) {
+        return true;
+      }
+      if (inputs.record
+          && (person.record != record || record.getPresentVersion() != recordVersion)) {
+        return true;
+      }
+      int i = 0;
+      for (String attribute : inputs.attributes) {
+        if (person.attributes.get(attribute) != attributeValues[i++]) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public long wakeTime(long time) {
+      if (blocked && !inputs.record && inputs.attributes.isEmpty()) {
+        // nothing but the passage of time can unblock this guard
+        return recheckTime;
       }
-      return exit;
+      return time;
+    }
+
+    @Override
+    public boolean retainInHistory() {
+      return false;
     }
   }
 
@@ -652,25 +812,25 @@ public abstract class State implements Cloneable, Serializable {
     private String valueAttribute;
     private Range<Double> range;
     private String expression;
-    private transient ThreadLocal<ExpressionProcessor> threadExpProcessor;
     private String seriesData;
     private double period;
     // For GMF 2.0 Support
     private Distribution distribution;
+    private transient PersonAttributes.Key attributeKey;
 
-
-    private ThreadLocal<ExpressionProcessor> getExpProcessor() {
-      // If the ThreadLocal instance hasn't been created yet, create it now
-      if (threadExpProcessor == null) {
-        threadExpProcessor = new ThreadLocal<ExpressionProcessor>();
+    private PersonAttributes.Key attributeKey() {
+      if (attributeKey == null) {
+        attributeKey = PersonAttributes.intern(attribute);
       }
+      return attributeKey;
+    }
 
-      // If there's an expression, create the processor for it
-      if (this.expression != null && threadExpProcessor.get() == null) {
-        threadExpProcessor.set(new ExpressionProcessor(this.expression));
+    private ExpressionProcessor getExpProcessor() {
+      // If there's an expression, get the shared processor for it
+      if (this.expression == null) {
+        return null;
       }
-
-      return threadExpProcessor;
+      return ExpressionProcessor.shared(this.expression);
     }
 
     @Override
@@ -695,6 +855,8 @@ public abstract class State implements Cloneable, Serializable {
         throw new IllegalStateException(
             String.format("State %s contains an invalid distribution", this.name));
       }
+
+      attributeKey();
     }
 
     @Override
@@ -705,9 +867,9 @@ public abstract class State implements Cloneable, Serializable {
 
     @Override
     public boolean process(Person person, long time) {
-      ThreadLocal<ExpressionProcessor> expProcessor = getExpProcessor();
-      if (expProcessor.get() != null) {
-        value = expProcessor.get().evaluate(person, time);
+      ExpressionProcessor expProcessor = getExpProcessor();
+      if (expProcessor != null) {
+        value = expProcessor.evaluate(person, time);
       } else if (range != null) {
         value = person.rand(range.low, range.high, range.decimals);
       } else if (seriesData != null) {
@@ -736,10 +898,10 @@ public abstract class State implements Cloneable, Serializable {
       }
 
       if (value != null) {
-        person.attributes.put(attribute, value);
-      } else if (person.attributes.containsKey(attribute)) {
+        person.attributes.put(attributeKey(), value);
+      } else if (person.attributes.containsKey(attributeKey())) {
         // intentionally clear out the variable
-        person.attributes.remove(attribute);
+        person.attributes.remove(attributeKey());
       }
 
       return true;
@@ -757,10 +919,19 @@ public abstract class State implements Cloneable, Serializable {
     private String action;
     private boolean increment;
     private int amount;
+    private transient PersonAttributes.Key attributeKey;
+
+    private PersonAttributes.Key attributeKey() {
+      if (attributeKey == null) {
+        attributeKey = PersonAttributes.intern(attribute);
+      }
+      return attributeKey;
+    }
 
     @Override
     protected void initialize(Module module, String name, JsonObject definition) {
       super.initialize(module, name, definition);
+      attributeKey();
       increment = action.equals("increment");
       if (amount == 0) {
         // default to 1 for legacy compatibility
@@ -776,11 +947,12 @@ public abstract class State implements Cloneable, Serializable {
 
     @Override
     public boolean process(Person person, long time) {
+      PersonAttributes.Key key = attributeKey();
       double counter = 0.0;
-      if (person.attributes.containsKey(attribute)) {
+      if (person.attributes.containsKey(key)) {
         // this cast as int from double is to handle cases where the attribute
         // is either a java.lang.Double or java.lang.Integer
-        counter = Double.parseDouble(person.attributes.get(attribute).toString());
+        counter = Double.parseDouble(person.attributes.get(key).toString());
       }
 
       if (increment) {
@@ -788,9 +960,14 @@ public abstract class State implements Cloneable, Serializable {
       } else {
         counter = counter - amount;
       }
-      person.attributes.put(attribute, counter);
+      person.attributes.putDouble(key, counter);
       return true;
     }
+
+    @Override
+    public boolean retainInHistory() {
+      return false;
+    }
   }
 
   public enum TelemedicinePossibility {
@@ -849,13 +1026,13 @@ public abstract class State implements Cloneable, Serializable {
             && person.getCurrentEncounterModule().equals(EncounterModule.NAME)) {
           HealthRecord.Encounter encounter = person.record.currentEncounter(time);
           entry = encounter;
-          String activeKey = EncounterModule.ACTIVE_WELLNESS_ENCOUNTER + " " + module.name;
+          PersonAttributes.Key activeKey = module.wellnessKey();
           if (person.attributes.containsKey(activeKey)) {
             // check-in with the activeKey...
-            boolean status = (Boolean) person.attributes.get(activeKey);
+            boolean status = person.attributes.getBoolean(activeKey, false);
             if (status == false) {
               // mark that we have used our active key
-              person.attributes.put(activeKey, true);
+              person.attributes.putBoolean(activeKey, true);
               diagnosePastConditions(person, time);
               if (!encounter.chronicMedsRenewed && person.chronicMedications.size() > 0) {
                 renewChronicMedicationsAtWellness(person, time);
@@ -960,7 +1137,8 @@ public abstract class State implements Cloneable, Serializable {
 
     private void diagnosePastConditions(Person person, long time) {
       // reminder: history[0] is current state, history[size-1] is Initial
-      for (State state : person.history) {
+      // only onset and encounter states matter here, and those are always retained in full
+      for (State state : StateHistory.retained(person.history)) {
         if (state instanceof OnsetState) {
           OnsetState onset = (OnsetState) state;
 
@@ -985,12 +1163,14 @@ public abstract class State implements Cloneable, Serializable {
       List<Medication> renewedMedications =
           new ArrayList<Medication>(person.chronicMedications.values().size());
 
-      // Go through each chronic medication and "reorder"
-      for (Medication chronicMedication : person.chronicMedications.values()) {
+      // Go through each chronic medication and "reorder". Iterate over a copy, as ending
+      // each medication removes it from the chronic list.
+      for (Medication chronicMedication
+          : new ArrayList<Medication>(person.chronicMedications.values())) {
         // RxNorm code
         String primaryCode = chronicMedication.type;
 
-        // Removes from Chronic List as well; but won't affect iterator.
+        // Removes from Chronic List as well.
         person.record.medicationEnd(time, primaryCode, expiredCode);
 
         // IMPORTANT: 3rd par is false to prevent modification of chronic meds
@@ -1060,7 +1240,7 @@ public abstract class State implements Cloneable, Serializable {
 
     @Override
     public boolean process(Person person, long time) {
-      String activeKey = EncounterModule.ACTIVE_WELLNESS_ENCOUNTER + " " + module.name;
+      PersonAttributes.Key activeKey = module.wellnessKey();
       if (person.hasCurrentEncounter()
           && person.getCurrentEncounterModule().equals(module.name)) {
         HealthRecord.Encounter encounter = person.record.currentEncounter(time);
@@ -1694,7 +1874,6 @@ public abstract class State implements Cloneable, Serializable {
     private String unit;
     private String expression;
     private Distribution distribution;
-    private transient ThreadLocal<ExpressionProcessor> threadExpProcessor;
 
     @Override
     protected void initialize(Module module, String name, JsonObject definition) {
@@ -1705,18 +1884,12 @@ public abstract class State implements Cloneable, Serializable {
       }
     }
 
-    private ThreadLocal<ExpressionProcessor> getExpProcessor() {
-      // If the ThreadLocal instance hasn't been created yet, create it now
-      if (threadExpProcessor == null) {
-        threadExpProcessor = new ThreadLocal<ExpressionProcessor>();
+    private ExpressionProcessor getExpProcessor() {
+      // If there's an expression, get the shared processor for it
+      if (this.expression == null) {
+        return null;
       }
-
-      // If there's an expression, create the processor for it
-      if (this.expression != null && threadExpProcessor.get() == null) {
-        threadExpProcessor.set(new ExpressionProcessor(this.expression));
-      }
-
-      return threadExpProcessor;
+      return ExpressionProcessor.shared(this.expression);
     }
 
     @Override
@@ -1736,8 +1909,9 @@ public abstract class State implements Cloneable, Serializable {
               (double) range.low, (double) range.high));
         }
       } else {
-        if (getExpProcessor().get() != null) {
-          Number value = (Number) getExpProcessor().get().evaluate(person, time);
+        ExpressionProcessor expProcessor = getExpProcessor();
+        if (expProcessor != null) {
+          Number value = (Number) expProcessor.evaluate(person, time);
           person.setVitalSign(vitalSign, value.doubleValue());
         } else if (distribution != null) {
           person.setVitalSign(vitalSign, new RandomValueGenerator(person, distribution));
@@ -1795,7 +1969,7 @@ public abstract class State implements Cloneable, Serializable {
     private String unit;
     private String expression;
     private Distribution distribution;
-    private transient ThreadLocal<ExpressionProcessor> threadExpProcessor;
+    private transient ExpressionProcessor expProcessor;
 
     @Override
     protected void initialize(Module module, String name, JsonObject definition) {
@@ -1820,15 +1994,10 @@ public abstract class State implements Cloneable, Serializable {
       }
     }
 
-    private ThreadLocal<ExpressionProcessor> getExpProcessor() {
-      // If the ThreadLocal instance hasn't been created yet, create it now
-      if (threadExpProcessor == null) {
-        threadExpProcessor = new ThreadLocal<ExpressionProcessor>();
-      }
-
-      // If there's an expression, create the processor for it
-      if (expression != null && threadExpProcessor.get() == null) {
-        threadExpProcessor.set(new ExpressionProcessor(expression));
+    private ExpressionProcessor getExpProcessor() {
+      // If there's an expression, get the shared processor for it
+      if (expression != null && expProcessor == null) {
+        expProcessor = ExpressionProcessor.shared(expression);
       }
 
       // If there's an attachment, validate it before we process
@@ -1836,7 +2005,7 @@ public abstract class State implements Cloneable, Serializable {
         attachment.validate();
       }
 
-      return threadExpProcessor;
+      return expProcessor;
     }
 
     @Override
@@ -1865,9 +2034,8 @@ public abstract class State implements Cloneable, Serializable {
           value = person.getVitalSign(vitalSign, time);
         } else if (valueCode != null) {
           value = valueCode;
-        } else if (threadExpProcessor != null
-            && threadExpProcessor.get() != null) {
-          value = threadExpProcessor.get().evaluate(person, time);
+        } else if (expProcessor != null) {
+          value = expProcessor.evaluate(person, time);
         } else if (sampledData != null) {
           // Capture the data lists from person attributes
           sampledData.setSeriesData(person);
@@ -0,0 +1,427 @@
+package org.mitre.synthea.engine;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+/**
+ * StateHistory is the list of States a person has visited within a module, with the most recent
+ * State first (index 0), as used by Person.history.
+ *
+ * <p>Most visits only need to remember the name of the State and when it was entered and exited.
+ * States that report they do not need to be retained (see State.retainInHistory()) are therefore
+ * stored as compact (definition, module, entered, exited) records once the person moves on to the
+ * next State. Compact records are re-inflated into a new State object on demand by get(), so callers
+ * that iterate the history should prefer hadPriorState() and retained() where possible.
+ *
+ * <p>Because a compact record no longer refers to the State instance that was executed, the
+ * history also keeps that instance so the next visit to the same State can re-use it instead of
+ * cloning the definition again. These instances belong to this person's history alone, so they
+ * are never shared between persons or threads, even when the Module itself is shared.
+ *
+ * <p>The history also keeps an index from each State name to the position of its most recent
+ * visit, so hadPriorState() and the lastEntered()/lastExited() lookups do not need to walk a
+ * history that grows with every transition over the lifetime of the person.
+ */
+public class StateHistory extends AbstractList<State> implements RandomAccess, Serializable {
+  private static final long serialVersionUID = 5307620372458164512L;
+
+  /** Marker for a null entered or exited time in a compact record. */
+  private static final long NONE = Long.MIN_VALUE;
+
+  /**
+   * The States, in chronological order (oldest first). For compact records this is the shared
+   * State definition, otherwise it is the State instance that was executed.
+   */
+  private State[] states;
+  /**
+   * For compact records, the module clone the State was executed by, since the shared definition
+   * refers to the original module rather than the (possibly submodule) clone.
+   */
+  private Module[] modules;
+  /** Whether the State at each position is the executed instance, or a compact record. */
+  private boolean[] retained;
+  private long[] entered;
+  private long[] exited;
+  private int size;
+
+  /**
+   * Index of State name to the position of its most recent visit. Appending to the history keeps
+   * the index up to date, any other modification discards it and it is rebuilt on next use.
+   */
+  private transient Map<String, LastVisit> lastVisits;
+
+  /**
+   * Instances of States stored as compact records, by name, that may be re-used on the next
+   * visit. An instance is only here while no record in the history refers to it.
+   */
+  private transient Map<String, State> reusable;
+
+  /** The position of the most recent visit to a State. Mutable to avoid boxing on every visit. */
+  private static final class LastVisit {
+    private int position;
+  }
+
+  /**
+   * Create a new, empty StateHistory.
+   */
+  public StateHistory() {
+    states = new State[16];
+    modules = new Module[16];
+    retained = new boolean[16];
+    entered = new long[16];
+    exited = new long[16];
+    size = 0;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Get the State at the given index, where index 0 is the most recent State.
+   * If the State was stored as a compact record, a new State is created from the shared
+   * definition with the recorded entered and exited times.
+   */
+  @Override
+  public State get(int index) {
+    int pos = position(index);
+    if (retained[pos]) {
+      return states[pos];
+    }
+    State state = states[pos].clone();
+    state.module = modules[pos];
+    state.entered = entered[pos] == NONE ? null : entered[pos];
+    state.exited = exited[pos] == NONE ? null : exited[pos];
+    return state;
+  }
+
+  @Override
+  public State set(int index, State state) {
+    State previous = get(index);
+    int pos = position(index);
+    states[pos] = state;
+    modules[pos] = null;
+    retained[pos] = true;
+    lastVisits = null;
+    reusable = null;
+    return previous;
+  }
+
+  @Override
+  public void add(int index, State state) {
+    if (index < 0 || index > size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+    if (index == 0) {
+      // the current state is about to become history
+      compactHead();
+    } else {
+      reusable = null;
+    }
+    ensureCapacity(size + 1);
+    int pos = size - index;
+    int moved = size - pos;
+    if (moved > 0) {
+      System.arraycopy(states, pos, states, pos + 1, moved);
+      System.arraycopy(modules, pos, modules, pos + 1, moved);
+      System.arraycopy(retained, pos, retained, pos + 1, moved);
+      System.arraycopy(entered, pos, entered, pos + 1, moved);
+      System.arraycopy(exited, pos, exited, pos + 1, moved);
+    }
+    states[pos] = state;
+    modules[pos] = null;
+    retained[pos] = true;
+    size++;
+    modCount++;
+    if (moved > 0) {
+      lastVisits = null;
+    } else {
+      recordVisit(pos);
+    }
+  }
+
+  @Override
+  public boolean addAll(int index, Collection<? extends State> c) {
+    if (!(c instanceof StateHistory)) {
+      return super.addAll(index, c);
+    }
+    // copy records directly, so compact records stay compact
+    StateHistory other = (StateHistory) c;
+    if (other.size == 0) {
+      return false;
+    }
+    // the instances retained by the other history are now referred to from this one
+    other.reusable = null;
+    if (index == 0) {
+      compactHead();
+    }
+    ensureCapacity(size + other.size);
+    int pos = size - index;
+    int moved = size - pos;
+    if (moved > 0) {
+      System.arraycopy(states, pos, states, pos + other.size, moved);
+      System.arraycopy(modules, pos, modules, pos + other.size, moved);
+      System.arraycopy(retained, pos, retained, pos + other.size, moved);
+      System.arraycopy(entered, pos, entered, pos + other.size, moved);
+      System.arraycopy(exited, pos, exited, pos + other.size, moved);
+    }
+    System.arraycopy(other.states, 0, states, pos, other.size);
+    System.arraycopy(other.modules, 0, modules, pos, other.size);
+    System.arraycopy(other.retained, 0, retained, pos, other.size);
+    System.arraycopy(other.entered, 0, entered, pos, other.size);
+    System.arraycopy(other.exited, 0, exited, pos, other.size);
+    size += other.size;
+    modCount++;
+    if (moved > 0) {
+      lastVisits = null;
+    } else {
+      for (int i = pos; i < size; i++) {
+        recordVisit(i);
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public State remove(int index) {
+    State previous = get(index);
+    int pos = position(index);
+    int moved = size - pos - 1;
+    if (moved > 0) {
+      System.arraycopy(states, pos + 1, states, pos, moved);
+      System.arraycopy(modules, pos + 1, modules, pos, moved);
+      System.arraycopy(retained, pos + 1, retained, pos, moved);
+      System.arraycopy(entered, pos + 1, entered, pos, moved);
+      System.arraycopy(exited, pos + 1, exited, pos, moved);
+    }
+    size--;
+    states[size] = null;
+    modules[size] = null;
+    modCount++;
+    lastVisits = null;
+    reusable = null;
+    return previous;
+  }
+
+  @Override
+  public void clear() {
+    Arrays.fill(states, 0, size, null);
+    Arrays.fill(modules, 0, size, null);
+    size = 0;
+    modCount++;
+    lastVisits = null;
+    reusable = null;
+  }
+
+  /**
+   * Convert the most recent State into a compact record, if it has been exited and does not
+   * carry any data that must be retained. After this call, the State instance is no longer
+   * referenced by this history and may be re-used.
+   */
+  public void compactHead() {
+    if (size == 0) {
+      return;
+    }
+    int pos = size - 1;
+    State state = states[pos];
+    if (!retained[pos]) {
+      return;
+    }
+    State definition = state.retainInHistory() || state.entry != null
+        || state.exited == null || state.module == null
+        ? null : state.module.getState(state.name);
+    if (definition == null) {
+      // the instance stays in the history, so it must not be entered again
+      if (reusable != null && reusable.get(state.name) == state) {
+        reusable.remove(state.name);
+      }
+      return;
+    }
+    states[pos] = definition;
+    modules[pos] = state.module;
+    retained[pos] = false;
+    entered[pos] = state.entered == null ? NONE : state.entered;
+    exited[pos] = state.exited;
+  }
+
+  /**
+   * Get the State to enter next, re-using this person's instance from an earlier visit when the
+   * State is stored as a compact record. The current State is compacted first, so the instance
+   * being re-used is never still referred to by the history.
+   * @param module The module being processed, which owns the State definitions.
+   * @param name The name of the State to enter.
+   * @return this person's instance of the State, reset for a new visit, or a new clone of the
+   *     definition if there is no instance to re-use.
+   */
+  State reuse(Module module, String name) {
+    compactHead();
+    State state = reusable == null ? null : reusable.get(name);
+    if (state != null && state.module == module) {
+      state.reset();
+      return state;
+    }
+    state = module.getState(name).clone();
+    state.module = module;
+    if (reusable == null) {
+      reusable = new HashMap<String, State>();
+    }
+    reusable.put(name, state);
+    return state;
+  }
+
+  /**
+   * Check for prior existence of the specified state, without inflating compact records.
+   * The result is the same as walking the history from the most recent State, but the most recent
+   * visits to name and since are looked up in the index. Only when within is given are the States
+   * visited after the most recent visit to name examined.
+   * @param name The name of the state to look for.
+   * @param since If not null, stop looking when a state with this name is found.
+   * @param within If not null, stop looking at states that exited at or before this time.
+   * @return true if the state was found.
+   */
+  public boolean hadPriorState(String name, String since, Long within) {
+    int pos = lastPosition(name);
+    if (pos < 0) {
+      return false;
+    }
+    if (since != null && lastPosition(since) >= pos) {
+      return false;
+    }
+    if (within != null) {
+      for (int i = size - 1; i >= pos; i--) {
+        Long stateExited = exitedAt(i);
+        if (stateExited != null && stateExited <= within) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Get the time the most recent visit to the named State was entered.
+   * @param name The name of the state.
+   * @return the entered time, or null if the State has not been visited or entered.
+   */
+  public Long lastEntered(String name) {
+    int pos = lastPosition(name);
+    if (pos < 0) {
+      return null;
+    }
+    if (retained[pos]) {
+      return states[pos].entered;
+    }
+    return entered[pos] == NONE ? null : entered[pos];
+  }
+
+  /**
+   * Get the time the most recent visit to the named State was exited.
+   * @param name The name of the state.
+   * @return the exited time, or null if the State has not been visited or not yet exited.
+   */
+  public Long lastExited(String name) {
+    int pos = lastPosition(name);
+    if (pos < 0) {
+      return null;
+    }
+    return exitedAt(pos);
+  }
+
+  /**
+   * Get the States that are retained in full in the given history, most recent first.
+   * Compact records never carry a HealthRecord entry or other per-visit data, so code looking
+   * for such data can skip them rather than inflating every record.
+   * @param history A module history, normally a StateHistory.
+   * @return the States retained in the history.
+   */
+  public static Iterable<State> retained(List<State> history) {
+    if (!(history instanceof StateHistory)) {
+      return history;
+    }
+    StateHistory stateHistory = (StateHistory) history;
+    return () -> new Iterator<State>() {
+      private int pos = nextRetained(stateHistory.size - 1);
+
+      private int nextRetained(int from) {
+        int candidate = from;
+        while (candidate >= 0 && !stateHistory.retained[candidate]) {
+          candidate--;
+        }
+        return candidate;
+      }
+
+      @Override
+      public boolean hasNext() {
+        return pos >= 0;
+      }
+
+      @Override
+      public State next() {
+        if (pos < 0) {
+          throw new NoSuchElementException();
+        }
+        State state = stateHistory.states[pos];
+        pos = nextRetained(pos - 1);
+        return state;
+      }
+    };
+  }
+
+  private Long exitedAt(int pos) {
+    if (retained[pos]) {
+      return states[pos].exited;
+    }
+    return exited[pos] == NONE ? null : exited[pos];
+  }
+
+  private int lastPosition(String name) {
+    if (lastVisits == null) {
+      lastVisits = new HashMap<String, LastVisit>();
+      for (int pos = 0; pos < size; pos++) {
+        recordVisit(pos);
+      }
+    }
+    LastVisit visit = lastVisits.get(name);
+    return visit == null ? -1 : visit.position;
+  }
+
+  private void recordVisit(int pos) {
+    if (lastVisits == null) {
+      // rebuilt in full on next use
+      return;
+    }
+    LastVisit visit = lastVisits.get(states[pos].name);
+    if (visit == null) {
+      visit = new LastVisit();
+      lastVisits.put(states[pos].name, visit);
+    }
+    visit.position = pos;
+  }
+
+  private int position(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+    return size - 1 - index;
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity > states.length) {
+      int newLength = Math.max(capacity, states.length * 2);
+      states = Arrays.copyOf(states, newLength);
+      modules = Arrays.copyOf(modules, newLength);
+      retained = Arrays.copyOf(retained, newLength);
+      entered = Arrays.copyOf(entered, newLength);
+      exited = Arrays.copyOf(exited, newLength);
+    }
+  }
+}
@@ -3,8 +3,11 @@ package org.mitre.synthea.engine;
 import com.google.gson.JsonObject;
 
 import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -38,6 +41,26 @@ public abstract class Transition implements Serializable {
    */
   public abstract String follow(Person person, long time);
 
+  /**
+   * Get the names of the states this transition could lead to, when followed at some time
+   * between the given times. See Logic.forecast().
+   *
+   * @param person : person being processed
+   * @param from   : the earliest time the transition could be followed
+   * @param until  : the latest time the transition could be followed
+   * @return the names of the possible next states, or null if any state could follow
+   */
+  public Collection<String> forecast(Person person, long from, long until) {
+    return null;
+  }
+
+  /**
+   * Compile the logic of this transition's conditions. See Logic.compile().
+   */
+  void compileLogic() {
+    // no conditions by default
+  }
+
   /**
    * Direct transitions are the simplest of transitions. They transition directly
    * to the indicated state. The value of a direct_transition is simply the name
@@ -54,6 +77,11 @@ public abstract class Transition implements Serializable {
     public String follow(Person person, long time) {
       return transition;
     }
+
+    @Override
+    public Collection<String> forecast(Person person, long from, long until) {
+      return Collections.singletonList(transition);
+    }
   }
 
   /**
@@ -109,6 +137,15 @@ public abstract class Transition implements Serializable {
     public String follow(Person person, long time) {
       return pickDistributedTransition(transitions, person);
     }
+
+    @Override
+    public Collection<String> forecast(Person person, long from, long until) {
+      List<String> states = new ArrayList<String>();
+      for (DistributedTransitionOption option : transitions) {
+        states.add(option.transition);
+      }
+      return states;
+    }
   }
 
   /**
@@ -219,6 +256,9 @@ public abstract class Transition implements Serializable {
     private static HashMap<String, HashMap<LookupTableKey, List<DistributedTransitionOption>>>
         lookupTables = new HashMap<String, HashMap<LookupTableKey,
         List<DistributedTransitionOption>>>();
+    // Map of the attribute columns of each lookupTable
+    private static HashMap<String, List<String>> lookupTableAttributes =
+        new HashMap<String, List<String>>();
     private final List<LookupTableTransitionOption> transitions;
     private List<String> attributes;
     private List<DistributedTransitionOption> defaultTransitions;
@@ -240,6 +280,19 @@ public abstract class Transition implements Serializable {
       if (!lookupTables.containsKey(lookupTableName)) {
         loadLookupTable();
       }
+      this.attributes = lookupTableAttributes.get(lookupTableName);
+    }
+
+    /**
+     * Load the lookup table if needed when deserialized, ex. from the module cache, since the
+     * tables themselves are not serialized.
+     */
+    private void readObject(ObjectInputStream in) throws ClassNotFoundException, IOException {
+      in.defaultReadObject();
+      if (!lookupTables.containsKey(lookupTableName)) {
+        loadLookupTable();
+      }
+      this.attributes = lookupTableAttributes.get(lookupTableName);
     }
 
     /**
@@ -328,6 +381,7 @@ public abstract class Transition implements Serializable {
 
       // Put new table into Hash map of all lookup tables.
       lookupTables.put(lookupTableName, newTable);
+      lookupTableAttributes.put(lookupTableName, this.attributes);
     }
 
     /**
@@ -553,6 +607,15 @@ public abstract class Transition implements Serializable {
       this.transitions = transitions;
     }
 
+    @Override
+    void compileLogic() {
+      for (ConditionalTransitionOption option : transitions) {
+        if (option.condition != null) {
+          option.condition.compile();
+        }
+      }
+    }
+
     @Override
     public String follow(Person person, long time) {
       for (ConditionalTransitionOption option : transitions) {
@@ -564,6 +627,23 @@ public abstract class Transition implements Serializable {
       TransitionOption last = transitions.get(transitions.size() - 1);
       return last.transition;
     }
+
+    @Override
+    public Collection<String> forecast(Person person, long from, long until) {
+      List<String> states = new ArrayList<String>();
+      for (ConditionalTransitionOption option : transitions) {
+        Boolean result = option.condition == null ? Boolean.TRUE
+            : option.condition.forecast(person, from, until);
+        if (result == null || result) {
+          states.add(option.transition);
+          if (result != null) {
+            return states;
+          }
+        }
+      }
+      states.add(transitions.get(transitions.size() - 1).transition);
+      return states;
+    }
   }
 
   /**
@@ -598,6 +678,15 @@ public abstract class Transition implements Serializable {
       this.transitions = transitions;
     }
 
+    @Override
+    void compileLogic() {
+      for (ComplexTransitionOption option : transitions) {
+        if (option.condition != null) {
+          option.condition.compile();
+        }
+      }
+    }
+
     @Override
     public String follow(Person person, long time) {
       for (ComplexTransitionOption option : transitions) {
@@ -611,6 +700,33 @@ public abstract class Transition implements Serializable {
       return follow(last, person);
     }
 
+    @Override
+    public Collection<String> forecast(Person person, long from, long until) {
+      List<String> states = new ArrayList<String>();
+      for (ComplexTransitionOption option : transitions) {
+        Boolean result = option.condition == null ? Boolean.TRUE
+            : option.condition.forecast(person, from, until);
+        if (result == null || result) {
+          addStates(option, states);
+          if (result != null) {
+            return states;
+          }
+        }
+      }
+      addStates(transitions.get(transitions.size() - 1), states);
+      return states;
+    }
+
+    private void addStates(ComplexTransitionOption option, List<String> states) {
+      if (option.transition != null) {
+        states.add(option.transition);
+      } else if (option.distributions != null) {
+        for (DistributedTransitionOption distribution : option.distributions) {
+          states.add(distribution.transition);
+        }
+      }
+    }
+
     private String follow(ComplexTransitionOption option, Person person) {
       if (option.transition != null) {
         return option.transition;
@@ -272,6 +272,22 @@ public class CSVExporter {
     this.transactionId = new AtomicLong();
   }
 
+  /**
+   * Get the next transactionId, to continue from in an interrupted run.
+   * @return the next transactionId.
+   */
+  public long getNextTransactionId() {
+    return transactionId.get();
+  }
+
+  /**
+   * Continue the transactionIds from the given value, such as that of an interrupted run.
+   * @param nextTransactionId the next transactionId, as returned by getNextTransactionId().
+   */
+  public void setNextTransactionId(long nextTransactionId) {
+    transactionId.set(nextTransactionId);
+  }
+
   /**
    * Helper function to convert a list of files directly from synthea.properties to filenames.
    * @param fileListString String directly from Config, ex "patients.csv,conditions , procedures"
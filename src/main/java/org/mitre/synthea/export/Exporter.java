@@ -17,6 +17,7 @@ import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Properties;
 import java.util.ServiceLoader;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
@@ -35,6 +36,7 @@ import org.mitre.synthea.export.flexporter.FlexporterJavascriptContext;
 import org.mitre.synthea.export.flexporter.Mapping;
 import org.mitre.synthea.export.rif.BB2RIFExporter;
 import org.mitre.synthea.helpers.Config;
+import org.mitre.synthea.helpers.RunMetrics;
 import org.mitre.synthea.helpers.TransitionMetrics;
 import org.mitre.synthea.helpers.Utilities;
 import org.mitre.synthea.identity.Entity;
@@ -102,6 +104,8 @@ public abstract class Exporter {
 
     public int yearsOfHistory;
     public boolean deferExports = false;
+    /** Whether per-person files may replace existing files, as when resuming a run. */
+    public boolean overwriteFiles = false;
     public boolean terminologyService =
         !Config.get("generate.terminology_service_url", "").isEmpty();
     private BlockingQueue<String> recordQueue;
@@ -118,6 +122,7 @@ public abstract class Exporter {
     public ExporterRuntimeOptions(ExporterRuntimeOptions init) {
       yearsOfHistory = init.yearsOfHistory;
       deferExports = init.deferExports;
+      overwriteFiles = init.overwriteFiles;
       terminologyService = init.terminologyService;
       recordQueue = init.recordQueue;
       fhirVersion = init.fhirVersion;
@@ -245,6 +250,7 @@ public abstract class Exporter {
     }
 
     if (Config.getAsBoolean("exporter.fhir_stu3.export")) {
+      long start = System.nanoTime();
       File outDirectory = getOutputFolder("fhir_stu3", person);
       if (Config.getAsBoolean("exporter.fhir.bulk_data")) {
         org.hl7.fhir.dstu3.model.Bundle bundle = FhirStu3.convertToFHIR(person, stopTime);
@@ -258,10 +264,12 @@ public abstract class Exporter {
       } else {
         String bundleJson = FhirStu3.convertToFHIRJson(person, stopTime);
         Path outFilePath = outDirectory.toPath().resolve(filename(person, fileTag, "json"));
-        writeNewFile(outFilePath, bundleJson);
+        writeNewFile(outFilePath, bundleJson, options);
       }
+      RunMetrics.record("export.fhir_stu3", start);
     }
     if (Config.getAsBoolean("exporter.fhir_dstu2.export")) {
+      long start = System.nanoTime();
       File outDirectory = getOutputFolder("fhir_dstu2", person);
       if (Config.getAsBoolean("exporter.fhir.bulk_data")) {
         ca.uhn.fhir.model.dstu2.resource.Bundle bundle = FhirDstu2.convertToFHIR(person, stopTime);
@@ -275,10 +283,12 @@ public abstract class Exporter {
       } else {
         String bundleJson = FhirDstu2.convertToFHIRJson(person, stopTime);
         Path outFilePath = outDirectory.toPath().resolve(filename(person, fileTag, "json"));
-        writeNewFile(outFilePath, bundleJson);
+        writeNewFile(outFilePath, bundleJson, options);
       }
+      RunMetrics.record("export.fhir_dstu2", start);
     }
     if (Config.getAsBoolean("exporter.fhir.export")) {
+      long start = System.nanoTime();
       File outDirectory = getOutputFolder("fhir", person);
       org.hl7.fhir.r4.model.Bundle bundle = FhirR4.convertToFHIR(person, stopTime);
 
@@ -310,94 +320,120 @@ public abstract class Exporter {
         parser.setPrettyPrint(true);
         String bundleJson = parser.encodeResourceToString(bundle);
         Path outFilePath = outDirectory.toPath().resolve(filename(person, fileTag, "json"));
-        writeNewFile(outFilePath, bundleJson);
+        writeNewFile(outFilePath, bundleJson, options);
       }
       FhirGroupExporterR4.addPatient((String) person.attributes.get(Person.ID));
+      RunMetrics.record("export.fhir", start);
     }
     if (Config.getAsBoolean("exporter.ccda.export")) {
+      long start = System.nanoTime();
       String ccdaXml = CCDAExporter.export(person, stopTime);
       File outDirectory = getOutputFolder("ccda", person);
       Path outFilePath = outDirectory.toPath().resolve(filename(person, fileTag, "xml"));
-      writeNewFile(outFilePath, ccdaXml);
+      writeNewFile(outFilePath, ccdaXml, options);
+      RunMetrics.record("export.ccda", start);
     }
     if (Config.getAsBoolean("exporter.json.export")) {
+      long start = System.nanoTime();
       String json = JSONExporter.export(person);
       File outDirectory = getOutputFolder("json", person);
       Path outFilePath = outDirectory.toPath().resolve(filename(person, fileTag, "json"));
-      writeNewFile(outFilePath, json);
+      writeNewFile(outFilePath, json, options);
+      RunMetrics.record("export.json", start);
     }
     if (Config.getAsBoolean("exporter.csv.export")) {
+      long start = System.nanoTime();
       try {
         CSVExporter.getInstance().export(person, stopTime);
       } catch (IOException e) {
         e.printStackTrace();
       }
+      RunMetrics.record("export.csv", start);
     }
     if (Config.getAsBoolean("exporter.bfd.export")) {
+      long start = System.nanoTime();
       try {
         BB2RIFExporter exporter = BB2RIFExporter.getInstance();
         wasExported = exporter.export(person, stopTime, options.yearsOfHistory);
       } catch (IOException e) {
         e.printStackTrace();
       }
+      RunMetrics.record("export.bfd", start);
     }
     if (Config.getAsBoolean("exporter.cpcds.export")) {
+      long start = System.nanoTime();
       try {
         CPCDSExporter.getInstance().export(person, stopTime);
       } catch (IOException e) {
         e.printStackTrace();
       }
+      RunMetrics.record("export.cpcds", start);
     }
     if (Config.getAsBoolean("exporter.text.export")) {
+      long start = System.nanoTime();
       try {
         TextExporter.exportAll(person, fileTag, stopTime);
       } catch (IOException e) {
         e.printStackTrace();
       }
+      RunMetrics.record("export.text", start);
     }
     if (Config.getAsBoolean("exporter.text.per_encounter_export")) {
+      long start = System.nanoTime();
       try {
         TextExporter.exportEncounter(person, stopTime);
       } catch (IOException e) {
         e.printStackTrace();
       }
+      RunMetrics.record("export.text_per_encounter", start);
     }
     if (Config.getAsBoolean("exporter.symptoms.csv.export")) {
+      long start = System.nanoTime();
       try {
         SymptomCSVExporter.getInstance().export(person, stopTime);
       } catch (IOException e) {
         e.printStackTrace();
       }
+      RunMetrics.record("export.symptoms_csv", start);
     }
     if (Config.getAsBoolean("exporter.symptoms.text.export")) {
+      long start = System.nanoTime();
       try {
         SymptomTextExporter.exportAll(person, fileTag, stopTime);
       } catch (IOException e) {
         e.printStackTrace();
       }
+      RunMetrics.record("export.symptoms_text", start);
     }
     if (Config.getAsBoolean("exporter.cdw.export")) {
+      long start = System.nanoTime();
       try {
         CDWExporter.getInstance().export(person, stopTime);
       } catch (IOException e) {
         e.printStackTrace();
       }
+      RunMetrics.record("export.cdw", start);
     }
     if (Config.getAsBoolean("exporter.clinical_note.export")) {
+      long start = System.nanoTime();
       File outDirectory = getOutputFolder("notes", person);
       Path outFilePath = outDirectory.toPath().resolve(filename(person, fileTag, "txt"));
       String consolidatedNotes = ClinicalNoteExporter.export(person);
-      writeNewFile(outFilePath, consolidatedNotes);
+      writeNewFile(outFilePath, consolidatedNotes, options);
+      RunMetrics.record("export.clinical_note", start);
     }
 
     if (Config.getAsBoolean("exporter.custom.export", true)
             && patientExporters != null && !patientExporters.isEmpty()) {
+      long start = System.nanoTime();
       for (PatientExporter patientExporter : patientExporters) {
         patientExporter.export(person, stopTime, options);
       }
+      RunMetrics.record("export.custom", start);
     }
 
     if (options.isQueueEnabled()) {
+      long start = System.nanoTime();
       try {
         switch (options.queuedFhirVersion()) {
           case DSTU2:
@@ -415,16 +451,23 @@ public abstract class Exporter {
       } catch (Exception e) {
         e.printStackTrace();
       }
+      RunMetrics.record("export.queue", start);
     }
     return wasExported;
   }
 
   /**
-   * Write a new file with the given contents. Fails if the file already exists.
+   * Write a new file with the given contents. Fails if the file already exists, unless the
+   * options allow existing files to be overwritten.
    * @param file Path to the new file.
    * @param contents The contents of the file.
+   * @param options Runtime exporter options.
    */
-  private static void writeNewFile(Path file, String contents) {
+  private static void writeNewFile(Path file, String contents, ExporterRuntimeOptions options) {
+    if (options.overwriteFiles) {
+      overwriteFile(file, contents);
+      return;
+    }
     try {
       Files.write(file, Collections.singleton(contents), StandardOpenOption.CREATE_NEW);
     } catch (IOException e) {
@@ -475,6 +518,73 @@ public abstract class Exporter {
     }
   }
 
+  /**
+   * Flushes the data of all open files, leaving them open.
+   */
+  public static void flushOpenFiles() {
+    for (PrintWriter writer : fileWriters.values()) {
+      synchronized (writer) {
+        writer.flush();
+      }
+    }
+  }
+
+  /**
+   * Account for a person that was exported before an interrupted run was resumed, without
+   * exporting them again, so the exporters that run once the population is complete include
+   * them. Deferred exports were never written, so they are deferred again.
+   *
+   * @param person   Patient that was exported
+   * @param stopTime Time at which the simulation stopped
+   * @param options Runtime exporter options
+   */
+  public static void exportedBefore(Person person, long stopTime,
+      ExporterRuntimeOptions options) {
+    if (options.deferExports) {
+      export(person, stopTime, options);
+    } else if (Config.getAsBoolean("exporter.fhir.export")) {
+      int records = person.hasMultipleRecords ? person.records.size() : 1;
+      for (int i = 0; i < records; i++) {
+        FhirGroupExporterR4.addPatient((String) person.attributes.get(Person.ID));
+      }
+    }
+  }
+
+  /**
+   * Get the state of the exporters that is not kept in their output files, such as the next
+   * BFD and CSV identifiers, so that an interrupted run can continue from it.
+   * @return the state of the enabled exporters.
+   */
+  public static Properties getState() {
+    Properties state = new Properties();
+    if (Config.getAsBoolean("exporter.bfd.export")) {
+      state.putAll(BB2RIFExporter.getEndState());
+      state.putAll(BB2RIFExporter.getInstance().getMissingCodeState());
+    }
+    if (Config.getAsBoolean("exporter.csv.export")) {
+      state.setProperty("exporter.csv.transaction_id_start",
+          Long.toString(CSVExporter.getInstance().getNextTransactionId()));
+    }
+    return state;
+  }
+
+  /**
+   * Continue the exporters from a state returned by getState().
+   * @param state the state of the exporters.
+   */
+  public static void restoreState(Properties state) {
+    if (Config.getAsBoolean("exporter.bfd.export") && !state.isEmpty()) {
+      BB2RIFExporter.setEndState(state);
+      BB2RIFExporter exporter = BB2RIFExporter.getInstance();
+      exporter.setMissingCodeState(state);
+      exporter.continueOutputFiles();
+    }
+    String transactionId = state.getProperty("exporter.csv.transaction_id_start");
+    if (Config.getAsBoolean("exporter.csv.export") && transactionId != null) {
+      CSVExporter.getInstance().setNextTransactionId(Long.parseLong(transactionId));
+    }
+  }
+
   /**
    * Flushes the data and closes all open files.
    */
@@ -592,6 +702,10 @@ public abstract class Exporter {
       TransitionMetrics.exportMetrics();
     }
 
+    if (TransitionMetrics.profiling) {
+      TransitionMetrics.exportProfile();
+    }
+
     if (Config.getAsBoolean("exporter.fhir.bulk_data")) {
       IParser parser = FhirR4.getContext().newJsonParser();
       parser.setPrettyPrint(false);
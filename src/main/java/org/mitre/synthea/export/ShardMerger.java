@@ -0,0 +1,462 @@
+package org.mitre.synthea.export;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.mitre.synthea.helpers.SimpleCSV;
+
+/**
+ * Utility for combining the output directories of a population that was generated in shards
+ * (using the -shard option) into the output of a single run.
+ *
+ * <p>Files written per person are copied, and files that every person appends to (such as
+ * patients.csv or Patient.ndjson) are concatenated. The files written once at the end of each
+ * run describe only the persons of that shard, so they are combined: provider, organization and
+ * payer utilization is summed, the FHIR Group lists the members of every shard, hospital and
+ * practitioner resources are merged with their utilization extensions summed, and the BFD NPI
+ * file, manifest and end state cover every shard.
+ *
+ * <p>Every shard must have been run with the same seed and end date, so that the files named by
+ * the stop time of the run match. The merge fails if they do not.
+ */
+public class ShardMerger {
+  private static final Gson COMPACT = new Gson();
+  private static final Gson PRETTY = new GsonBuilder().setPrettyPrinting().create();
+
+  /** Columns of organizations.csv that are summed across shards. */
+  private static final Set<String> ORGANIZATION_TOTALS =
+      new LinkedHashSet<String>(Arrays.asList("REVENUE", "UTILIZATION"));
+  /** Columns of providers.csv that are summed across shards. */
+  private static final Set<String> PROVIDER_TOTALS =
+      new LinkedHashSet<String>(Arrays.asList("ENCOUNTERS", "PROCEDURES"));
+  /** Columns of payers.csv that are summed across shards. */
+  private static final Set<String> PAYER_TOTALS = new LinkedHashSet<String>(Arrays.asList(
+      "AMOUNT_COVERED", "AMOUNT_UNCOVERED", "REVENUE", "COVERED_ENCOUNTERS",
+      "UNCOVERED_ENCOUNTERS", "COVERED_MEDICATIONS", "UNCOVERED_MEDICATIONS",
+      "COVERED_PROCEDURES", "UNCOVERED_PROCEDURES", "COVERED_IMMUNIZATIONS",
+      "UNCOVERED_IMMUNIZATIONS", "UNIQUE_CUSTOMERS", "MEMBER_MONTHS"));
+  /** Files written at the end of a run, whose names include the stop time of the run. */
+  private static final Pattern STOP_TIME_FILE = Pattern.compile(
+      "(?:hospital|practitioner|group)Information(\\d+)\\.json|[A-Za-z]+\\.(\\d+)\\.ndjson");
+
+  /**
+   * Merge the output directories of each shard into a single output directory.
+   * @param args the output directory, followed by the output directory of each shard.
+   * @throws IOException if something goes wrong
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.out.println("Usage ./gradlew mergeShards -Pargs=\"outputDir shardDir...\"");
+      System.exit(-1);
+    }
+    List<Path> shards = Arrays.stream(args).skip(1).map(Paths::get)
+        .collect(Collectors.toList());
+    merge(Paths.get(args[0]), shards);
+  }
+
+  /**
+   * Merge the output directories of each shard into a single output directory.
+   * @param output the directory to write the merged output to.
+   * @param shards the output directory of each shard.
+   * @throws IOException if a file cannot be read or written.
+   */
+  public static void merge(Path output, List<Path> shards) throws IOException {
+    // the shards each file appears in, by its path relative to the output directory
+    Map<String, List<Path>> files = new TreeMap<String, List<Path>>();
+    for (Path shard : shards) {
+      try (Stream<Path> paths = Files.walk(shard)) {
+        for (Path path : (Iterable<Path>) paths.filter(Files::isRegularFile)::iterator) {
+          String relative = shard.relativize(path).toString().replace('\\', '/');
+          files.computeIfAbsent(relative, k -> new ArrayList<Path>()).add(path);
+        }
+      }
+    }
+    checkStopTimes(files);
+    for (Map.Entry<String, List<Path>> entry : files.entrySet()) {
+      Path target = output.resolve(entry.getKey());
+      Files.createDirectories(target.getParent());
+      mergeFile(entry.getKey(), entry.getValue(), target);
+    }
+  }
+
+  /**
+   * Check that the files named by the stop time of the run have the same stop time in every
+   * shard, otherwise they would not be merged with each other.
+   * @param files the shards each file appears in, by its relative path.
+   * @throws IOException if the shards ended at different times.
+   */
+  private static void checkStopTimes(Map<String, List<Path>> files) throws IOException {
+    Set<String> stopTimes = new LinkedHashSet<String>();
+    for (String relative : files.keySet()) {
+      Matcher matcher = STOP_TIME_FILE.matcher(relative.substring(relative.lastIndexOf('/') + 1));
+      if (matcher.matches()) {
+        stopTimes.add(matcher.group(1) != null ? matcher.group(1) : matcher.group(2));
+      }
+    }
+    if (stopTimes.size() > 1) {
+      throw new IOException(String.format("Shards ended at different times %s, "
+          + "every shard must be run with the same -s seed and -e end date", stopTimes));
+    }
+  }
+
+  /**
+   * Merge the copies of one file from each shard.
+   * @param relative the path of the file relative to the output directory.
+   * @param sources the file in each shard that has it.
+   * @param target the merged file to write.
+   */
+  private static void mergeFile(String relative, List<Path> sources, Path target)
+      throws IOException {
+    String name = relative.substring(relative.lastIndexOf('/') + 1);
+    if (sources.size() == 1) {
+      Files.copy(sources.get(0), target, StandardCopyOption.REPLACE_EXISTING);
+    } else if (name.equals("organizations.csv")) {
+      mergeTotals(sources, target, ORGANIZATION_TOTALS);
+    } else if (name.equals("providers.csv")) {
+      mergeTotals(sources, target, PROVIDER_TOTALS);
+    } else if (name.equals("payers.csv")) {
+      mergeTotals(sources, target, PAYER_TOTALS);
+    } else if (name.equals("Group.ndjson") || name.matches("groupInformation\\d+\\.json")) {
+      mergeGroups(sources, target, name.endsWith(".ndjson"));
+    } else if (name.matches("(hospital|practitioner)Information\\d+\\.json")) {
+      mergeBundles(sources, target);
+    } else if (name.matches("[A-Za-z]+\\.\\d+\\.ndjson")) {
+      // Organization, Location, Practitioner and PractitionerRole resources written at the end
+      mergeResources(sources, target);
+    } else if (name.equals("manifest.xml")) {
+      mergeManifests(sources, target);
+    } else if (name.equals("end_state.properties")) {
+      mergeEndStates(sources, target);
+    } else if (name.equals("missing_codes.csv")
+        || (relative.startsWith("bfd/") && name.endsWith(".tsv"))) {
+      // lists of providers or codes that each shard may have in common
+      mergeDistinctLines(sources, target);
+    } else if (name.endsWith(".csv") || name.endsWith(".tsv")) {
+      concatenate(sources, target, true);
+    } else if (name.endsWith(".ndjson")) {
+      concatenate(sources, target, false);
+    } else {
+      Files.copy(sources.get(0), target, StandardCopyOption.REPLACE_EXISTING);
+      byte[] contents = Files.readAllBytes(sources.get(0));
+      for (Path source : sources.subList(1, sources.size())) {
+        if (!Arrays.equals(contents, Files.readAllBytes(source))) {
+          System.out.printf("Warning: %s differs between shards, using %s\n", relative,
+              sources.get(0));
+          break;
+        }
+      }
+    }
+  }
+
+  /**
+   * Concatenate files, keeping only the header line of the first.
+   */
+  private static void concatenate(List<Path> sources, Path target, boolean hasHeader)
+      throws IOException {
+    try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(target))) {
+      boolean first = true;
+      for (Path source : sources) {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(source))) {
+          if (hasHeader && !first) {
+            int b;
+            while ((b = in.read()) != -1 && b != '\n') {
+              // skip the header
+            }
+          }
+          in.transferTo(out);
+        }
+        first = false;
+      }
+    }
+  }
+
+  /**
+   * Combine the distinct lines of each file, keeping the header line of the first.
+   */
+  private static void mergeDistinctLines(List<Path> sources, Path target) throws IOException {
+    Set<String> lines = new LinkedHashSet<String>();
+    for (Path source : sources) {
+      lines.addAll(Files.readAllLines(source, StandardCharsets.UTF_8));
+    }
+    Files.write(target, lines, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Combine CSV files with one row per entity (identified by the Id column) and summed columns.
+   * The remaining columns are the same in every shard. The QOLS_AVG column of payers.csv is an
+   * average per member month, so it is weighted by MEMBER_MONTHS.
+   */
+  private static void mergeTotals(List<Path> sources, Path target, Set<String> totals)
+      throws IOException {
+    Map<String, LinkedHashMap<String, String>> rows =
+        new LinkedHashMap<String, LinkedHashMap<String, String>>();
+    Map<String, BigDecimal> qols = new LinkedHashMap<String, BigDecimal>();
+    for (Path source : sources) {
+      String csv = new String(Files.readAllBytes(source), StandardCharsets.UTF_8);
+      for (LinkedHashMap<String, String> row : SimpleCSV.parse(csv)) {
+        String id = row.get("Id");
+        if (row.containsKey("QOLS_AVG")) {
+          qols.merge(id, number(row.get("QOLS_AVG")).multiply(number(row.get("MEMBER_MONTHS"))),
+              BigDecimal::add);
+        }
+        LinkedHashMap<String, String> merged = rows.get(id);
+        if (merged == null) {
+          rows.put(id, row);
+        } else {
+          for (String column : totals) {
+            merged.put(column,
+                number(merged.get(column)).add(number(row.get(column))).toPlainString());
+          }
+        }
+      }
+    }
+    for (Map.Entry<String, BigDecimal> entry : qols.entrySet()) {
+      LinkedHashMap<String, String> row = rows.get(entry.getKey());
+      BigDecimal months = number(row.get("MEMBER_MONTHS"));
+      if (months.signum() != 0) {
+        row.put("QOLS_AVG", Double.toString(entry.getValue().doubleValue()
+            / months.doubleValue()));
+      }
+    }
+    Files.write(target, SimpleCSV.unparse(new ArrayList<LinkedHashMap<String, String>>(
+        rows.values())).getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static BigDecimal number(String value) {
+    try {
+      return new BigDecimal(value);
+    } catch (NumberFormatException | NullPointerException e) {
+      // NaN or Infinity from an average over no members
+      return BigDecimal.ZERO;
+    }
+  }
+
+  /**
+   * Combine the FHIR Group resources of each shard into one Group with every member.
+   */
+  private static void mergeGroups(List<Path> sources, Path target, boolean ndjson)
+      throws IOException {
+    JsonObject group = null;
+    JsonArray members = new JsonArray();
+    for (Path source : sources) {
+      for (JsonObject shardGroup : readResources(source, ndjson)) {
+        if (group == null) {
+          group = shardGroup;
+        }
+        if (shardGroup.has("member")) {
+          members.addAll(shardGroup.getAsJsonArray("member"));
+        }
+      }
+    }
+    group.add("member", members);
+    group.addProperty("quantity", members.size());
+    writeResources(target, Arrays.asList(group), ndjson);
+  }
+
+  /**
+   * Combine the hospital or practitioner Bundles of each shard. Entries that appear in several
+   * shards are merged.
+   */
+  private static void mergeBundles(List<Path> sources, Path target) throws IOException {
+    JsonObject bundle = null;
+    Map<String, JsonObject> entries = new LinkedHashMap<String, JsonObject>();
+    for (Path source : sources) {
+      JsonObject shardBundle = readResources(source, false).get(0);
+      if (bundle == null) {
+        bundle = shardBundle;
+      }
+      if (shardBundle.has("entry")) {
+        for (JsonElement element : shardBundle.getAsJsonArray("entry")) {
+          JsonObject entry = element.getAsJsonObject();
+          JsonObject resource = entry.getAsJsonObject("resource");
+          String key = entry.has("fullUrl") ? entry.get("fullUrl").getAsString()
+              : resourceKey(resource);
+          JsonObject existing = entries.get(key);
+          if (existing == null) {
+            entries.put(key, entry);
+          } else {
+            sumUtilization(existing.getAsJsonObject("resource"), resource);
+          }
+        }
+      }
+    }
+    JsonArray merged = new JsonArray();
+    entries.values().forEach(merged::add);
+    bundle.add("entry", merged);
+    writeResources(target, Arrays.asList(bundle), false);
+  }
+
+  /**
+   * Combine NDJSON files of resources written at the end of each shard. Resources that appear
+   * in several shards are merged.
+   */
+  private static void mergeResources(List<Path> sources, Path target) throws IOException {
+    Map<String, JsonObject> resources = new LinkedHashMap<String, JsonObject>();
+    for (Path source : sources) {
+      for (JsonObject resource : readResources(source, true)) {
+        JsonObject existing = resources.putIfAbsent(resourceKey(resource), resource);
+        if (existing != null) {
+          sumUtilization(existing, resource);
+        }
+      }
+    }
+    writeResources(target, resources.values(), true);
+  }
+
+  private static String resourceKey(JsonObject resource) {
+    return resource.get("resourceType").getAsString() + "/" + resource.get("id").getAsString();
+  }
+
+  /**
+   * Add the utilization extensions of a resource from another shard to the same resource.
+   */
+  private static void sumUtilization(JsonObject resource, JsonObject other) {
+    if (!other.has("extension")) {
+      return;
+    }
+    if (!resource.has("extension")) {
+      resource.add("extension", new JsonArray());
+    }
+    JsonArray extensions = resource.getAsJsonArray("extension");
+    for (JsonElement element : other.getAsJsonArray("extension")) {
+      JsonObject extension = element.getAsJsonObject();
+      String url = extension.get("url").getAsString();
+      if (!url.contains("utilization") || !extension.has("valueInteger")) {
+        continue;
+      }
+      JsonObject existing = null;
+      for (JsonElement candidate : extensions) {
+        if (candidate.getAsJsonObject().get("url").getAsString().equals(url)) {
+          existing = candidate.getAsJsonObject();
+        }
+      }
+      if (existing == null) {
+        extensions.add(extension);
+      } else {
+        existing.addProperty("valueInteger", existing.get("valueInteger").getAsInt()
+            + extension.get("valueInteger").getAsInt());
+      }
+    }
+  }
+
+  private static List<JsonObject> readResources(Path source, boolean ndjson) throws IOException {
+    List<JsonObject> resources = new ArrayList<JsonObject>();
+    if (ndjson) {
+      for (String line : Files.readAllLines(source, StandardCharsets.UTF_8)) {
+        if (!line.isEmpty()) {
+          resources.add(JsonParser.parseString(line).getAsJsonObject());
+        }
+      }
+    } else {
+      try (Reader reader = Files.newBufferedReader(source, StandardCharsets.UTF_8)) {
+        resources.add(JsonParser.parseReader(reader).getAsJsonObject());
+      }
+    }
+    return resources;
+  }
+
+  private static void writeResources(Path target, Iterable<JsonObject> resources,
+      boolean ndjson) throws IOException {
+    try (Writer writer = Files.newBufferedWriter(target, StandardCharsets.UTF_8)) {
+      for (JsonObject resource : resources) {
+        writer.write((ndjson ? COMPACT : PRETTY).toJson(resource));
+        writer.write('\n');
+      }
+    }
+  }
+
+  /**
+   * Combine the BFD manifests of each shard, listing every RIF file once.
+   */
+  private static void mergeManifests(List<Path> sources, Path target) throws IOException {
+    List<String> header = new ArrayList<String>();
+    Set<String> entries = new LinkedHashSet<String>();
+    String footer = null;
+    for (Path source : sources) {
+      for (String line : Files.readAllLines(source, StandardCharsets.UTF_8)) {
+        if (line.trim().startsWith("<entry")) {
+          entries.add(line);
+        } else if (line.trim().startsWith("</dataSetManifest")) {
+          footer = line;
+        } else if (entries.isEmpty() && source.equals(sources.get(0))) {
+          header.add(line);
+        }
+      }
+    }
+    List<String> lines = new ArrayList<String>(header);
+    lines.addAll(entries);
+    lines.add(footer);
+    Files.write(target, lines, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Combine the BFD end states of each shard. Each property is the next identifier to use, so
+   * the furthest value of every shard is kept: numeric identifiers (bene_id, clm_id, clm_grp_id,
+   * pde_id and the *_cntl_num properties) count down from their start, so the lowest is kept,
+   * while formatted identifiers (MBIs and HICNs) count up, so the highest is kept. This assumes
+   * each shard was given its own range of identifiers with the exporter.bfd.*_start settings.
+   */
+  private static void mergeEndStates(List<Path> sources, Path target) throws IOException {
+    Properties merged = new Properties();
+    for (Path source : sources) {
+      Properties endState = new Properties();
+      try (Reader reader = Files.newBufferedReader(source, StandardCharsets.ISO_8859_1)) {
+        endState.load(reader);
+      }
+      for (String key : endState.stringPropertyNames()) {
+        String value = endState.getProperty(key);
+        String current = merged.getProperty(key);
+        if (current == null || isFurther(value, current)) {
+          merged.setProperty(key, value);
+        }
+      }
+    }
+    try (OutputStream out = Files.newOutputStream(target)) {
+      merged.store(out, "BFD Properties End State");
+    }
+  }
+
+  /**
+   * Whether the next identifier a has been counted further than b. Identifiers are either
+   * numbers, which are assigned counting down, or formatted strings such as MBIs, which are
+   * assigned counting up.
+   */
+  private static boolean isFurther(String a, String b) {
+    try {
+      return new BigDecimal(a).compareTo(new BigDecimal(b)) < 0;
+    } catch (NumberFormatException e) {
+      return a.compareTo(b) > 0;
+    }
+  }
+}
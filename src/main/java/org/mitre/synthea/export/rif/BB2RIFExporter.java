@@ -11,6 +11,7 @@ import java.nio.file.Path;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
@@ -23,6 +24,8 @@ import java.util.concurrent.atomic.AtomicInteger;
 import org.mitre.synthea.export.Exporter;
 import org.mitre.synthea.export.rif.BB2RIFStructure.EXPORT_SUMMARY;
 import org.mitre.synthea.export.rif.BB2RIFStructure.NPI;
+import org.mitre.synthea.export.rif.identifiers.HICN;
+import org.mitre.synthea.export.rif.identifiers.MBI;
 import org.mitre.synthea.export.rif.tools.StaticFieldConfig;
 import org.mitre.synthea.helpers.Config;
 import org.mitre.synthea.helpers.RandomCollection;
@@ -330,6 +333,19 @@ public class BB2RIFExporter {
    * @throws IOException if something goes wrong
    */
   public void exportEndState() throws IOException {
+    Properties endState = getEndState();
+    File outputDir = Exporter.getOutputFolder("bfd", null);
+    FileOutputStream f = new FileOutputStream(new File(outputDir, "end_state.properties"));
+    endState.store(f, "BFD Properties End State");
+    f.close();
+  }
+
+  /**
+   * Get the current values of IDs, as the exporter.bfd.*_start properties that continue from
+   * them.
+   * @return the next value of each ID.
+   */
+  public static Properties getEndState() {
     Properties endState = new Properties();
     endState.setProperty("exporter.bfd.bene_id_start", BeneficiaryExporter.nextBeneId.toString());
     endState.setProperty("exporter.bfd.clm_id_start", RIFExporter.nextClaimId.toString());
@@ -341,10 +357,47 @@ public class BB2RIFExporter {
             RIFExporter.nextFiDocCntlNum.toString());
     endState.setProperty("exporter.bfd.carr_clm_cntl_num_start",
             CarrierExporter.nextCarrClmCntlNum.toString());
-    File outputDir = Exporter.getOutputFolder("bfd", null);
-    FileOutputStream f = new FileOutputStream(new File(outputDir, "end_state.properties"));
-    endState.store(f, "BFD Properties End State");
-    f.close();
+    return endState;
+  }
+
+  /**
+   * Continue the IDs from the given values, such as those of an interrupted run.
+   * @param endState the next value of each ID, as returned by getEndState(). IDs without a
+   *     value are left unchanged.
+   */
+  public static void setEndState(Properties endState) {
+    String value = endState.getProperty("exporter.bfd.bene_id_start");
+    if (value != null) {
+      BeneficiaryExporter.nextBeneId.set(Long.parseLong(value));
+    }
+    value = endState.getProperty("exporter.bfd.clm_id_start");
+    if (value != null) {
+      RIFExporter.nextClaimId.set(Long.parseLong(value));
+    }
+    value = endState.getProperty("exporter.bfd.clm_grp_id_start");
+    if (value != null) {
+      RIFExporter.nextClaimGroupId.set(Long.parseLong(value));
+    }
+    value = endState.getProperty("exporter.bfd.pde_id_start");
+    if (value != null) {
+      PDEExporter.nextPdeId.set(Long.parseLong(value));
+    }
+    value = endState.getProperty("exporter.bfd.mbi_start");
+    if (value != null) {
+      BeneficiaryExporter.nextMbi.set(MBI.parse(value));
+    }
+    value = endState.getProperty("exporter.bfd.hicn_start");
+    if (value != null) {
+      BeneficiaryExporter.nextHicn.set(HICN.parse(value));
+    }
+    value = endState.getProperty("exporter.bfd.fi_doc_cntl_num_start");
+    if (value != null) {
+      RIFExporter.nextFiDocCntlNum.set(Long.parseLong(value));
+    }
+    value = endState.getProperty("exporter.bfd.carr_clm_cntl_num_start");
+    if (value != null) {
+      CarrierExporter.nextCarrClmCntlNum.set(Long.parseLong(value));
+    }
   }
 
   /**
@@ -354,17 +407,9 @@ public class BB2RIFExporter {
   public void exportMissingCodes() throws IOException {
     if (Config.getAsBoolean("exporter.bfd.export_missing_codes", true)) {
       List<Map<String, String>> allMissingCodes = new LinkedList<>();
-      allMissingCodes.addAll(conditionCodeMapper.getMissingCodes());
-      allMissingCodes.addAll(medicationCodeMapper.getMissingCodes());
-      allMissingCodes.addAll(drgCodeMapper.getMissingCodes());
-      allMissingCodes.addAll(dmeCodeMapper.getMissingCodes());
-      allMissingCodes.addAll(hcpcsCodeMapper.getMissingCodes());
-      allMissingCodes.addAll(betosCodeMapper.getMissingCodes());
-      allMissingCodes.addAll(snfPPSMapper.getMissingCodes());
-      allMissingCodes.addAll(snfPDPMMapper.getMissingCodes());
-      allMissingCodes.addAll(snfRevCntrMapper.getMissingCodes());
-      allMissingCodes.addAll(hhaRevCntrMapper.getMissingCodes());
-      allMissingCodes.addAll(hospiceRevCntrMapper.getMissingCodes());
+      for (CodeMapper mapper : missingCodeMappers()) {
+        allMissingCodes.addAll(mapper.getMissingCodes());
+      }
 
       File outputDir = Exporter.getOutputFolder("bfd", null);
       if (!allMissingCodes.isEmpty()) {
@@ -374,6 +419,53 @@ public class BB2RIFExporter {
     }
   }
 
+  /**
+   * Get the code mappers whose missing codes are exported.
+   */
+  private List<CodeMapper> missingCodeMappers() {
+    return Arrays.asList(conditionCodeMapper, medicationCodeMapper, drgCodeMapper,
+        dmeCodeMapper, hcpcsCodeMapper, betosCodeMapper, snfPPSMapper, snfPDPMMapper,
+        snfRevCntrMapper, hhaRevCntrMapper, hospiceRevCntrMapper);
+  }
+
+  /**
+   * Get the codes that could not be mapped so far, so that an interrupted run can continue
+   * counting them.
+   * @return the missing codes of each code mapper, by mapper.
+   */
+  public Properties getMissingCodeState() {
+    Properties state = new Properties();
+    List<CodeMapper> mappers = missingCodeMappers();
+    for (int i = 0; i < mappers.size(); i++) {
+      state.setProperty("exporter.bfd.missing_codes." + i, mappers.get(i).getMissingCodeState());
+    }
+    return state;
+  }
+
+  /**
+   * Continue counting the codes that could not be mapped from the given state, such as that of
+   * an interrupted run.
+   * @param state the missing codes, as returned by getMissingCodeState(). Code mappers without
+   *     a value are left unchanged.
+   */
+  public void setMissingCodeState(Properties state) {
+    List<CodeMapper> mappers = missingCodeMappers();
+    for (int i = 0; i < mappers.size(); i++) {
+      String value = state.getProperty("exporter.bfd.missing_codes." + i);
+      if (value != null) {
+        mappers.get(i).setMissingCodeState(value);
+      }
+    }
+  }
+
+  /**
+   * Continue the output files already in the output folder, such as those of an interrupted
+   * run, so they are listed in the manifest along with any new ones.
+   */
+  public void continueOutputFiles() {
+    rifWriters.openExisting(BB2RIFStructure.RIF_FILES);
+  }
+
   /**
    * Export a single person.
    * @param person the person to export
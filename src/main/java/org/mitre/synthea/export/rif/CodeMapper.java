@@ -249,6 +249,30 @@ public class CodeMapper {
     return map(codeToMap.code, bfdCodeType, rand, stripDots);
   }
 
+  /**
+   * Get the codes that could not be mapped so far, with the count of times each was requested,
+   * as JSON, so that an interrupted run can continue counting them.
+   * @return the missing codes, as an array of [system, code, description, count].
+   */
+  String getMissingCodeState() {
+    List<String[]> state = new ArrayList<>(missingCodes.size());
+    missingCodes.forEach((code, count) -> state.add(
+        new String[] { code.system, code.code, code.display, count.toString() }));
+    return new Gson().toJson(state);
+  }
+
+  /**
+   * Continue counting the codes that could not be mapped from a state returned by
+   * getMissingCodeState().
+   * @param state the missing codes, as JSON.
+   */
+  void setMissingCodeState(String state) {
+    for (String[] missing : new Gson().fromJson(state, String[][].class)) {
+      Code code = new Code(missing[0], missing[1], missing[2]);
+      missingCodes.computeIfAbsent(code, k -> new LongAdder()).add(Long.parseLong(missing[3]));
+    }
+  }
+
   /**
    * Get the missing code as a list of maps, where each map includes the mapper name, a missing
    * code, a description, and the count of times the code was requested.
@@ -7,6 +7,8 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Utility class to manage a set of SynchronizedBBLineWriter instances. Will create one per output
@@ -71,6 +73,31 @@ class RifWriters {
     return writer;
   }
 
+  /**
+   * Create a writer for each file of the given types that is already in the output folder, one
+   * per year for per year files, so they are continued rather than left out.
+   * @param rifFiles the types of file to look for.
+   */
+  public synchronized void openExisting(Class<?>[] rifFiles) {
+    String[] names = outputDir.toFile().list();
+    if (names == null) {
+      return;
+    }
+    for (Class<?> rifFile : rifFiles) {
+      // generics and arrays are weird so need to cast below rather than declare on the array
+      Class<? extends Enum> rifEnum = (Class<? extends Enum>) rifFile;
+      Pattern pattern = Pattern.compile(
+          Pattern.quote(rifEnum.getSimpleName().toLowerCase()) + "(_(\\d+))?\\.csv");
+      for (String name : names) {
+        Matcher matcher = pattern.matcher(name);
+        if (matcher.matches()) {
+          int year = matcher.group(2) == null ? -1 : Integer.parseInt(matcher.group(2));
+          getOrCreateWriter(rifEnum, year);
+        }
+      }
+    }
+  }
+
   public <E extends Enum<E>> void writeValues(Class<E> enumClass, Map<E, String> fieldValues)
           throws IOException {
     writeValues(enumClass, fieldValues, -1);
@@ -1,68 +1,91 @@
 package org.mitre.synthea.helpers;
 
 import java.io.Serializable;
-import java.util.Random;
 import java.util.UUID;
-import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A default implementation of the RandomNumberGenerator interface.
  * The goal is to isolate sources of randomness by consolidating the use of java.util.Random
  * or other sources of randomness for traceability.
+ * The numbers are drawn from the RandomEngine configured with "generate.rng_engine".
+ * A generator must only be used by one thread at a time.
  */
 public class DefaultRandomNumberGenerator implements RandomNumberGenerator, Serializable {
 
   private long seed;
-  private Random random;
-  private AtomicLong count;
+  private RandomEngine.Source random;
+  private long count;
 
   /**
-   * Create a new default random number generator.
+   * Create a new default random number generator, using the configured engine.
    * @param seed The random number generator seed.
    */
   public DefaultRandomNumberGenerator(long seed) {
+    this(seed, RandomEngine.fromString(Config.get("generate.rng_engine", "legacy")));
+  }
+
+  /**
+   * Create a new default random number generator.
+   * @param seed The random number generator seed.
+   * @param engine The engine to draw random numbers from.
+   */
+  public DefaultRandomNumberGenerator(long seed, RandomEngine engine) {
     this.seed = seed;
-    random = new Random(this.seed);
-    count = new AtomicLong();
+    random = engine.create(this.seed);
   }
 
   public long getSeed() {
     return this.seed;
   }
 
+  /**
+   * Derive an independent seed from a seed and an index, such as the seed of the person at a
+   * given index of a population. This is the index-th output of a SplitMix64 generator started
+   * from the seed, so any index can be computed directly without drawing the ones before it.
+   * @param seed The seed to derive from.
+   * @param index The index of the derived seed.
+   * @return The derived seed.
+   */
+  public static long deriveSeed(long seed, long index) {
+    long z = seed + (index + 1) * 0x9E3779B97F4A7C15L;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
   @Override
   public double rand() {
-    count.incrementAndGet();
+    count++;
     return random.nextDouble();
   }
 
   @Override
   public boolean randBoolean() {
-    count.incrementAndGet();
+    count++;
     return random.nextBoolean();
   }
 
   @Override
   public double randGaussian() {
-    count.incrementAndGet();
+    count++;
     return random.nextGaussian();
   }
 
   @Override
   public int randInt() {
-    count.incrementAndGet();
+    count++;
     return random.nextInt();
   }
 
   @Override
   public int randInt(int bound) {
-    count.incrementAndGet();
+    count++;
     return random.nextInt(bound);
   }
 
   @Override
   public long randLong() {
-    count.incrementAndGet();
+    count++;
     return random.nextLong();
   }
 
@@ -73,7 +96,7 @@ public class DefaultRandomNumberGenerator implements RandomNumberGenerator, Seri
 
   @Override
   public long getCount() {
-    return count.get();
+    return count;
   }
 
 }
@@ -2,6 +2,7 @@ package org.mitre.synthea.helpers;
 
 import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
@@ -11,12 +12,14 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Queue;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -43,11 +46,22 @@ public class ExpressionProcessor {
       new ConcurrentHashMap<String, VitalSign>();
   private static final Set<String> attributeSet =
       Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
-  private final LibraryManager libraryManager = new LibraryManager(modelManager);
+  /**
+   * Expressions already translated to ELM, shared by the whole process. Translating CQL is by far
+   * the most expensive part of creating an ExpressionProcessor, and the same handful of expressions
+   * are used by every person that reaches an expression state.
+   */
+  private static final ConcurrentMap<String, CompiledExpression> compiledExpressions =
+      new ConcurrentHashMap<String, CompiledExpression>();
+  /**
+   * ExpressionProcessors shared by every thread, by expression and parameter types. A processor
+   * borrows a library and context from the pool of its expression for each evaluation, so it can
+   * be used by any number of threads at once, including a virtual thread per person.
+   */
+  private static final ConcurrentMap<String, ExpressionProcessor> sharedProcessors =
+      new ConcurrentHashMap<String, ExpressionProcessor>();
   private String expression;
-  private Library library;
-  private Context context;
-  private String elm;
+  private CompiledExpression compiled;
   private Map<String,String> paramTypeMap;
   private BiMap<String,String> cqlParamMap;
 
@@ -65,7 +79,8 @@ public class ExpressionProcessor {
    * @return result of the expression
    */
 
-  private String cqlToElm(String cql) {
+  private static String cqlToElm(String cql) {
+    LibraryManager libraryManager = new LibraryManager(modelManager);
     CqlTranslator translator = CqlTranslator.fromText(cql, modelManager, libraryManager);
 
     if (translator.getErrors().size() > 0) {
@@ -93,29 +108,110 @@ public class ExpressionProcessor {
    * ExpressionProcessor constructor.
    * @param expression Expression to evaluate for each future set of parameters.
    * @param paramTypeMap Map of parameter names to their corresponding CQL types.
+   *     The map is not modified.
    */
   public ExpressionProcessor(String expression, Map<String,String> paramTypeMap) {
-    this.cqlParamMap = HashBiMap.create();
-    this.paramTypeMap = paramTypeMap;
+    // Compile our constructed CQL expression into elm once for the whole process
+    this.compiled = compiledExpressions.computeIfAbsent(
+        cacheKey(expression, paramTypeMap), k -> new CompiledExpression(expression, paramTypeMap));
+    this.cqlParamMap = compiled.cqlParamMap;
+    this.paramTypeMap = compiled.paramTypeMap;
+    this.expression = expression;
 
-    String cleanExpression = replaceParameters(expression);
-    String wrappedExpression = convertParameterizedExpressionToCql(cleanExpression);
+    // read the library now, so an invalid expression fails here rather than when evaluated
+    compiled.release(compiled.borrow());
+  }
 
-    // Compile our constructed CQL expression into elm once for execution
-    // The compiler isn't thread safe, so only allow one thread at a time
-    this.elm = cqlToElm(wrappedExpression);
-    synchronized (ExpressionProcessor.class) {
-      try {
-        CqlLibraryReader reader = new XmlCqlLibraryReader();
-        this.library = reader.read(new ByteArrayInputStream(
-            elm.getBytes(StandardCharsets.UTF_8)));
-      } catch (IOException ex) {
-        throw new RuntimeException(ex);
-      }
+  /**
+   * Get the ExpressionProcessor for the given expression, shared by every thread. Repeated calls
+   * with the same expression (for example from the states of every person) return the same
+   * processor.
+   * @param expression Expression to evaluate, with all parameters as Decimals.
+   * @return the shared ExpressionProcessor.
+   */
+  public static ExpressionProcessor shared(String expression) {
+    return shared(expression, Collections.emptyMap());
+  }
+
+  /**
+   * Get the ExpressionProcessor for the given expression and parameter types, shared by every
+   * thread.
+   * @param expression Expression to evaluate.
+   * @param paramTypeMap Map of parameter names to their corresponding CQL types.
+   * @return the shared ExpressionProcessor.
+   */
+  public static ExpressionProcessor shared(String expression,
+      Map<String,String> paramTypeMap) {
+    return sharedProcessors.computeIfAbsent(cacheKey(expression, paramTypeMap),
+        k -> new ExpressionProcessor(expression, paramTypeMap));
+  }
+
+  /**
+   * Build the key identifying an expression and its parameter types in the caches. Only
+   * surrounding whitespace and line endings are normalized, since whitespace inside the
+   * expression may be part of a string literal.
+   */
+  private static String cacheKey(String expression, Map<String,String> paramTypeMap) {
+    String key = expression.trim().replace("\r\n", "\n");
+    if (!paramTypeMap.isEmpty()) {
+      key += "\n" + new TreeMap<String,String>(paramTypeMap);
     }
+    return key;
+  }
 
-    this.context = new Context(library);
-    this.expression = expression;
+  /**
+   * An expression translated to ELM, along with its parameters and a pool of libraries read from
+   * the ELM. Instances are shared between threads.
+   */
+  private static class CompiledExpression {
+    private final String elm;
+    private final BiMap<String,String> cqlParamMap;
+    private final Map<String,String> paramTypeMap;
+    /** The evaluators not in use. There are only ever as many as evaluations at once. */
+    private final Queue<Evaluator> idle = new ConcurrentLinkedQueue<Evaluator>();
+
+    private CompiledExpression(String expression, Map<String,String> paramTypes) {
+      BiMap<String,String> params = HashBiMap.create();
+      Map<String,String> types = new HashMap<String,String>(paramTypes);
+      String cleanExpression = replaceParameters(expression, params, types);
+      String wrappedExpression =
+          convertParameterizedExpressionToCql(cleanExpression, params, types);
+      this.elm = cqlToElm(wrappedExpression);
+      this.cqlParamMap = Maps.unmodifiableBiMap(params);
+      this.paramTypeMap = Collections.unmodifiableMap(types);
+    }
+
+    private Evaluator borrow() {
+      Evaluator evaluator = idle.poll();
+      return evaluator != null ? evaluator : new Evaluator(elm);
+    }
+
+    private void release(Evaluator evaluator) {
+      idle.add(evaluator);
+    }
+  }
+
+  /**
+   * A library read from the ELM of an expression, and a context to evaluate it in. Neither is
+   * thread safe, so each evaluator is only used by one thread at a time.
+   */
+  private static class Evaluator {
+    private final Library library;
+    private final Context context;
+
+    private Evaluator(String elm) {
+      // The library reader isn't thread safe, so only allow one thread at a time
+      synchronized (ExpressionProcessor.class) {
+        try {
+          CqlLibraryReader reader = new XmlCqlLibraryReader();
+          this.library = reader.read(new ByteArrayInputStream(
+              elm.getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException ex) {
+          throw new RuntimeException(ex);
+        }
+      }
+      this.context = new Context(library);
+    }
   }
 
   /**
@@ -290,12 +386,7 @@ public class ExpressionProcessor {
    */
   public Object evaluate(Map<String,Object> params) {
     // Keep track to make sure all parameters are set
-    Set<String> setParams = new HashSet<String>();
-    for (Entry<String,Object> entry : params.entrySet()) {
-      // Set the CQL compatible parameter name in the context
-      context.setParameter(null, cqlParamMap.get(entry.getKey()), entry.getValue());
-      setParams.add(entry.getKey());
-    }
+    Set<String> setParams = params.keySet();
 
     Set<String> missing = Sets.difference(cqlParamMap.keySet(), setParams);
     Set<String> extra = Sets.difference(setParams, cqlParamMap.keySet());
@@ -312,9 +403,16 @@ public class ExpressionProcessor {
 
     Object retVal = null;
 
-    for (ExpressionDef statement : library.getStatements().getDef()) {
-      retVal = statement.evaluate(context);
+    Evaluator evaluator = compiled.borrow();
+    for (Entry<String,Object> entry : params.entrySet()) {
+      // Set the CQL compatible parameter name in the context
+      evaluator.context.setParameter(null, cqlParamMap.get(entry.getKey()), entry.getValue());
+    }
+    for (ExpressionDef statement : evaluator.library.getStatements().getDef()) {
+      retVal = statement.evaluate(evaluator.context);
     }
+    // an evaluator that failed is dropped rather than re-used
+    compiled.release(evaluator);
 
     try {
       return retVal;
@@ -323,7 +421,8 @@ public class ExpressionProcessor {
     }
   }
 
-  private String replaceParameters(String expression) {
+  private static String replaceParameters(String expression,
+      BiMap<String,String> cqlParamMap, Map<String,String> paramTypeMap) {
     String cleanExpression = expression;
 
     // identify the parameters that are used
@@ -366,7 +465,8 @@ public class ExpressionProcessor {
     return cleanExpression;
   }
 
-  private String convertParameterizedExpressionToCql(String expression) {
+  private static String convertParameterizedExpressionToCql(String expression,
+      BiMap<String,String> cqlParamMap, Map<String,String> paramTypeMap) {
     StringBuilder wrappedExpression = new StringBuilder();
 
     wrappedExpression.append("library " + LIBRARY_NAME + " version '1'\n");
@@ -0,0 +1,316 @@
+package org.mitre.synthea.helpers;
+
+import com.google.common.collect.Iterators;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+/**
+ * IndexedCSV reads the rows of a large reference CSV file (such as the providers, zip codes,
+ * social determinants of health and demographics) that match a value in one column, typically
+ * the state, so that each state only decodes its own rows.
+ *
+ * <p>If "generate.reference_cache" is set, the first time a file is read by a column it is parsed
+ * with SimpleCSV and saved in binary form to the reference cache folder, along with an index of
+ * the rows by the value of that column. Later reads memory-map the binary file and decode only the
+ * rows for the requested values. Each binary file records a checksum of the CSV it was built from,
+ * and is rebuilt when the CSV changes or the binary file cannot be read. If the cache is not
+ * enabled, the CSV is parsed line by line and filtered instead.
+ */
+public final class IndexedCSV {
+  /** Identifies a cache file, "SYNX". */
+  private static final int MAGIC = 0x53594E58;
+  /** Incremented whenever the layout of the cache files changes. */
+  private static final int FORMAT = 1;
+
+  /** The open cache files, by file name and column. */
+  private static final Map<String, IndexedCSV> open = new ConcurrentHashMap<>();
+
+  private final long checksum;
+  private final String[] columns;
+  private final Map<String, int[]> index;
+  private final int[] offsets;
+  private final ByteBuffer rows;
+
+  private IndexedCSV(long checksum, String[] columns, Map<String, int[]> index, int[] offsets,
+      ByteBuffer rows) {
+    this.checksum = checksum;
+    this.columns = columns;
+    this.index = index;
+    this.offsets = offsets;
+    this.rows = rows;
+  }
+
+  /**
+   * Whether the reference cache is enabled, with the "generate.reference_cache" configuration
+   * setting.
+   * @return true if reference files should be cached.
+   */
+  public static boolean enabled() {
+    return Config.getAsBoolean("generate.reference_cache", false);
+  }
+
+  /**
+   * Read the rows of the given CSV file whose value in the given column matches, ignoring case,
+   * any of the given values. The rows are returned in the order of the file, as LinkedHashMaps
+   * from column name to value, the same as SimpleCSV.parseLineByLine.
+   *
+   * @param filename Location of the file, in resources or on the filesystem.
+   * @param column The column to match.
+   * @param values The values to match. Null values are ignored; if there are no other values,
+   *     every row is returned.
+   * @return the matching rows.
+   * @throws IOException if the file cannot be read or parsed.
+   */
+  public static Iterator<LinkedHashMap<String, String>> parse(String filename, String column,
+      String... values) throws IOException {
+    String csv = Utilities.readResource(filename, true, true);
+    List<String> keys = new ArrayList<String>();
+    for (String value : values) {
+      if (value != null) {
+        keys.add(normalize(value));
+      }
+    }
+
+    if (!enabled()) {
+      Iterator<LinkedHashMap<String, String>> all = SimpleCSV.parseLineByLine(csv);
+      if (keys.isEmpty()) {
+        return all;
+      }
+      return Iterators.filter(all, row -> row.get(column) != null
+          && keys.contains(normalize(row.get(column))));
+    }
+
+    long checksum = checksum(csv);
+    File file = file(filename, column);
+    String id = filename + "::" + column;
+    IndexedCSV table = open.get(id);
+    if (table == null || table.checksum != checksum) {
+      table = read(file, checksum);
+      if (table == null) {
+        write(file, csv, column, checksum);
+        table = read(file, checksum);
+        if (table == null) {
+          throw new IOException("Unable to read the reference cache for " + filename);
+        }
+      }
+      open.put(id, table);
+    }
+    return table.rows(keys);
+  }
+
+  /**
+   * Get the matching rows, in the order of the file.
+   */
+  private Iterator<LinkedHashMap<String, String>> rows(List<String> keys) {
+    IntStream matches;
+    if (keys.isEmpty()) {
+      matches = IntStream.range(0, offsets.length);
+    } else {
+      matches = keys.stream().distinct().filter(index::containsKey)
+          .flatMapToInt(key -> Arrays.stream(index.get(key))).sorted();
+    }
+    return matches.mapToObj(this::row).iterator();
+  }
+
+  /**
+   * Decode a single row.
+   */
+  private LinkedHashMap<String, String> row(int number) {
+    ByteBuffer buffer = rows.duplicate();
+    buffer.position(offsets[number]);
+    int count = buffer.getInt();
+    LinkedHashMap<String, String> row = new LinkedHashMap<String, String>();
+    for (int i = 0; i < count; i++) {
+      String column = columns[buffer.getInt()];
+      row.put(column, readString(buffer));
+    }
+    return row;
+  }
+
+  /**
+   * Parse the CSV and write it to the cache file, with an index of the rows by the given column.
+   * The file is written under a temporary name and then moved into place, so concurrent runs
+   * never read a partial file.
+   */
+  private static void write(File file, String csv, String column, long checksum)
+      throws IOException {
+    Map<String, Integer> columnNumbers = new LinkedHashMap<String, Integer>();
+    Map<String, List<Integer>> index = new LinkedHashMap<String, List<Integer>>();
+    List<Integer> offsets = new ArrayList<Integer>();
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+    DataOutputStream rowOut = new DataOutputStream(data);
+
+    Iterator<LinkedHashMap<String, String>> csvRows = SimpleCSV.parseLineByLine(csv);
+    while (csvRows.hasNext()) {
+      LinkedHashMap<String, String> row = csvRows.next();
+      int number = offsets.size();
+      offsets.add(rowOut.size());
+      rowOut.writeInt(row.size());
+      for (Map.Entry<String, String> e : row.entrySet()) {
+        Integer columnNumber = columnNumbers.get(e.getKey());
+        if (columnNumber == null) {
+          columnNumber = columnNumbers.size();
+          columnNumbers.put(e.getKey(), columnNumber);
+        }
+        rowOut.writeInt(columnNumber);
+        writeString(rowOut, e.getValue());
+      }
+      String value = row.get(column);
+      if (value != null) {
+        index.computeIfAbsent(normalize(value), k -> new ArrayList<Integer>()).add(number);
+      }
+    }
+    rowOut.flush();
+
+    file.getParentFile().mkdirs();
+    Path temp = Files.createTempFile(file.getParentFile().toPath(), file.getName(), ".tmp");
+    try {
+      try (DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(Files.newOutputStream(temp)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT);
+        out.writeLong(checksum);
+        out.writeInt(columnNumbers.size());
+        for (String name : columnNumbers.keySet()) {
+          writeString(out, name);
+        }
+        out.writeInt(index.size());
+        for (Map.Entry<String, List<Integer>> e : index.entrySet()) {
+          writeString(out, e.getKey());
+          out.writeInt(e.getValue().size());
+          for (int number : e.getValue()) {
+            out.writeInt(number);
+          }
+        }
+        out.writeInt(offsets.size());
+        for (int offset : offsets) {
+          out.writeInt(offset);
+        }
+        data.writeTo(out);
+      }
+      Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      temp.toFile().delete();
+    }
+  }
+
+  /**
+   * Memory-map a cache file and read its header and index.
+   * @return the cached table, or null if the file does not exist, cannot be read, or was built
+   *     from a different CSV.
+   */
+  private static IndexedCSV read(File file, long checksum) {
+    if (!file.exists()) {
+      return null;
+    }
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT
+          || buffer.getLong() != checksum) {
+        return null;
+      }
+      String[] columns = new String[buffer.getInt()];
+      for (int i = 0; i < columns.length; i++) {
+        columns[i] = readString(buffer);
+      }
+      int keys = buffer.getInt();
+      Map<String, int[]> index = new HashMap<String, int[]>();
+      for (int i = 0; i < keys; i++) {
+        String key = readString(buffer);
+        int[] numbers = new int[buffer.getInt()];
+        for (int j = 0; j < numbers.length; j++) {
+          numbers[j] = buffer.getInt();
+        }
+        index.put(key, numbers);
+      }
+      int[] offsets = new int[buffer.getInt()];
+      for (int i = 0; i < offsets.length; i++) {
+        offsets[i] = buffer.getInt();
+      }
+      return new IndexedCSV(checksum, columns, index, offsets, buffer.slice());
+    } catch (IOException | BufferUnderflowException | IllegalArgumentException
+        | NegativeArraySizeException e) {
+      System.out.printf("Unable to read reference cache %s, error: %s\n", file, e.getMessage());
+      return null;
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+    } else {
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    int length = buffer.getInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static String normalize(String value) {
+    return value.trim().toUpperCase(Locale.ROOT);
+  }
+
+  private static long checksum(String csv) {
+    CRC32 crc = new CRC32();
+    crc.update(csv.getBytes(StandardCharsets.UTF_8));
+    return crc.getValue();
+  }
+
+  /**
+   * The cache file of a CSV file and column, named by a hash of both, since the same file name
+   * may be used in different folders.
+   */
+  private static File file(String filename, String column) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException("Couldn't create a reference cache key", e);
+    }
+    digest.update((filename.replace("\\", "/") + "::" + column)
+        .getBytes(StandardCharsets.UTF_8));
+    StringBuilder hex = new StringBuilder();
+    for (byte b : digest.digest()) {
+      hex.append(String.format("%02x", b));
+    }
+    String name = Paths.get(filename).getFileName().toString().replace(".csv", "");
+    return Paths.get(Config.get("generate.reference_cache.folder", "cache/reference"),
+        name + "-" + hex.substring(0, 16) + ".bin").toFile();
+  }
+}
@@ -0,0 +1,228 @@
+package org.mitre.synthea.helpers;
+
+import java.io.Serializable;
+import java.util.Random;
+
+/**
+ * RandomEngine selects the algorithm that a DefaultRandomNumberGenerator draws its numbers from.
+ * The engine is chosen with the "generate.rng_engine" configuration setting.
+ */
+public enum RandomEngine {
+  /** java.util.Random. Reproduces the output of earlier versions exactly. This is the default. */
+  LEGACY,
+  /**
+   * xoshiro256**, seeded with SplitMix64. Faster than java.util.Random, with no atomic update
+   * per number and much better statistical quality.
+   */
+  XOSHIRO256,
+  /** SplitMix64. The fastest engine, with a smaller state than xoshiro256**. */
+  SPLITMIX64;
+
+  /**
+   * Convert the given string into a RandomEngine.
+   *
+   * @param value the string to convert, e.g. "legacy", "xoshiro256**" or "splitmix64".
+   * @return the matching engine, or LEGACY if the value is null or empty.
+   */
+  public static RandomEngine fromString(String value) {
+    if (value == null || value.trim().isEmpty()) {
+      return LEGACY;
+    }
+    return RandomEngine.valueOf(value.trim().toUpperCase().replace("*", ""));
+  }
+
+  /**
+   * Create a new source of random numbers using this engine.
+   *
+   * @param seed the seed of the source.
+   * @return a new source of random numbers.
+   */
+  public Source create(long seed) {
+    switch (this) {
+      case XOSHIRO256:
+        return new Xoshiro256(seed);
+      case SPLITMIX64:
+        return new SplitMix64(seed);
+      case LEGACY:
+      default:
+        return new Legacy(seed);
+    }
+  }
+
+  /**
+   * A stream of random numbers. Sources are not thread-safe, apart from the legacy source.
+   */
+  public interface Source extends Serializable {
+    /** Returns a double between 0 (inclusive) and 1 (exclusive). */
+    double nextDouble();
+
+    /** Returns a random boolean. */
+    boolean nextBoolean();
+
+    /** Returns a double from a standard normal distribution. */
+    double nextGaussian();
+
+    /** Returns a random int. */
+    int nextInt();
+
+    /** Returns an int between 0 (inclusive) and the bound (exclusive). */
+    int nextInt(int bound);
+
+    /** Returns a random long. */
+    long nextLong();
+  }
+
+  /**
+   * The legacy source, which delegates to java.util.Random.
+   */
+  private static class Legacy implements Source {
+    private final Random random;
+
+    Legacy(long seed) {
+      random = new Random(seed);
+    }
+
+    @Override
+    public double nextDouble() {
+      return random.nextDouble();
+    }
+
+    @Override
+    public boolean nextBoolean() {
+      return random.nextBoolean();
+    }
+
+    @Override
+    public double nextGaussian() {
+      return random.nextGaussian();
+    }
+
+    @Override
+    public int nextInt() {
+      return random.nextInt();
+    }
+
+    @Override
+    public int nextInt(int bound) {
+      return random.nextInt(bound);
+    }
+
+    @Override
+    public long nextLong() {
+      return random.nextLong();
+    }
+  }
+
+  /**
+   * A source whose numbers are all derived from a stream of random longs.
+   */
+  private abstract static class LongSource implements Source {
+    private double nextGaussian;
+    private boolean haveNextGaussian;
+
+    @Override
+    public double nextDouble() {
+      // the top 53 bits, as a fraction of 2^53
+      return (nextLong() >>> 11) * 0x1.0p-53;
+    }
+
+    @Override
+    public boolean nextBoolean() {
+      return nextLong() < 0;
+    }
+
+    @Override
+    public double nextGaussian() {
+      // the polar method, as used by java.util.Random
+      if (haveNextGaussian) {
+        haveNextGaussian = false;
+        return nextGaussian;
+      }
+      double v1;
+      double v2;
+      double s;
+      do {
+        v1 = 2 * nextDouble() - 1;
+        v2 = 2 * nextDouble() - 1;
+        s = v1 * v1 + v2 * v2;
+      } while (s >= 1 || s == 0);
+      double multiplier = StrictMath.sqrt(-2 * StrictMath.log(s) / s);
+      nextGaussian = v2 * multiplier;
+      haveNextGaussian = true;
+      return v1 * multiplier;
+    }
+
+    @Override
+    public int nextInt() {
+      return (int) (nextLong() >>> 32);
+    }
+
+    @Override
+    public int nextInt(int bound) {
+      if (bound <= 0) {
+        throw new IllegalArgumentException("bound must be positive");
+      }
+      // Lemire's multiply and reject, which avoids a division in almost every case
+      long m = (nextLong() >>> 32) * bound;
+      long low = m & 0xFFFFFFFFL;
+      if (low < bound) {
+        long threshold = (0x100000000L - bound) % bound;
+        while (low < threshold) {
+          m = (nextLong() >>> 32) * bound;
+          low = m & 0xFFFFFFFFL;
+        }
+      }
+      return (int) (m >>> 32);
+    }
+  }
+
+  /**
+   * xoshiro256** by David Blackman and Sebastiano Vigna.
+   */
+  private static class Xoshiro256 extends LongSource {
+    private long s0;
+    private long s1;
+    private long s2;
+    private long s3;
+
+    Xoshiro256(long seed) {
+      // SplitMix64 spreads the seed over the whole state, which must not be all zero
+      s0 = DefaultRandomNumberGenerator.deriveSeed(seed, 0);
+      s1 = DefaultRandomNumberGenerator.deriveSeed(seed, 1);
+      s2 = DefaultRandomNumberGenerator.deriveSeed(seed, 2);
+      s3 = DefaultRandomNumberGenerator.deriveSeed(seed, 3);
+    }
+
+    @Override
+    public long nextLong() {
+      long result = Long.rotateLeft(s1 * 5, 7) * 9;
+      long t = s1 << 17;
+      s2 ^= s0;
+      s3 ^= s1;
+      s1 ^= s2;
+      s0 ^= s3;
+      s2 ^= t;
+      s3 = Long.rotateLeft(s3, 45);
+      return result;
+    }
+  }
+
+  /**
+   * SplitMix64 by Guy Steele, Doug Lea and Christine Flood, as used by java.util.SplittableRandom.
+   */
+  private static class SplitMix64 extends LongSource {
+    private long state;
+
+    SplitMix64(long seed) {
+      state = seed;
+    }
+
+    @Override
+    public long nextLong() {
+      long z = (state += 0x9E3779B97F4A7C15L);
+      z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+      z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+      return z ^ (z >>> 31);
+    }
+  }
+}
@@ -0,0 +1,350 @@
+package org.mitre.synthea.helpers;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.mitre.synthea.export.Exporter;
+
+/**
+ * Class to track the telemetry of a generation run: throughput, how long each person takes to
+ * simulate and to export (in total and per exporter), retries, queue depth, and heap and garbage
+ * collection watermarks. Timers are cheap enough to always be recorded. During a run the metrics
+ * can be registered with JMX, and periodically written to the "metrics" folder of the exporter
+ * base directory, as JSON (run_metrics.json) and in the Prometheus text format
+ * (run_metrics.prom).
+ */
+public abstract class RunMetrics {
+  /** Upper bounds of the timer buckets, in nanoseconds: powers of two from 1us to 68s. */
+  private static final int FIRST_BUCKET = 10;
+  private static final int BUCKETS = 27;
+
+  private static final Map<String, Timer> timers = new ConcurrentHashMap<String, Timer>();
+  private static final Map<String, Supplier<Number>> gauges =
+      new ConcurrentHashMap<String, Supplier<Number>>();
+  private static volatile long startNanos = System.nanoTime();
+  private static ScheduledExecutorService writer;
+  private static ObjectName objectName;
+
+  /**
+   * Record the time taken by the named phase, from the given start until now.
+   * @param name The name of the timer, e.g. "simulate" or "export.fhir".
+   * @param start The time at which the phase started, from System.nanoTime().
+   */
+  public static void record(String name, long start) {
+    timer(name).add(System.nanoTime() - start);
+  }
+
+  /**
+   * Register a gauge, whose value is read whenever the metrics are reported.
+   * @param name The name of the gauge.
+   * @param value Supplies the current value of the gauge.
+   */
+  public static void gauge(String name, Supplier<Number> value) {
+    gauges.put(name, value);
+  }
+
+  /**
+   * Get the named timer, creating it if needed.
+   * @param name The name of the timer.
+   * @return the timer.
+   */
+  static Timer timer(String name) {
+    Timer timer = timers.get(name);
+    if (timer == null) {
+      timer = timers.computeIfAbsent(name, n -> new Timer());
+    }
+    return timer;
+  }
+
+  /**
+   * Clear all timers and gauges and restart the clock, at the start of a run.
+   */
+  public static void reset() {
+    timers.clear();
+    gauges.clear();
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        pool.resetPeakUsage();
+      }
+    }
+    startNanos = System.nanoTime();
+  }
+
+  /**
+   * Start reporting the metrics of a run, as configured by "generate.metrics.jmx" and
+   * "generate.metrics.interval".
+   */
+  public static synchronized void start() {
+    if (Config.getAsBoolean("generate.metrics.jmx", false) && objectName == null) {
+      try {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        objectName = new ObjectName("org.mitre.synthea:type=RunMetrics");
+        if (!server.isRegistered(objectName)) {
+          server.registerMBean(new Bean(), objectName);
+        }
+      } catch (Exception e) {
+        System.out.printf("Unable to register run metrics with JMX, error: %s\n", e.getMessage());
+        objectName = null;
+      }
+    }
+    int interval = Config.getAsInteger("generate.metrics.interval", 0);
+    if (interval > 0 && writer == null) {
+      writer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "run-metrics");
+        thread.setDaemon(true);
+        return thread;
+      });
+      writer.scheduleAtFixedRate(RunMetrics::write, interval, interval, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Stop reporting the metrics at the end of a run, writing them one last time if they were
+   * being written periodically.
+   */
+  public static synchronized void stop() {
+    if (writer != null) {
+      writer.shutdownNow();
+      writer = null;
+      write();
+    }
+    if (objectName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      } catch (Exception e) {
+        // already unregistered
+      }
+      objectName = null;
+    }
+  }
+
+  /**
+   * Write the metrics to the metrics folder of the exporter base directory.
+   */
+  static void write() {
+    try {
+      String baseDir = Config.get("exporter.baseDirectory", "./output/");
+      Path output = Paths.get(baseDir, "metrics");
+      output.toFile().mkdirs();
+      Exporter.overwriteFile(output.resolve("run_metrics.json"), toJson());
+      Exporter.overwriteFile(output.resolve("run_metrics.prom"), toPrometheus());
+    } catch (RuntimeException e) {
+      System.out.printf("Unable to write run metrics, error: %s\n", e.getMessage());
+    }
+  }
+
+  /**
+   * Get the number of seconds since the run started.
+   * @return the elapsed time in seconds.
+   */
+  public static double elapsedSeconds() {
+    return (System.nanoTime() - startNanos) / 1_000_000_000.0;
+  }
+
+  /**
+   * Get the current value of every gauge, plus the heap and garbage collection watermarks.
+   * @return the values by name, sorted by name.
+   */
+  public static Map<String, Number> values() {
+    Map<String, Number> values = new TreeMap<String, Number>();
+    values.put("elapsed_seconds", elapsedSeconds());
+    for (Map.Entry<String, Supplier<Number>> gauge : gauges.entrySet()) {
+      values.put(gauge.getKey(), gauge.getValue().get());
+    }
+    // the JVM tracks the peak of each pool since the last reset, so the peak is a true
+    // watermark however rarely the metrics are read. The pools peak at different times, so
+    // their sum is an upper bound of the peak of the whole heap.
+    long heapUsed = 0L;
+    long heapPeak = 0L;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        MemoryUsage usage = pool.getUsage();
+        heapUsed += usage == null ? 0L : usage.getUsed();
+        MemoryUsage peak = pool.getPeakUsage();
+        heapPeak += peak == null ? 0L : peak.getUsed();
+      }
+    }
+    values.put("heap_used_bytes", heapUsed);
+    values.put("heap_used_peak_bytes", Math.max(heapUsed, heapPeak));
+    values.put("heap_max_bytes", Runtime.getRuntime().maxMemory());
+    long collections = 0L;
+    long collectionMillis = 0L;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      collections += Math.max(0L, gc.getCollectionCount());
+      collectionMillis += Math.max(0L, gc.getCollectionTime());
+    }
+    values.put("gc_collections", collections);
+    values.put("gc_seconds", collectionMillis / 1000.0);
+    return values;
+  }
+
+  /**
+   * Get all the metrics as a flat map: the values, and a summary of each timer.
+   * @return the metrics by name, sorted by name.
+   */
+  public static Map<String, Double> summary() {
+    Map<String, Double> summary = new TreeMap<String, Double>();
+    for (Map.Entry<String, Number> value : values().entrySet()) {
+      summary.put(value.getKey(), value.getValue().doubleValue());
+    }
+    for (Map.Entry<String, Timer> timer : timers.entrySet()) {
+      String name = timer.getKey();
+      Timer t = timer.getValue();
+      summary.put(name + ".count", (double) t.count());
+      summary.put(name + ".mean_ms", t.count() == 0 ? 0.0 : t.sum() / 1e6 / t.count());
+      summary.put(name + ".max_ms", t.max() / 1e6);
+      summary.put(name + ".p50_ms", t.percentile(0.5) / 1e6);
+      summary.put(name + ".p99_ms", t.percentile(0.99) / 1e6);
+    }
+    return summary;
+  }
+
+  /**
+   * Get the metrics as JSON.
+   * @return the metrics, as a JSON object of values and timer summaries.
+   */
+  public static String toJson() {
+    GsonBuilder builder = new GsonBuilder();
+    if (Config.getAsBoolean("exporter.pretty_print", true)) {
+      builder.setPrettyPrinting();
+    }
+    Gson gson = builder.create();
+    return gson.toJson(summary());
+  }
+
+  /**
+   * Get the metrics in the Prometheus text format. Values are gauges, and timers are
+   * histograms in seconds.
+   * @return the metrics in the Prometheus text format.
+   */
+  public static String toPrometheus() {
+    StringBuilder text = new StringBuilder();
+    for (Map.Entry<String, Number> value : values().entrySet()) {
+      String name = "synthea_" + sanitize(value.getKey());
+      text.append("# TYPE ").append(name).append(" gauge\n");
+      text.append(name).append(' ').append(value.getValue()).append('\n');
+    }
+    for (Map.Entry<String, Timer> timer : new TreeMap<String, Timer>(timers).entrySet()) {
+      String name = "synthea_" + sanitize(timer.getKey()) + "_seconds";
+      Timer t = timer.getValue();
+      text.append("# TYPE ").append(name).append(" histogram\n");
+      long cumulative = 0L;
+      for (int i = 0; i < BUCKETS; i++) {
+        cumulative += t.buckets[i].sum();
+        text.append(name).append("_bucket{le=\"")
+            .append((1L << (FIRST_BUCKET + i)) / 1e9).append("\"} ").append(cumulative)
+            .append('\n');
+      }
+      text.append(name).append("_bucket{le=\"+Inf\"} ").append(t.count()).append('\n');
+      text.append(name).append("_sum ").append(t.sum() / 1e9).append('\n');
+      text.append(name).append("_count ").append(t.count()).append('\n');
+    }
+    return text.toString();
+  }
+
+  private static String sanitize(String name) {
+    return name.replaceAll("[^a-zA-Z0-9_]", "_");
+  }
+
+  /**
+   * A histogram of durations, in buckets whose upper bounds are powers of two nanoseconds.
+   */
+  static class Timer {
+    private final LongAdder[] buckets = new LongAdder[BUCKETS + 1];
+    private final LongAdder total = new LongAdder();
+    private final AtomicLong maximum = new AtomicLong(0L);
+
+    Timer() {
+      for (int i = 0; i < buckets.length; i++) {
+        buckets[i] = new LongAdder();
+      }
+    }
+
+    void add(long nanos) {
+      int bucket = 64 - Long.numberOfLeadingZeros(Math.max(0L, nanos - 1)) - FIRST_BUCKET;
+      buckets[Math.min(BUCKETS, Math.max(0, bucket))].increment();
+      total.add(nanos);
+      if (nanos > maximum.get()) {
+        maximum.accumulateAndGet(nanos, Math::max);
+      }
+    }
+
+    long count() {
+      long count = 0L;
+      for (LongAdder bucket : buckets) {
+        count += bucket.sum();
+      }
+      return count;
+    }
+
+    long sum() {
+      return total.sum();
+    }
+
+    long max() {
+      return maximum.get();
+    }
+
+    /**
+     * Get an upper bound of the given percentile: the bound of the bucket it falls in.
+     * @param fraction The percentile, as a fraction between 0 and 1.
+     * @return the upper bound in nanoseconds, at most the maximum recorded duration.
+     */
+    long percentile(double fraction) {
+      long count = count();
+      if (count == 0) {
+        return 0L;
+      }
+      long rank = (long) Math.ceil(fraction * count);
+      long cumulative = 0L;
+      for (int i = 0; i < BUCKETS; i++) {
+        cumulative += buckets[i].sum();
+        if (cumulative >= rank) {
+          return Math.min(1L << (FIRST_BUCKET + i), max());
+        }
+      }
+      return max();
+    }
+  }
+
+  /**
+   * The JMX view of the run metrics.
+   */
+  private static class Bean implements RunMetricsMXBean {
+    @Override
+    public double getElapsedSeconds() {
+      return elapsedSeconds();
+    }
+
+    @Override
+    public double getPersonsPerSecond() {
+      Number rate = values().get("persons_per_second");
+      return rate == null ? 0.0 : rate.doubleValue();
+    }
+
+    @Override
+    public Map<String, Double> getMetrics() {
+      return summary();
+    }
+  }
+}
@@ -0,0 +1,28 @@
+package org.mitre.synthea.helpers;
+
+import java.util.Map;
+
+/**
+ * The run metrics, as registered with JMX under the name "org.mitre.synthea:type=RunMetrics".
+ * See RunMetrics.
+ */
+public interface RunMetricsMXBean {
+  /**
+   * Get the number of seconds since the run started.
+   * @return the elapsed time in seconds.
+   */
+  double getElapsedSeconds();
+
+  /**
+   * Get the number of persons completed per second since the run started.
+   * @return the throughput in persons per second.
+   */
+  double getPersonsPerSecond();
+
+  /**
+   * Get the current value of every metric, by name. Timers are summarized by their count,
+   * mean, maximum and percentiles in milliseconds.
+   * @return the metrics.
+   */
+  Map<String, Double> getMetrics();
+}
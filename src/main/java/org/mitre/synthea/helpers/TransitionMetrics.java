@@ -7,14 +7,21 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
 import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
+import org.mitre.synthea.engine.ExecutorStrategy;
 import org.mitre.synthea.engine.Module;
 import org.mitre.synthea.engine.Module.ModuleSupplier;
 import org.mitre.synthea.export.Exporter;
@@ -26,6 +33,10 @@ import org.mitre.synthea.export.Exporter;
  * - How many people hit that state
  * - What states they transitioned to
  * - How long they were in that state (ex, Guard, Delay)
+ *
+ * <p>Separately, it can profile the real time and memory allocated while processing each module
+ * and each type of state. Only one in "generate.profile_modules.sample_rate" executions is
+ * measured, so the overhead stays low enough to profile a full run.
  */
 public abstract class TransitionMetrics {
   /**
@@ -39,6 +50,20 @@ public abstract class TransitionMetrics {
   public static boolean enabled =
       Config.getAsBoolean("generate.track_detailed_transition_metrics", false);
 
+  /** Number of times a Guard's logic was tested. */
+  private static final LongAdder guardsEvaluated = new LongAdder();
+  /** Number of times a Guard was not re-tested, because none of its inputs had changed. */
+  private static final LongAdder guardsSkipped = new LongAdder();
+
+  public static boolean profiling = Config.getAsBoolean("generate.profile_modules", false);
+  /** Profile one in this many executions of a module or state. */
+  static int sampleRate =
+      Math.max(1, Config.getAsInteger("generate.profile_modules.sample_rate", 100));
+  private static final Map<String, Profile> moduleProfiles =
+      new ConcurrentHashMap<String, Profile>();
+  private static final Map<String, Profile> stateProfiles = new ConcurrentHashMap<String, Profile>();
+  private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
   /**
    * Track entering a state within a given module.
    * @param module The name of the module.
@@ -64,6 +89,114 @@ public abstract class TransitionMetrics {
     }
   }
 
+  /**
+   * Track a Guard testing its logic.
+   */
+  public static void guardEvaluated() {
+    if (enabled) {
+      guardsEvaluated.increment();
+    }
+  }
+
+  /**
+   * Track a Guard skipping the test of its logic, because none of its inputs had changed.
+   */
+  public static void guardSkipped() {
+    if (enabled) {
+      guardsSkipped.increment();
+    }
+  }
+
+  /**
+   * Get the number of times a Guard tested its logic.
+   * @return the number of evaluated guards.
+   */
+  public static long getGuardsEvaluated() {
+    return guardsEvaluated.sum();
+  }
+
+  /**
+   * Get the number of times a Guard skipped testing its logic.
+   * @return the number of skipped guards.
+   */
+  public static long getGuardsSkipped() {
+    return guardsSkipped.sum();
+  }
+
+  /**
+   * Decide whether to profile the execution that is about to start. Sampling uses its own random
+   * numbers, so it doesn't change the simulation.
+   * @return true if this execution should be profiled.
+   */
+  public static boolean shouldProfile() {
+    return profiling
+        && (sampleRate == 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0);
+  }
+
+  /**
+   * Get the number of bytes allocated so far by the current thread, if the JVM can measure it.
+   * Allocations cannot be measured on virtual threads.
+   * @return the allocated bytes, or -1 if they cannot be measured.
+   */
+  public static long allocatedBytes() {
+    if (threads instanceof com.sun.management.ThreadMXBean
+        && !ExecutorStrategy.isVirtual(Thread.currentThread())) {
+      com.sun.management.ThreadMXBean mxbean = (com.sun.management.ThreadMXBean) threads;
+      if (mxbean.isThreadAllocatedMemoryEnabled()) {
+        return mxbean.getThreadAllocatedBytes(Thread.currentThread().getId());
+      }
+    }
+    return -1L;
+  }
+
+  /**
+   * Track a profiled execution of a module.
+   * @param module The name of the module.
+   * @param start The start time, from System.nanoTime().
+   * @param allocated The allocated bytes returned by allocatedBytes() at the start.
+   */
+  public static void profileModule(String module, long start, long allocated) {
+    getProfile(moduleProfiles, module).add(System.nanoTime() - start, allocated,
+        allocatedBytes());
+  }
+
+  /**
+   * Track a profiled execution of a state.
+   * @param stateType The type of the state, e.g. "Guard".
+   * @param start The start time, from System.nanoTime().
+   * @param allocated The allocated bytes returned by allocatedBytes() at the start.
+   */
+  public static void profileState(String stateType, long start, long allocated) {
+    getProfile(stateProfiles, stateType).add(System.nanoTime() - start, allocated,
+        allocatedBytes());
+  }
+
+  private static Profile getProfile(Map<String, Profile> profiles, String name) {
+    Profile profile = profiles.get(name);
+    if (profile == null) {
+      profile = profiles.computeIfAbsent(name, n -> new Profile());
+    }
+    return profile;
+  }
+
+  /**
+   * Get the profile of the given module.
+   * @param module The name of the module.
+   * @return the profile, or null if none of its executions were profiled.
+   */
+  static Profile getModuleProfile(String module) {
+    return moduleProfiles.get(module);
+  }
+
+  /**
+   * Get the profile of the given type of state.
+   * @param stateType The type of the state, e.g. "Guard".
+   * @return the profile, or null if none of its executions were profiled.
+   */
+  static Profile getStateProfile(String stateType) {
+    return stateProfiles.get(stateType);
+  }
+
   /**
    * Get the Metric object for the given State in the given Module.
    *
@@ -92,6 +225,10 @@ public abstract class TransitionMetrics {
    */
   static void clear() {
     metrics.clear();
+    guardsEvaluated.reset();
+    guardsSkipped.reset();
+    moduleProfiles.clear();
+    stateProfiles.clear();
   }
 
   /**
@@ -105,6 +242,8 @@ public abstract class TransitionMetrics {
     Gson gson = builder.create();
 
     System.out.println("Saving metrics for " + metrics.rowKeySet().size() + " modules.");
+    System.out.println("Guards evaluated: " + getGuardsEvaluated()
+        + ", skipped because their inputs were unchanged: " + getGuardsSkipped());
 
     String baseDir = Config.get("exporter.baseDirectory", "./output/");
     String statsDir = "metrics";
@@ -135,6 +274,84 @@ public abstract class TransitionMetrics {
     }
   }
 
+  /**
+   * Exports the module and state type profiles as JSON in the metrics folder of the exporter
+   * base directory, each sorted by estimated total time, most expensive first.
+   *
+   * <p>The time of a module includes the submodules it calls, which are also profiled on their
+   * own, by path. CallSubmodule states are not profiled as a state type, since their time is the
+   * time of the submodule's states, which are. So the totals of the state types add up to the
+   * time spent in states, while the totals of the modules overlap.
+   */
+  public static void exportProfile() {
+    GsonBuilder builder = new GsonBuilder();
+    if (Config.getAsBoolean("exporter.pretty_print", true)) {
+      builder.setPrettyPrinting();
+    }
+    Gson gson = builder.create();
+
+    Map<String, Object> profile = new LinkedHashMap<String, Object>();
+    profile.put("sample_rate", sampleRate);
+    profile.put("modules", summarize(moduleProfiles));
+    profile.put("state_types", summarize(stateProfiles));
+    System.out.println("Saving profile for " + moduleProfiles.size() + " modules, sampling 1 in "
+        + sampleRate + " executions.");
+
+    String baseDir = Config.get("exporter.baseDirectory", "./output/");
+    Path output = Paths.get(baseDir, "metrics");
+    output.toFile().mkdirs();
+    Exporter.overwriteFile(output.resolve("profile.json"), gson.toJson(profile));
+  }
+
+  private static Map<String, Map<String, Object>> summarize(Map<String, Profile> profiles) {
+    List<Map.Entry<String, Profile>> entries =
+        new ArrayList<Map.Entry<String, Profile>>(profiles.entrySet());
+    entries.sort((a, b) -> Long.compare(b.getValue().nanos.sum(), a.getValue().nanos.sum()));
+    Map<String, Map<String, Object>> summary = new LinkedHashMap<String, Map<String, Object>>();
+    for (Map.Entry<String, Profile> entry : entries) {
+      Profile p = entry.getValue();
+      long samples = p.samples.sum();
+      Map<String, Object> values = new LinkedHashMap<String, Object>();
+      values.put("samples", samples);
+      values.put("mean_micros", p.nanos.sum() / 1000.0 / samples);
+      long byteSamples = p.byteSamples.sum();
+      // allocations are left out if none could be measured, ex. on virtual threads
+      if (byteSamples > 0) {
+        values.put("mean_bytes", p.bytes.sum() / byteSamples);
+      }
+      values.put("estimated_total_seconds", p.nanos.sum() * (double) sampleRate / 1e9);
+      if (byteSamples > 0) {
+        values.put("estimated_total_megabytes",
+            p.bytes.sum() / (double) byteSamples * samples * sampleRate / 1e6);
+      }
+      summary.put(entry.getKey(), values);
+    }
+    return summary;
+  }
+
+  /**
+   * Helper class to track the sampled real time and allocations of a module or type of state.
+   */
+  public static class Profile {
+    /** Number of profiled executions. */
+    public final LongAdder samples = new LongAdder();
+    /** Total real time of the profiled executions, in nanoseconds. */
+    public final LongAdder nanos = new LongAdder();
+    /** Number of profiled executions whose allocations could be measured. */
+    public final LongAdder byteSamples = new LongAdder();
+    /** Total bytes allocated by the profiled executions that could be measured. */
+    public final LongAdder bytes = new LongAdder();
+
+    void add(long nanos, long allocatedBefore, long allocatedAfter) {
+      this.samples.increment();
+      this.nanos.add(nanos);
+      if (allocatedBefore >= 0 && allocatedAfter >= 0) {
+        this.byteSamples.increment();
+        this.bytes.add(allocatedAfter - allocatedBefore);
+      }
+    }
+  }
+
   /**
    * Helper class to track the metrics of a single State.
    */
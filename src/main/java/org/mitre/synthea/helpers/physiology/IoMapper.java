@@ -25,25 +25,10 @@ public class IoMapper implements Serializable {
   private double variance;
   private VitalSign vitalSign;
 
-  // ExpressionProcessor instances are not thread safe, so we need
-  // to have a separate processor for each thread
-  private transient ThreadLocal<ExpressionProcessor> threadExpProcessor;
+  // the shared ExpressionProcessor can be used by any number of threads at once
+  private transient volatile ExpressionProcessor expProcessor;
   private PreGenerator preGenerator;
 
-  private ExpressionProcessor getThreadExpProcessor() {
-    if (threadExpProcessor == null) {
-      threadExpProcessor = new ThreadLocal<ExpressionProcessor>();
-    }
-    return threadExpProcessor.get();
-  }
-
-  private void setThreadExpProcessor(ExpressionProcessor exp) {
-    if (threadExpProcessor == null) {
-      threadExpProcessor = new ThreadLocal<ExpressionProcessor>();
-    }
-    threadExpProcessor.set(exp);
-  }
-
   public IoMapper() {}
 
   /**
@@ -56,7 +41,7 @@ public class IoMapper implements Serializable {
     fromList = other.fromList;
     to = other.to;
     fromExp = other.fromExp;
-    setThreadExpProcessor(other.getThreadExpProcessor());
+    expProcessor = other.expProcessor;
   }
 
   public enum IoType {
@@ -141,13 +126,13 @@ public class IoMapper implements Serializable {
   }
 
   /**
-   * Initializes the expression processor for each thread if needed.
+   * Initializes the expression processor if needed.
    * @param paramTypes map of parameters to their CQL types
    */
   public void initialize(Map<String, String> paramTypes) {
     try {
-      if (getThreadExpProcessor() == null && fromExp != null && !"".equals(fromExp)) {
-        setThreadExpProcessor(new ExpressionProcessor(fromExp, paramTypes));
+      if (expProcessor == null && fromExp != null && !"".equals(fromExp)) {
+        expProcessor = ExpressionProcessor.shared(fromExp, paramTypes);
       }
     } catch (CqlSemanticException e) {
       throw new RuntimeException(e);
@@ -164,7 +149,7 @@ public class IoMapper implements Serializable {
   public double toModelInputs(Person person, long time, Map<String,Double> modelInputs) {
     double resultValue;
 
-    ExpressionProcessor expProcessor = getThreadExpProcessor();
+    ExpressionProcessor expProcessor = this.expProcessor;
 
     // Evaluate the expression if one is provided
     if (expProcessor != null) {
@@ -202,7 +187,7 @@ public class IoMapper implements Serializable {
    * @return double value or List of Double values
    */
   public Object getOutputResult(MultiTable results, double leadTime) {
-    ExpressionProcessor expProcessor = getThreadExpProcessor();
+    ExpressionProcessor expProcessor = this.expProcessor;
 
     if (expProcessor != null) {
       // Evaluate the expression and return the result
@@ -10,6 +10,7 @@ import java.time.Period;
 import java.time.ZoneOffset;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -24,6 +25,7 @@ import org.mitre.synthea.engine.ExpressedConditionRecord;
 import org.mitre.synthea.engine.ExpressedSymptom;
 import org.mitre.synthea.engine.Module;
 import org.mitre.synthea.engine.State;
+import org.mitre.synthea.engine.StateHistory;
 import org.mitre.synthea.helpers.Config;
 import org.mitre.synthea.helpers.ConstantValueGenerator;
 import org.mitre.synthea.helpers.DefaultRandomNumberGenerator;
@@ -121,6 +123,11 @@ public class Person implements Serializable, RandomNumberGenerator, QuadTreeElem
   public static final String NO_VEHICLE_ACCESS = "no_vehicle_access";
   public static final String UNINSURED = "uninsured";
 
+  private static final PersonAttributes.Key BIRTHDATE_KEY = PersonAttributes.intern(BIRTHDATE);
+  private static final PersonAttributes.Key BIRTHDATE_AS_LOCALDATE_KEY =
+      PersonAttributes.intern(BIRTHDATE_AS_LOCALDATE);
+  private static final PersonAttributes.Key DEATHDATE_KEY = PersonAttributes.intern(DEATHDATE);
+
   private final DefaultRandomNumberGenerator random;
   public long populationSeed;
   /**
@@ -131,7 +138,7 @@ public class Person implements Serializable, RandomNumberGenerator, QuadTreeElem
    * Tracks the remaining modules for a person over a serialize/deserialize.
    */
   public List<Module> currentModules;
-  public Map<String, Object> attributes;
+  public PersonAttributes attributes;
   public Map<VitalSign, ValueGenerator> vitalSigns;
   /** Data structure for storing symptoms faced by a person.
    * Adding the Long keyset to keep track of the time a symptom is set. */
@@ -162,19 +169,34 @@ public class Person implements Serializable, RandomNumberGenerator, QuadTreeElem
 
   /**
    * Person constructor.
+   *
+   * <p>If "generate.thread_confined_persons" is true, the person's maps are plain, presized maps
+   * rather than ConcurrentHashMaps. A person is only ever simulated and exported by the thread
+   * that created them, and is handed to other threads only through synchronized or executor
+   * hand-offs (such as the population snapshot writer), so the concurrent maps are not needed.
+   * Custom code that modifies these maps while iterating over them must not enable
+   * this setting.
    */
   public Person(long seed) {
     random = new DefaultRandomNumberGenerator(seed);
-    attributes = new ConcurrentHashMap<String, Object>();
-    vitalSigns = new ConcurrentHashMap<VitalSign, ValueGenerator>();
-    symptoms = new ConcurrentHashMap<String, ExpressedSymptom>();
+    boolean threadConfined = Config.getAsBoolean("generate.thread_confined_persons", false);
+    attributes = new PersonAttributes(threadConfined);
+    if (threadConfined) {
+      vitalSigns = new EnumMap<VitalSign, ValueGenerator>(VitalSign.class);
+      symptoms = new HashMap<String, ExpressedSymptom>(32);
+    } else {
+      vitalSigns = new ConcurrentHashMap<VitalSign, ValueGenerator>();
+      symptoms = new ConcurrentHashMap<String, ExpressedSymptom>();
+    }
     /* initialized the onsetConditions field */
     onsetConditionRecord = new ExpressedConditionRecord(this);
     /* Chronic Medications which will be renewed at each Wellness Encounter */
-    chronicMedications = new ConcurrentHashMap<String, HealthRecord.Medication>();
+    chronicMedications = threadConfined ? new HashMap<String, HealthRecord.Medication>()
+        : new ConcurrentHashMap<String, HealthRecord.Medication>();
     hasMultipleRecords = Config.getAsBoolean("exporter.split_records", false);
     if (hasMultipleRecords) {
-      records = new ConcurrentHashMap<String, HealthRecord>();
+      records = threadConfined ? new HashMap<String, HealthRecord>()
+          : new ConcurrentHashMap<String, HealthRecord>();
     }
     this.initializeDefaultHealthRecords();
     coverage = new CoverageRecord(this);
@@ -258,15 +280,15 @@ public class Person implements Serializable, RandomNumberGenerator, QuadTreeElem
   public Period age(long time) {
     Period age = Period.ZERO;
 
-    if (attributes.containsKey(BIRTHDATE)) {
+    if (attributes.containsKey(BIRTHDATE_KEY)) {
       LocalDate now = Instant.ofEpochMilli(time).atZone(ZoneOffset.UTC).toLocalDate();
 
       // we call age() a lot, so caching the birthdate as a LocalDate saves some translation
-      LocalDate birthdate = (LocalDate) attributes.get(BIRTHDATE_AS_LOCALDATE);
+      LocalDate birthdate = (LocalDate) attributes.get(BIRTHDATE_AS_LOCALDATE_KEY);
       if (birthdate == null) {
-        birthdate = Instant.ofEpochMilli((long) attributes.get(BIRTHDATE))
+        birthdate = Instant.ofEpochMilli(attributes.getLong(BIRTHDATE_KEY, 0L))
             .atZone(ZoneOffset.UTC).toLocalDate();
-        attributes.put(BIRTHDATE_AS_LOCALDATE, birthdate);
+        attributes.put(BIRTHDATE_AS_LOCALDATE_KEY, birthdate);
       }
 
       age = Period.between(birthdate, now);
@@ -327,9 +349,9 @@ public class Person implements Serializable, RandomNumberGenerator, QuadTreeElem
    * Returns whether a person is alive at the given time.
    */
   public boolean alive(long time) {
-    boolean born = attributes.containsKey(Person.BIRTHDATE);
-    Long died = (Long) attributes.get(Person.DEATHDATE);
-    return (born && (died == null || died > time));
+    // a person who has not died is treated as dying at the end of time
+    return attributes.containsKey(BIRTHDATE_KEY)
+        && attributes.getLong(DEATHDATE_KEY, Long.MAX_VALUE) > time;
   }
 
   /**
@@ -534,6 +556,9 @@ public class Person implements Serializable, RandomNumberGenerator, QuadTreeElem
     if (history == null) {
       return false;
     }
+    if (history instanceof StateHistory) {
+      return ((StateHistory) history).hadPriorState(name, since, within);
+    }
     for (State state : history) {
       if (within != null && state.exited != null && state.exited <= within) {
         return false;
@@ -0,0 +1,580 @@
+package org.mitre.synthea.world.agents;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * PersonAttributes stores the attributes of a Person.
+ *
+ * <p>Attribute names are interned into a registry shared by the whole population, which gives each
+ * name a Key with an integer slot. Modules intern the names they use when they are loaded, and
+ * any other name is interned the first time it is stored. Each person then keeps their values in
+ * arrays indexed by slot, so a lookup with a Key is an array access, and a lookup by name is a
+ * single registry lookup followed by an array access. The arrays start small and only grow to the
+ * highest slot the person has a value for, since most people only ever use a fraction of the
+ * registered names. Boolean and numeric values are also kept
+ * as primitives, so getBoolean(), getLong() and getDouble() and the matching put methods do not
+ * box or unbox.
+ *
+ * <p>For backwards compatibility with custom modules and exporters, PersonAttributes is also a
+ * Map of attribute name to value, which behaves like the ConcurrentHashMap it replaces: null
+ * names and values are not allowed, and iterators never throw ConcurrentModificationException.
+ * Like the rest of the Person, an instance must only be modified by one thread at a time.
+ * A thread-confined instance also keeps any attributes without a slot in a plain HashMap.
+ */
+public class PersonAttributes extends AbstractMap<String, Object> implements Serializable {
+  private static final long serialVersionUID = -4839572308871925562L;
+
+  /**
+   * The number of attribute names that are given a slot. Any further names are not registered
+   * and are kept in a map on each person, so code that builds attribute names on the fly cannot
+   * grow every person, or the registry, without limit.
+   */
+  static final int MAX_SLOTS = 4096;
+  /** The number of slots allocated for a new instance. */
+  private static final int INITIAL_CAPACITY = 16;
+
+  private static final Map<String, Key> registry = new ConcurrentHashMap<String, Key>();
+  /** The registered Keys, indexed by slot. */
+  private static final List<Key> slots = new CopyOnWriteArrayList<Key>();
+
+  private static final byte EMPTY = 0;
+  private static final byte OBJECT = 1;
+  private static final byte BOOLEAN = 2;
+  private static final byte INTEGER = 3;
+  private static final byte LONG = 4;
+  private static final byte DOUBLE = 5;
+
+  /** The kind of value held in each slot. */
+  private transient byte[] kinds;
+  /** The value in each slot, or null if a primitive value has not been boxed yet. */
+  private transient Object[] objects;
+  /** The primitive value in each BOOLEAN, INTEGER, LONG or DOUBLE slot. */
+  private transient long[] bits;
+  /** The number of slots that hold a value. */
+  private transient int slotted;
+  /** Attributes whose names did not fit in the registry. Created on first use. */
+  private transient Map<String, Object> others;
+  /** Whether only one thread ever uses this instance, so others can be a plain map. */
+  private final boolean threadConfined;
+
+  /**
+   * An interned attribute name.
+   */
+  public static final class Key {
+    private final String name;
+    /** The slot for this name, or -1 if the name is stored by name. */
+    private final int slot;
+
+    private Key(String name, int slot) {
+      this.name = name;
+      this.slot = slot;
+    }
+
+    /**
+     * Get the attribute name.
+     * @return the attribute name.
+     */
+    public String getName() {
+      return name;
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  /**
+   * Get the Key for the given attribute name, registering it if necessary. Once every slot is
+   * taken, new names are no longer registered, and the Key returned only holds the name.
+   * @param name the attribute name.
+   * @return the Key for the name.
+   */
+  public static Key intern(String name) {
+    Key key = registry.get(name);
+    return key != null ? key : register(Objects.requireNonNull(name));
+  }
+
+  /**
+   * Get the number of registered attribute names.
+   */
+  static int registered() {
+    return registry.size();
+  }
+
+  private static synchronized Key register(String name) {
+    Key key = registry.get(name);
+    if (key == null) {
+      int slot = slots.size();
+      if (slot >= MAX_SLOTS) {
+        return new Key(name, -1);
+      }
+      key = new Key(name, slot);
+      slots.add(key);
+      registry.put(name, key);
+    }
+    return key;
+  }
+
+  /**
+   * Create a new, empty set of attributes.
+   */
+  public PersonAttributes() {
+    this(false);
+  }
+
+  /**
+   * Create a new, empty set of attributes.
+   * @param threadConfined whether the attributes are only ever used by a single thread.
+   */
+  public PersonAttributes(boolean threadConfined) {
+    this.threadConfined = threadConfined;
+    allocate(INITIAL_CAPACITY);
+  }
+
+  private void allocate(int capacity) {
+    kinds = new byte[capacity];
+    objects = new Object[capacity];
+    bits = new long[capacity];
+    slotted = 0;
+    others = null;
+  }
+
+  /**
+   * Get the number of slots currently allocated.
+   */
+  int capacity() {
+    return kinds.length;
+  }
+
+  private void ensureCapacity(int slot) {
+    if (slot >= kinds.length) {
+      int capacity = Math.max(slot + 1, kinds.length * 2);
+      kinds = Arrays.copyOf(kinds, capacity);
+      objects = Arrays.copyOf(objects, capacity);
+      bits = Arrays.copyOf(bits, capacity);
+    }
+  }
+
+  private Map<String, Object> others() {
+    if (others == null) {
+      others = threadConfined ? new HashMap<String, Object>()
+          : new ConcurrentHashMap<String, Object>();
+    }
+    return others;
+  }
+
+  private byte kind(int slot) {
+    return slot < kinds.length ? kinds[slot] : EMPTY;
+  }
+
+  /**
+   * Whether or not the attribute has a value.
+   * @param key the attribute.
+   * @return true if the attribute has a value.
+   */
+  public boolean containsKey(Key key) {
+    if (key.slot < 0) {
+      return others != null && others.containsKey(key.name);
+    }
+    return kind(key.slot) != EMPTY;
+  }
+
+  /**
+   * Get the value of the attribute.
+   * @param key the attribute.
+   * @return the value, or null if the attribute has no value.
+   */
+  public Object get(Key key) {
+    if (key.slot < 0) {
+      return others == null ? null : others.get(key.name);
+    }
+    int slot = key.slot;
+    byte kind = kind(slot);
+    if (kind == EMPTY) {
+      return null;
+    }
+    Object value = objects[slot];
+    if (value == null) {
+      value = box(kind, bits[slot]);
+      objects[slot] = value;
+    }
+    return value;
+  }
+
+  private static Object box(byte kind, long bits) {
+    switch (kind) {
+      case BOOLEAN:
+        return Boolean.valueOf(bits != 0);
+      case INTEGER:
+        return Integer.valueOf((int) bits);
+      case LONG:
+        return Long.valueOf(bits);
+      case DOUBLE:
+        return Double.valueOf(Double.longBitsToDouble(bits));
+      default:
+        throw new IllegalStateException("Unknown attribute kind " + kind);
+    }
+  }
+
+  /**
+   * Get the value of a boolean attribute, without boxing.
+   * @param key the attribute.
+   * @param defaultValue the value to return if the attribute has no value.
+   * @return the value of the attribute.
+   * @throws ClassCastException if the value is not a Boolean.
+   */
+  public boolean getBoolean(Key key, boolean defaultValue) {
+    if (key.slot >= 0 && kind(key.slot) == BOOLEAN) {
+      return bits[key.slot] != 0;
+    }
+    Object value = get(key);
+    return value == null ? defaultValue : (Boolean) value;
+  }
+
+  /**
+   * Get the value of a numeric attribute as a long, without boxing.
+   * @param key the attribute.
+   * @param defaultValue the value to return if the attribute has no value.
+   * @return the value of the attribute.
+   * @throws ClassCastException if the value is not a Number.
+   */
+  public long getLong(Key key, long defaultValue) {
+    if (key.slot >= 0) {
+      byte kind = kind(key.slot);
+      if (kind == INTEGER || kind == LONG) {
+        return bits[key.slot];
+      } else if (kind == DOUBLE) {
+        return (long) Double.longBitsToDouble(bits[key.slot]);
+      }
+    }
+    Object value = get(key);
+    return value == null ? defaultValue : ((Number) value).longValue();
+  }
+
+  /**
+   * Get the value of a numeric attribute as a double, without boxing.
+   * @param key the attribute.
+   * @param defaultValue the value to return if the attribute has no value.
+   * @return the value of the attribute.
+   * @throws ClassCastException if the value is not a Number.
+   */
+  public double getDouble(Key key, double defaultValue) {
+    if (key.slot >= 0) {
+      byte kind = kind(key.slot);
+      if (kind == INTEGER || kind == LONG) {
+        return bits[key.slot];
+      } else if (kind == DOUBLE) {
+        return Double.longBitsToDouble(bits[key.slot]);
+      }
+    }
+    Object value = get(key);
+    return value == null ? defaultValue : ((Number) value).doubleValue();
+  }
+
+  /**
+   * Set the value of the attribute.
+   * @param key the attribute.
+   * @param value the new value, which must not be null.
+   * @return the previous value, or null if the attribute had no value.
+   */
+  public Object put(Key key, Object value) {
+    Objects.requireNonNull(value);
+    if (key.slot < 0) {
+      return others().put(key.name, value);
+    }
+    Object previous = get(key);
+    int slot = key.slot;
+    if (value instanceof Boolean) {
+      set(slot, BOOLEAN, ((Boolean) value) ? 1L : 0L);
+    } else if (value instanceof Integer) {
+      set(slot, INTEGER, (Integer) value);
+    } else if (value instanceof Long) {
+      set(slot, LONG, (Long) value);
+    } else if (value instanceof Double) {
+      set(slot, DOUBLE, Double.doubleToRawLongBits((Double) value));
+    } else {
+      set(slot, OBJECT, 0L);
+    }
+    objects[slot] = value;
+    return previous;
+  }
+
+  /**
+   * Set the value of a boolean attribute, without boxing.
+   * @param key the attribute.
+   * @param value the new value.
+   */
+  public void putBoolean(Key key, boolean value) {
+    if (key.slot < 0) {
+      others().put(key.name, value);
+    } else {
+      set(key.slot, BOOLEAN, value ? 1L : 0L);
+    }
+  }
+
+  /**
+   * Set the value of a long attribute, without boxing.
+   * @param key the attribute.
+   * @param value the new value.
+   */
+  public void putLong(Key key, long value) {
+    if (key.slot < 0) {
+      others().put(key.name, value);
+    } else {
+      set(key.slot, LONG, value);
+    }
+  }
+
+  /**
+   * Set the value of a double attribute, without boxing.
+   * @param key the attribute.
+   * @param value the new value.
+   */
+  public void putDouble(Key key, double value) {
+    if (key.slot < 0) {
+      others().put(key.name, value);
+    } else {
+      set(key.slot, DOUBLE, Double.doubleToRawLongBits(value));
+    }
+  }
+
+  private void set(int slot, byte kind, long value) {
+    ensureCapacity(slot);
+    if (kinds[slot] == EMPTY) {
+      slotted++;
+    }
+    kinds[slot] = kind;
+    bits[slot] = value;
+    objects[slot] = null;
+  }
+
+  /**
+   * Remove the value of the attribute.
+   * @param key the attribute.
+   * @return the previous value, or null if the attribute had no value.
+   */
+  public Object remove(Key key) {
+    if (key.slot < 0) {
+      return others == null ? null : others.remove(key.name);
+    }
+    Object previous = get(key);
+    if (previous != null) {
+      kinds[key.slot] = EMPTY;
+      objects[key.slot] = null;
+      bits[key.slot] = 0L;
+      slotted--;
+    }
+    return previous;
+  }
+
+  /**
+   * Get the Key for an attribute name passed to one of the Map methods, without registering it.
+   * @return the registered Key, a Key without a slot if the name has no slot, or null if the
+   *     name is not a String.
+   */
+  private static Key lookup(Object name) {
+    if (name == null) {
+      throw new NullPointerException();
+    }
+    if (!(name instanceof String)) {
+      return null;
+    }
+    Key key = registry.get(name);
+    return key != null ? key : new Key((String) name, -1);
+  }
+
+  @Override
+  public int size() {
+    return slotted + (others == null ? 0 : others.size());
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  @Override
+  public boolean containsKey(Object name) {
+    Key key = lookup(name);
+    return key != null && containsKey(key);
+  }
+
+  @Override
+  public Object get(Object name) {
+    Key key = lookup(name);
+    return key == null ? null : get(key);
+  }
+
+  @Override
+  public Object put(String name, Object value) {
+    return put(intern(name), value);
+  }
+
+  @Override
+  public Object remove(Object name) {
+    Key key = lookup(name);
+    return key == null ? null : remove(key);
+  }
+
+  @Override
+  public void clear() {
+    Arrays.fill(kinds, EMPTY);
+    Arrays.fill(objects, null);
+    Arrays.fill(bits, 0L);
+    slotted = 0;
+    others = null;
+  }
+
+  @Override
+  public Set<Map.Entry<String, Object>> entrySet() {
+    return new AbstractSet<Map.Entry<String, Object>>() {
+      @Override
+      public Iterator<Map.Entry<String, Object>> iterator() {
+        return new EntryIterator();
+      }
+
+      @Override
+      public int size() {
+        return PersonAttributes.this.size();
+      }
+    };
+  }
+
+  /**
+   * Iterates over the slots in order, followed by any other attributes. Like the iterators of
+   * ConcurrentHashMap, it reflects changes made during iteration on a best effort basis.
+   */
+  private class EntryIterator implements Iterator<Map.Entry<String, Object>> {
+    private int slot = nextSlot(0);
+    private Iterator<Map.Entry<String, Object>> othersIterator;
+    private Key lastKey;
+
+    private int nextSlot(int from) {
+      int next = from;
+      while (next < kinds.length && kinds[next] == EMPTY) {
+        next++;
+      }
+      return next;
+    }
+
+    private Iterator<Map.Entry<String, Object>> othersIterator() {
+      if (othersIterator == null) {
+        othersIterator = others == null
+            ? Collections.emptyIterator() : others.entrySet().iterator();
+      }
+      return othersIterator;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return slot < kinds.length || othersIterator().hasNext();
+    }
+
+    @Override
+    public Map.Entry<String, Object> next() {
+      if (slot < kinds.length) {
+        Key key = slots.get(slot);
+        lastKey = key;
+        slot = nextSlot(slot + 1);
+        return new SlotEntry(key);
+      }
+      if (!othersIterator().hasNext()) {
+        throw new NoSuchElementException();
+      }
+      lastKey = null;
+      return othersIterator().next();
+    }
+
+    @Override
+    public void remove() {
+      if (lastKey != null) {
+        PersonAttributes.this.remove(lastKey);
+        lastKey = null;
+      } else {
+        othersIterator().remove();
+      }
+    }
+  }
+
+  /** A Map.Entry that reads and writes through to a slot. */
+  private class SlotEntry implements Map.Entry<String, Object> {
+    private final Key key;
+    private final Object value;
+
+    private SlotEntry(Key key) {
+      this.key = key;
+      this.value = PersonAttributes.this.get(key);
+    }
+
+    @Override
+    public String getKey() {
+      return key.name;
+    }
+
+    @Override
+    public Object getValue() {
+      return value;
+    }
+
+    @Override
+    public Object setValue(Object value) {
+      return put(key, value);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Map.Entry)) {
+        return false;
+      }
+      Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+      return key.name.equals(e.getKey()) && Objects.equals(value, e.getValue());
+    }
+
+    @Override
+    public int hashCode() {
+      return key.name.hashCode() ^ Objects.hashCode(value);
+    }
+
+    @Override
+    public String toString() {
+      return key.name + "=" + value;
+    }
+  }
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    // slots are assigned per process, so write the attributes by name
+    out.defaultWriteObject();
+    out.writeInt(size());
+    for (Map.Entry<String, Object> entry : entrySet()) {
+      out.writeObject(entry.getKey());
+      out.writeObject(entry.getValue());
+    }
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    allocate(INITIAL_CAPACITY);
+    int size = in.readInt();
+    for (int i = 0; i < size; i++) {
+      String name = (String) in.readObject();
+      put(name, in.readObject());
+    }
+  }
+}
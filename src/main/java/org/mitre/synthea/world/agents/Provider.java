@@ -22,9 +22,8 @@ import java.util.concurrent.atomic.AtomicInteger;
 import org.mitre.synthea.export.JSONSkip;
 import org.mitre.synthea.helpers.Config;
 import org.mitre.synthea.helpers.DefaultRandomNumberGenerator;
+import org.mitre.synthea.helpers.IndexedCSV;
 import org.mitre.synthea.helpers.RandomNumberGenerator;
-import org.mitre.synthea.helpers.SimpleCSV;
-import org.mitre.synthea.helpers.Utilities;
 import org.mitre.synthea.world.agents.behaviors.providerfinder.IProviderFinder;
 import org.mitre.synthea.world.agents.behaviors.providerfinder.ProviderFinderNearest;
 import org.mitre.synthea.world.agents.behaviors.providerfinder.ProviderFinderNearestMedicare;
@@ -452,13 +451,13 @@ public class Provider implements QuadTreeElement, Serializable {
       return;
     }
 
-    String resource = Utilities.readResource(filename, true, true);
-    Iterator<? extends Map<String,String>> csv = SimpleCSV.parseLineByLine(resource);
+    String abbreviation = Location.getAbbreviation(location.state);
+    Iterator<? extends Map<String,String>> csv =
+        IndexedCSV.parse(filename, "state", location.state, abbreviation);
 
     while (csv.hasNext()) {
       Map<String,String> row = csv.next();
       String currState = row.get("state");
-      String abbreviation = Location.getAbbreviation(location.state);
 
       // for now, only allow one state at a time
       if ((location.state == null)
@@ -834,6 +834,9 @@ public class HealthRecord implements Serializable {
   public List<Encounter> encounters;
   @JSONSkip
   public Map<String, Entry> present;
+  /** Incremented whenever an entry is added to or removed from present. */
+  @JSONSkip
+  private transient int presentVersion;
   /** recorded death date/time. */
   public Long death;
   /** The person's demographics at the time of record creation. */
@@ -852,6 +855,25 @@ public class HealthRecord implements Serializable {
     }
   }
 
+  /**
+   * Get the number of times an entry has been added to or removed from the present entries,
+   * so callers can cheaply detect that they may have changed.
+   * @return the modification count of the present entries.
+   */
+  public int getPresentVersion() {
+    return presentVersion;
+  }
+
+  private void putPresent(String type, Entry entry) {
+    present.put(type, entry);
+    presentVersion++;
+  }
+
+  private void removePresent(String type) {
+    present.remove(type);
+    presentVersion++;
+  }
+
   /**
    * Returns the number of providers associated with this healthrecord.
    */
@@ -1020,7 +1042,7 @@ public class HealthRecord implements Serializable {
       Encounter encounter = currentEncounter(time);
       encounter.conditions.add(condition);
       encounter.claim.addLineItem(condition);
-      present.put(primaryCode, condition);
+      putPresent(primaryCode, condition);
     }
     return present.get(primaryCode);
   }
@@ -1033,7 +1055,7 @@ public class HealthRecord implements Serializable {
   public void conditionEnd(long time, String primaryCode) {
     if (present.containsKey(primaryCode)) {
       present.get(primaryCode).stop = time;
-      present.remove(primaryCode);
+      removePresent(primaryCode);
     }
   }
 
@@ -1054,7 +1076,7 @@ public class HealthRecord implements Serializable {
     }
     if (condition != null) {
       condition.stop = time;
-      present.remove(condition.type);
+      removePresent(condition.type);
     }
   }
 
@@ -1091,7 +1113,7 @@ public class HealthRecord implements Serializable {
     if (!present.containsKey(primaryCode)) {
       Allergy allergy = new Allergy(time, primaryCode);
       currentEncounter(time).allergies.add(allergy);
-      present.put(primaryCode, allergy);
+      putPresent(primaryCode, allergy);
     }
     return (Allergy) present.get(primaryCode);
   }
@@ -1104,7 +1126,7 @@ public class HealthRecord implements Serializable {
   public void allergyEnd(long time, String primaryCode) {
     if (present.containsKey(primaryCode)) {
       present.get(primaryCode).stop = time;
-      present.remove(primaryCode);
+      removePresent(primaryCode);
     }
   }
 
@@ -1125,7 +1147,7 @@ public class HealthRecord implements Serializable {
     }
     if (allergy != null) {
       allergy.stop = time;
-      present.remove(allergy.type);
+      removePresent(allergy.type);
     }
   }
 
@@ -1153,7 +1175,7 @@ public class HealthRecord implements Serializable {
     Encounter encounter = currentEncounter(time);
     encounter.procedures.add(procedure);
     encounter.claim.addLineItem(procedure);
-    present.put(type, procedure);
+    putPresent(type, procedure);
     return procedure;
   }
 
@@ -1169,7 +1191,7 @@ public class HealthRecord implements Serializable {
     Encounter encounter = currentEncounter(time);
     encounter.devices.add(device);
     encounter.claim.addLineItem(device);
-    present.put(type, device);
+    putPresent(type, device);
     return device;
   }
 
@@ -1181,7 +1203,7 @@ public class HealthRecord implements Serializable {
   public void deviceRemove(long time, String type) {
     if (present.containsKey(type)) {
       present.get(type).stop = time;
-      present.remove(type);
+      removePresent(type);
     }
   }
 
@@ -1202,7 +1224,7 @@ public class HealthRecord implements Serializable {
     }
     if (device != null) {
       device.stop = time;
-      present.remove(device.type);
+      removePresent(device.type);
     }
   }
 
@@ -1324,7 +1346,7 @@ public class HealthRecord implements Serializable {
        * Medications submit separate claims.
        */
       // encounter.claim.addLineItem(medication);
-      present.put(type, medication);
+      putPresent(type, medication);
     } else {
       medication = (Medication) present.get(type);
     }
@@ -1372,7 +1394,7 @@ public class HealthRecord implements Serializable {
 
       chronicMedicationEnd(type);
 
-      present.remove(type);
+      removePresent(type);
     }
   }
 
@@ -1396,7 +1418,7 @@ public class HealthRecord implements Serializable {
       medication.stop = time;
       medication.stopReason = reason;
       chronicMedicationEnd(medication.type);
-      present.remove(medication.type);
+      removePresent(medication.type);
     }
   }
 
@@ -1426,7 +1448,7 @@ public class HealthRecord implements Serializable {
     if (!present.containsKey(type)) {
       careplan = new CarePlan(time, type);
       currentEncounter(time).careplans.add(careplan);
-      present.put(type, careplan);
+      putPresent(type, careplan);
     } else {
       careplan = (CarePlan) present.get(type);
     }
@@ -1444,7 +1466,7 @@ public class HealthRecord implements Serializable {
       CarePlan careplan = (CarePlan) present.get(type);
       careplan.stop = time;
       careplan.stopReason = reason;
-      present.remove(type);
+      removePresent(type);
     }
   }
 
@@ -1467,7 +1489,7 @@ public class HealthRecord implements Serializable {
     if (careplan != null) {
       careplan.stop = time;
       careplan.stopReason = reason;
-      present.remove(careplan.type);
+      removePresent(careplan.type);
     }
   }
 
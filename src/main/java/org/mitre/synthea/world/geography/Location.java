@@ -8,6 +8,7 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -15,6 +16,7 @@ import java.util.Map;
 import org.apache.commons.lang3.ArrayUtils;
 import org.mitre.synthea.export.JSONSkip;
 import org.mitre.synthea.helpers.Config;
+import org.mitre.synthea.helpers.IndexedCSV;
 import org.mitre.synthea.helpers.RandomNumberGenerator;
 import org.mitre.synthea.helpers.SimpleCSV;
 import org.mitre.synthea.helpers.Utilities;
@@ -105,11 +107,12 @@ public class Location implements Serializable {
     String filename = null;
     try {
       filename = Config.get("generate.geography.zipcodes.default_file");
-      String csv = Utilities.readResource(filename, true, true);
-      List<? extends Map<String,String>> ziplist = SimpleCSV.parse(csv);
+      Iterator<? extends Map<String,String>> ziplist =
+          IndexedCSV.parse(filename, "USPS", state, getStateName(state));
 
       zipCodes = new HashMap<>();
-      for (Map<String,String> line : ziplist) {
+      while (ziplist.hasNext()) {
+        Map<String,String> line = ziplist.next();
         Place place = new Place(line);
 
         if (!place.sameState(state)) {
@@ -131,10 +134,11 @@ public class Location implements Serializable {
     try {
       filename = Config.get("generate.geography.sdoh.default_file",
         "geography/sdoh.csv");
-      String csv = Utilities.readResource(filename, true, true);
-      List<? extends Map<String,String>> sdohList = SimpleCSV.parse(csv);
+      Iterator<? extends Map<String,String>> sdohList =
+          IndexedCSV.parse(filename, "STATE", state);
 
-      for (Map<String,String> line : sdohList) {
+      while (sdohList.hasNext()) {
+        Map<String,String> line = sdohList.next();
         String lineState = line.remove("STATE");
         if (!lineState.equalsIgnoreCase(state)) {
           continue;
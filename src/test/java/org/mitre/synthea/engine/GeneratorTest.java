@@ -1,7 +1,10 @@
 package org.mitre.synthea.engine;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -9,15 +12,24 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
 
 import org.junit.Before;
 import org.junit.BeforeClass;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import org.mitre.synthea.TestHelper;
 import org.mitre.synthea.export.Exporter;
@@ -32,6 +44,8 @@ import org.mitre.synthea.world.agents.Provider;
 import org.mitre.synthea.world.geography.Location;
 
 public class GeneratorTest {
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
 
   /**
    * Configure settings across these tests.
@@ -210,6 +224,115 @@ public class GeneratorTest {
     }
   }
 
+  @Test
+  public void testBoundedPersonsInFlight() throws Exception {
+    int numberOfPeople = 4;
+    Generator.GeneratorOptions opts = new Generator.GeneratorOptions();
+    opts.population = numberOfPeople;
+    opts.threadPoolSize = 2;
+    opts.maxInFlight = 1;
+    Generator generator = new Generator(opts);
+    generator.run();
+    assertEquals(numberOfPeople, generator.stats.get("alive").longValue());
+    assertEquals(1, generator.peakQueueDepth.get());
+  }
+
+  @Test
+  public void testShardsUseSameSeeds() throws Exception {
+    Generator.GeneratorOptions opts = new Generator.GeneratorOptions();
+    opts.population = 3;
+    opts.seed = 4321L;
+    Generator generator = new Generator(opts);
+    generator.internalStore = Collections.synchronizedList(new ArrayList<Person>());
+    generator.run();
+    List<Long> expected = generator.internalStore.stream()
+        .map(Person::getSeed).sorted().collect(Collectors.toList());
+
+    List<Long> sharded = new ArrayList<Long>();
+    for (int shard = 0; shard < 2; shard++) {
+      opts.shardIndex = shard;
+      opts.shardCount = 2;
+      generator = new Generator(opts);
+      generator.internalStore = Collections.synchronizedList(new ArrayList<Person>());
+      generator.run();
+      assertEquals(shard == 0 ? 2 : 1, generator.stats.get("alive").longValue());
+      generator.internalStore.forEach(person -> sharded.add(person.getSeed()));
+    }
+    sharded.sort(null);
+    assertEquals(expected, sharded);
+  }
+
+  @Test
+  public void testSinglePersonIndex() throws Exception {
+    for (boolean counterSeeds : new boolean[] { false, true }) {
+      Generator.GeneratorOptions opts = new Generator.GeneratorOptions();
+      opts.seed = 4321L;
+      opts.counterSeeds = counterSeeds;
+      opts.singlePersonIndex = 2;
+      Generator generator = new Generator(opts);
+      generator.internalStore = Collections.synchronizedList(new ArrayList<Person>());
+      generator.run();
+
+      long expected;
+      if (counterSeeds) {
+        expected = DefaultRandomNumberGenerator.deriveSeed(4321L, 2);
+      } else {
+        DefaultRandomNumberGenerator populationRandom = new DefaultRandomNumberGenerator(4321L);
+        populationRandom.randLong();
+        populationRandom.randLong();
+        expected = populationRandom.randLong();
+      }
+      // the first attempt at the person uses the seed of their index
+      assertEquals(expected, generator.internalStore.get(0).getSeed());
+    }
+  }
+
+  @Test
+  public void testSkipParkedModulesDoesNotChangeRecords() throws Exception {
+    Generator.GeneratorOptions opts = new Generator.GeneratorOptions();
+    opts.population = 1;
+    opts.seed = 1234L;
+    List<List<Long>> encounterStarts = new ArrayList<List<Long>>();
+    for (String skip : new String[] { "false", "true" }) {
+      Config.set("generate.skip_parked_modules", skip);
+      Generator generator = new Generator(opts);
+      Person person = generator.generatePerson(0, 1234L);
+      encounterStarts.add(person.record.encounters.stream()
+          .map(e -> e.start).collect(Collectors.toList()));
+    }
+    Config.set("generate.skip_parked_modules", "true");
+    assertEquals(encounterStarts.get(0), encounterStarts.get(1));
+  }
+
+  @Test
+  public void testExecutorStrategies() throws Exception {
+    for (ExecutorStrategy strategy : ExecutorStrategy.values()) {
+      int numberOfPeople = 2;
+      Generator.GeneratorOptions opts = new Generator.GeneratorOptions();
+      opts.population = numberOfPeople;
+      opts.executorStrategy = strategy.toString();
+      Generator generator = new Generator(opts);
+      assertEquals(strategy, generator.executorStrategy);
+      generator.run();
+      assertEquals(numberOfPeople, generator.stats.get("alive").longValue());
+    }
+    assertEquals(ExecutorStrategy.WORK_STEALING, ExecutorStrategy.fromString("work-stealing"));
+    assertEquals(ExecutorStrategy.FIXED, ExecutorStrategy.fromString(null));
+    try {
+      ExecutorStrategy.fromString("parallel");
+      fail("Expected an unknown executor strategy to be rejected");
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage().contains("parallel"));
+    }
+
+    Generator.GeneratorOptions opts = new Generator.GeneratorOptions();
+    opts.threadPoolSize = 2;
+    assertEquals(8, new Generator(opts).maxInFlight);
+    opts.executorStrategy = "virtual";
+    int expected = ExecutorStrategy.virtualThreadsSupported() ? 128 : 8;
+    assertEquals(expected, new Generator(opts).maxInFlight);
+  }
+
   @Test
   public void testGenerateRecordQueue() throws Exception {
     int numberOfPeople = 10;
@@ -355,4 +478,267 @@ public class GeneratorTest {
       assertTrue((Boolean)p.attributes.get("diabetes"));
     }
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testEarlyRejection() throws Exception {
+    Path keepModule = Path.of("src/test/resources/keep_patients_module/keep_under_40.json");
+    Module module = Module.loadFile(keepModule, false, null, true);
+    Person person = new Person(0L);
+    long now = System.currentTimeMillis();
+    person.attributes.put(Person.BIRTHDATE, now - Utilities.convertTime("years", 50));
+    assertFalse(module.canReach("Keep", person, now, now + Utilities.convertTime("years", 1)));
+    person.attributes.put(Person.BIRTHDATE, now - Utilities.convertTime("years", 30));
+    person.attributes.remove(Person.BIRTHDATE_AS_LOCALDATE);
+    assertTrue(module.canReach("Keep", person, now, now + Utilities.convertTime("years", 20)));
+
+    Generator.GeneratorOptions opts = new Generator.GeneratorOptions();
+    opts.population = 1;
+    opts.minAge = 50;
+    opts.maxAge = 60;
+    opts.ageSpecified = true;
+    opts.keepPatientsModulePath = keepModule;
+    // only patients who die before 40 can be kept, so most attempts stop at 40
+    Config.set("generate.early_rejection", "true");
+    Config.set("generate.max_attempts_to_keep_patient", "3");
+    Generator generator;
+    try {
+      generator = new Generator(opts);
+    } finally {
+      Config.set("generate.early_rejection", "false");
+      Config.set("generate.max_attempts_to_keep_patient", "1000");
+    }
+    try {
+      generator.generatePerson(0, 1L);
+    } catch (RuntimeException e) {
+      // none of the attempts died young enough to be kept
+    }
+    long rejected = generator.rejectedPersons.get();
+    assertEquals(rejected, generator.earlyRejectedPersons.get());
+    assertTrue(generator.rejectedSimulatedTime.get()
+        <= rejected * Utilities.convertTime("years", 41));
+  }
+
+  @Test
+  public void testKeepModuleLockstep() throws Exception {
+    Generator.GeneratorOptions opts = new Generator.GeneratorOptions();
+    opts.population = 1;
+    opts.minAge = 50;
+    opts.maxAge = 60;
+    opts.ageSpecified = true;
+    opts.keepPatientsModulePath =
+        Path.of("src/test/resources/keep_patients_module/keep_lockstep.json");
+    // the keep module gives up on patients without diabetes at 40
+    Config.set("generate.keep_module_lockstep", "true");
+    Config.set("generate.max_attempts_to_keep_patient", "3");
+    Generator generator;
+    try {
+      generator = new Generator(opts);
+    } finally {
+      Config.set("generate.keep_module_lockstep", "false");
+      Config.set("generate.max_attempts_to_keep_patient", "1000");
+    }
+    Person person = null;
+    try {
+      person = generator.generatePerson(0, 1L);
+    } catch (RuntimeException e) {
+      // none of the attempts had diabetes by 40
+    }
+    // every rejected attempt stopped by 40, either rejected by the keep module or dead
+    long rejected = generator.rejectedPersons.get();
+    assertTrue(generator.rejectedSimulatedTime.get()
+        <= rejected * Utilities.convertTime("years", 41));
+    if (person != null) {
+      assertTrue((Boolean) person.attributes.get("diabetes"));
+      assertEquals(1, generator.keptPersons.get());
+      assertEquals(rejected + 1, generator.keepAttempts.get());
+    }
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testKeepModuleLockstepThreads() throws Exception {
+    Generator.GeneratorOptions opts = new Generator.GeneratorOptions();
+    opts.population = 8;
+    opts.minAge = 50;
+    opts.maxAge = 60;
+    opts.ageSpecified = true;
+    opts.keepPatientsModulePath =
+        Path.of("src/test/resources/keep_patients_module/keep_lockstep.json");
+    Config.set("generate.keep_module_lockstep", "true");
+    Config.set("generate.max_attempts_to_keep_patient", "3");
+    Generator generator;
+    try {
+      generator = new Generator(opts);
+    } finally {
+      Config.set("generate.keep_module_lockstep", "false");
+      Config.set("generate.max_attempts_to_keep_patient", "1000");
+    }
+    // every thread processes the same keep module instance at every timestep
+    ExecutorService service = Executors.newFixedThreadPool(4);
+    List<Future<Person>> futures = new ArrayList<Future<Person>>();
+    for (int i = 0; i < opts.population; i++) {
+      final int index = i;
+      futures.add(service.submit(() -> {
+        try {
+          return generator.generatePerson(index, index + 1L);
+        } catch (RuntimeException e) {
+          // none of the attempts had diabetes by 40
+          return null;
+        }
+      }));
+    }
+    int kept = 0;
+    try {
+      for (Future<Person> future : futures) {
+        Person person = future.get();
+        if (person != null) {
+          kept++;
+          assertTrue((Boolean) person.attributes.get("diabetes"));
+          List<State> history = (List<State>) person.attributes.get("keep_lockstep");
+          assertEquals("Keep", history.get(0).name);
+        }
+      }
+    } finally {
+      service.shutdown();
+    }
+    assertEquals(kept, generator.keptPersons.get());
+  }
+
+  @Test
+  public void testPersonCosts() throws Exception {
+    File output = tempFolder.newFolder();
+    String baseDirectory = Config.get("exporter.baseDirectory", "./output/");
+    Config.set("exporter.baseDirectory", output.toString());
+    Config.set("generate.person_costs", "true");
+    Generator generator = new Generator(2);
+    try {
+      generator.run();
+    } finally {
+      Config.set("exporter.baseDirectory", baseDirectory);
+      Config.set("generate.person_costs", "false");
+    }
+    List<String> lines = Files.readAllLines(
+        output.toPath().resolve("metrics").resolve("person_costs.csv"));
+    assertEquals("index,seed,attempt,exported,age,encounters,observations,"
+        + "allocated_bytes,cpu_ns,export_ns", lines.get(0));
+    int exports = 0;
+    for (String line : lines.subList(1, lines.size())) {
+      String[] fields = line.split(",");
+      assertEquals(10, fields.length);
+      assertTrue(Integer.parseInt(fields[5]) >= 0);
+      assertTrue(Long.parseLong(fields[7]) >= 0);
+      assertTrue(Long.parseLong(fields[8]) >= 0);
+      if (Long.parseLong(fields[9]) > 0) {
+        exports++;
+      }
+    }
+    // every recorded person went through the export, and rejected attempts did not
+    assertEquals(generator.totalGeneratedPopulation.get(), exports);
+  }
+
+  @Test
+  public void testUpdateSnapshotInChunks() throws Exception {
+    File snapshot = tempFolder.newFile();
+    Generator.GeneratorOptions opts = new Generator.GeneratorOptions();
+    opts.population = 5;
+    opts.seed = 2468L;
+    opts.updatedPopulationSnapshotPath = snapshot;
+    opts.snapshotChunkSize = 2;
+    Generator generator = new Generator(opts);
+    generator.internalStore = Collections.synchronizedList(new ArrayList<Person>());
+    generator.run();
+    List<Long> expected = generator.internalStore.stream()
+        .map(Person::getSeed).sorted().collect(Collectors.toList());
+
+    // each chunk is decoded and updated by the thread pool, even with fewer persons in flight
+    // than there are in a chunk
+    opts = new Generator.GeneratorOptions();
+    opts.initialPopulationSnapshotPath = snapshot;
+    opts.daysToTravelForward = 30;
+    opts.maxInFlight = 1;
+    generator = new Generator(opts);
+    generator.internalStore = Collections.synchronizedList(new ArrayList<Person>());
+    generator.run();
+    assertEquals(expected, generator.internalStore.stream()
+        .map(Person::getSeed).sorted().collect(Collectors.toList()));
+  }
+
+  @Test
+  public void testPersonCostsOnVirtualThreads() throws Exception {
+    assumeTrue(ExecutorStrategy.virtualThreadsSupported());
+    File output = tempFolder.newFolder();
+    String baseDirectory = Config.get("exporter.baseDirectory", "./output/");
+    Config.set("exporter.baseDirectory", output.toString());
+    Config.set("generate.person_costs", "true");
+    Generator.GeneratorOptions opts = new Generator.GeneratorOptions();
+    opts.population = 2;
+    opts.executorStrategy = "virtual";
+    try {
+      new Generator(opts).run();
+    } finally {
+      Config.set("exporter.baseDirectory", baseDirectory);
+      Config.set("generate.person_costs", "false");
+    }
+    List<String> lines = Files.readAllLines(
+        output.toPath().resolve("metrics").resolve("person_costs.csv"));
+    assertTrue(lines.size() > 1);
+    for (String line : lines.subList(1, lines.size())) {
+      String[] fields = line.split(",", -1);
+      assertEquals(10, fields.length);
+      // allocations and CPU time cannot be measured, so they are empty rather than 0
+      assertEquals("", fields[7]);
+      assertEquals("", fields[8]);
+    }
+  }
+
+  @Test
+  public void testResumeMatchesUninterruptedRun() throws Exception {
+    File journal = tempFolder.newFile();
+    Generator.GeneratorOptions opts = new Generator.GeneratorOptions();
+    opts.population = 4;
+    opts.seed = 1357L;
+    opts.clinicianSeed = 1357L;
+    opts.threadPoolSize = 1;
+    opts.maxInFlight = 1;
+    opts.journalPath = journal;
+    opts.checkpointInterval = 2;
+    Generator generator = new Generator(opts);
+    generator.internalStore = Collections.synchronizedList(new ArrayList<Person>());
+    generator.run();
+    List<Long> expected = generator.internalStore.stream()
+        .map(Person::getSeed).sorted().collect(Collectors.toList());
+
+    // interrupt the run just after the first checkpoint with some of the persons completed
+    List<String> lines = Files.readAllLines(journal.toPath());
+    int checkpoint = 0;
+    while (!lines.get(checkpoint).matches("checkpoint [1-3] .*")) {
+      checkpoint++;
+    }
+    int end = lines.subList(checkpoint, lines.size()).indexOf("end") + checkpoint;
+    Files.write(journal.toPath(), lines.subList(0, end + 1));
+
+    // the persons completed before the interruption are simulated again, but not exported,
+    // so the resumed run counts every person
+    Generator.GeneratorOptions resumed = new Generator.GeneratorOptions();
+    resumed.threadPoolSize = 1;
+    resumed.journalPath = journal;
+    resumed.resume = true;
+    Generator resumedGenerator;
+    try {
+      resumedGenerator = new Generator(resumed);
+      resumedGenerator.internalStore = Collections.synchronizedList(new ArrayList<Person>());
+      resumedGenerator.run();
+    } finally {
+      // resuming continues the shared output files
+      Config.set("exporter.csv.append_mode", "false");
+      Config.set("exporter.cpcds.append_mode", "false");
+      Config.set("exporter.symptoms.csv.append_mode", "false");
+    }
+    assertEquals(expected, resumedGenerator.internalStore.stream()
+        .map(Person::getSeed).sorted().collect(Collectors.toList()));
+    assertEquals(generator.totalGeneratedPopulation.get(),
+        resumedGenerator.totalGeneratedPopulation.get());
+    assertEquals(generator.stats.get("alive").get(), resumedGenerator.stats.get("alive").get());
+    assertEquals(generator.stats.get("dead").get(), resumedGenerator.stats.get("dead").get());
+  }
+}
@@ -87,6 +87,30 @@ public class LogicTest {
     return logic.test(person, time);
   }
 
+  private Boolean doForecast(String testName, long until) {
+    JsonObject definition = tests.getAsJsonObject(testName).deepCopy();
+    Logic logic = Utilities.getGson().fromJson(definition, Logic.class);
+
+    return logic.forecast(person, time, until);
+  }
+
+  @Test
+  public void testForecast() {
+    long tenYears = Utilities.convertTime("years", 10);
+    person.attributes.put(Person.GENDER, "M");
+    assertEquals(Boolean.TRUE, doForecast("genderIsMaleTest", time + tenYears));
+    assertEquals(Boolean.TRUE, doForecast("andAllTrueTest", time + tenYears));
+    assertEquals(Boolean.FALSE, doForecast("atLeast3_2TrueTest", time + tenYears));
+    assertEquals(null, doForecast("attributeNilTest", time + tenYears));
+
+    setPatientAge(35);
+    assertEquals(null, doForecast("ageLt40Test", time + tenYears));
+    assertEquals(Boolean.TRUE, doForecast("ageLt40Test", time + tenYears / 10));
+    assertEquals(null, doForecast("ageEq40Test", time + tenYears / 10));
+    setPatientAge(45);
+    assertEquals(Boolean.FALSE, doForecast("ageLt40Test", time + tenYears));
+  }
+
   @Test
   public void testTrue() {
     assertTrue(doTest("trueTest"));
@@ -12,30 +12,41 @@ import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.google.gson.stream.JsonReader;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.StringReader;
 import java.lang.reflect.Field;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Random;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mitre.synthea.helpers.Config;
 import org.mitre.synthea.helpers.Utilities;
+import org.mitre.synthea.world.agents.Person;
 import org.powermock.reflect.Whitebox;
 
 public class ModuleTest {
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
 
   @Test
   public void getModules() {
@@ -175,6 +186,14 @@ public class ModuleTest {
     assertEquals("COPD Module", module.name);
   }
 
+  @Test
+  public void clonesShareStateDefinitions() {
+    Module moduleA = Module.getModuleByPath("copd");
+    Module moduleB = Module.getModuleByPath("copd");
+    assertFalse(moduleA == moduleB);
+    assertSame(moduleA.getState("Initial"), moduleB.getState("Initial"));
+  }
+
   @Test
   public void addLocalModules() {
     Module.addModules(new File("src/test/resources/module"));
@@ -313,4 +332,114 @@ public class ModuleTest {
       }
     });
   }
-}
\ No newline at end of file
+
+  @Test
+  public void moduleCache() throws Exception {
+    File folder = tempFolder.newFolder();
+    Config.set("generate.module_cache", "true");
+    Config.set("generate.module_cache.folder", folder.toString());
+    try {
+      Path path = Paths.get("modules", "medications", "ace_arb.json");
+      Module built = Module.loadFile(path, false, null, false);
+      File[] files = folder.listFiles();
+      assertEquals(1, files.length);
+
+      Module cached = Module.loadFile(path, false, null, false);
+      assertFalse(built == cached);
+      assertEquals(built.name, cached.name);
+      assertEquals(built.getStateNames(), cached.getStateNames());
+      // the deserialized lookup table transition can be followed
+      Transition transition = cached.getState("Prescribe_Ingredient").getTransition();
+      assertTrue(transition instanceof Transition.LookupTableTransition);
+      Person person = new Person(0L);
+      person.attributes.put(Person.GENDER, "F");
+      person.attributes.put(Person.BIRTHDATE, 0L);
+      person.attributes.put(Person.STATE, "Massachusetts");
+      assertNotNull(transition.follow(person, Utilities.convertCalendarYearsToTime(2020)));
+
+      // an unreadable cache file is replaced
+      Files.write(files[0].toPath(), new byte[] {1, 2, 3});
+      cached = Module.loadFile(path, false, null, false);
+      assertEquals(built.getStateNames(), cached.getStateNames());
+      assertTrue(files[0].length() > 3);
+    } finally {
+      Config.set("generate.module_cache", "false");
+    }
+  }
+
+  @Test
+  public void moduleCacheKey() {
+    Path path = Paths.get("modules", "example.json");
+    String json = "{\"name\": \"Example\"}";
+    String key = ModuleCache.key(path, json, null, false);
+    assertEquals(key, ModuleCache.key(path, json, new Properties(), false));
+    assertFalse(key.equals(ModuleCache.key(path, json, null, true)));
+    assertFalse(key.equals(ModuleCache.key(path, "{\"name\": \"Other\"}", null, false)));
+
+    // only the overrides of this module change the key
+    Properties overrides = new Properties();
+    overrides.setProperty("other.json::$.states.Initial.distribution", "0.5");
+    assertEquals(key, ModuleCache.key(path, json, overrides, false));
+    overrides.setProperty("example.json::$.states.Initial.distribution", "0.5");
+    assertFalse(key.equals(ModuleCache.key(path, json, overrides, false)));
+  }
+
+  @Test
+  public void allModulesCanBeCached() throws Exception {
+    for (Module.ModuleSupplier supplier : Module.getModuleSuppliers(s -> !s.core)) {
+      try (ObjectOutputStream out = new ObjectOutputStream(new ByteArrayOutputStream())) {
+        out.writeObject(supplier.get());
+      }
+    }
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void sharedModuleKeepsStatesPerPerson() throws Exception {
+    // the keep module is a single instance, processed by every generator thread
+    Module module = Module.loadFile(
+        Paths.get("src/test/resources/keep_patients_module/keep_lockstep.json"),
+        false, null, true);
+    int count = 8;
+    List<Person> people = new ArrayList<Person>();
+    List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+    for (int i = 0; i < count; i++) {
+      Person person = new Person(i);
+      person.attributes.put(Person.BIRTHDATE, Utilities.convertCalendarYearsToTime(1970));
+      people.add(person);
+      tasks.add(() -> {
+        for (int year = 1970; year <= 2020; year++) {
+          module.process(person, Utilities.convertCalendarYearsToTime(year), false);
+        }
+        return null;
+      });
+    }
+    ExecutorService service = Executors.newFixedThreadPool(count);
+    try {
+      for (Future<Object> future : service.invokeAll(tasks)) {
+        future.get();
+      }
+    } finally {
+      service.shutdown();
+    }
+
+    for (Person person : people) {
+      List<State> history = (List<State>) person.attributes.get("keep_lockstep Module");
+      assertEquals("Terminal", history.get(0).name);
+      // a check every year from birth until 40, each with its own entered and exited times
+      long previous = Long.MIN_VALUE;
+      int checks = 0;
+      for (int i = history.size() - 1; i > 0; i--) {
+        State state = history.get(i);
+        assertNotNull(state.entered);
+        assertNotNull(state.exited);
+        if (state.name.equals("Check")) {
+          assertTrue(state.entered > previous);
+          previous = state.entered;
+          checks++;
+        }
+      }
+      assertTrue(checks >= 41);
+    }
+  }
+}
@@ -0,0 +1,142 @@
+package org.mitre.synthea.engine;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mitre.synthea.world.agents.Person;
+
+public class PopulationSnapshotTest {
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private static Person person(long seed) {
+    Person person = new Person(seed);
+    person.attributes.put(Person.NAME, "Person " + seed);
+    person.lastUpdated = seed;
+    return person;
+  }
+
+  private static List<Person> readAll(File file) throws IOException {
+    List<Person> persons = new ArrayList<Person>();
+    try (PopulationSnapshot.Reader reader = new PopulationSnapshot.Reader(file)) {
+      PopulationSnapshot.Chunk chunk;
+      while ((chunk = reader.next()) != null) {
+        assertEquals(persons.size(), chunk.firstIndex);
+        persons.addAll(chunk.decode());
+      }
+    }
+    return persons;
+  }
+
+  @Test
+  public void writesAndReadsChunks() throws Exception {
+    File file = tempFolder.newFile();
+    try (PopulationSnapshot.Writer writer = new PopulationSnapshot.Writer(file, 2)) {
+      for (long seed = 0; seed < 5; seed++) {
+        writer.add(person(seed));
+      }
+    }
+
+    List<Person> persons = readAll(file);
+    assertEquals(5, persons.size());
+    for (int i = 0; i < persons.size(); i++) {
+      assertEquals("Person " + i, persons.get(i).attributes.get(Person.NAME));
+      assertEquals(i, persons.get(i).lastUpdated);
+    }
+  }
+
+  @Test
+  public void savesPersonsAsAdded() throws Exception {
+    File file = tempFolder.newFile();
+    try (PopulationSnapshot.Writer writer = new PopulationSnapshot.Writer(file, 4)) {
+      for (long seed = 0; seed < 3; seed++) {
+        Person person = person(seed);
+        writer.add(person);
+        // like an export filtering the record, after the person is in the snapshot
+        person.attributes.put(Person.NAME, "Changed");
+      }
+    }
+    List<Person> persons = readAll(file);
+    assertEquals(3, persons.size());
+    assertEquals("Person 2", persons.get(2).attributes.get(Person.NAME));
+  }
+
+  @Test
+  public void writesFromManyThreads() throws Exception {
+    File file = tempFolder.newFile();
+    ExecutorService threadPool = Executors.newFixedThreadPool(4);
+    try (PopulationSnapshot.Writer writer = new PopulationSnapshot.Writer(file, 3)) {
+      List<Future<?>> futures = new ArrayList<Future<?>>();
+      for (long seed = 0; seed < 50; seed++) {
+        final long s = seed;
+        futures.add(threadPool.submit(() -> writer.add(person(s))));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      threadPool.shutdown();
+    }
+    Set<Long> seeds = new HashSet<Long>();
+    for (Person person : readAll(file)) {
+      seeds.add(person.lastUpdated);
+    }
+    assertEquals(50, seeds.size());
+  }
+
+  @Test
+  public void readsIncompleteSnapshot() throws Exception {
+    File file = tempFolder.newFile();
+    try (PopulationSnapshot.Writer writer = new PopulationSnapshot.Writer(file, 2)) {
+      for (long seed = 0; seed < 4; seed++) {
+        writer.add(person(seed));
+      }
+    }
+    // cut off the end marker and part of the last chunk, as if the run had been killed
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(raf.length() - 20);
+    }
+    assertEquals(2, readAll(file).size());
+  }
+
+  @Test
+  public void readsLegacySnapshot() throws Exception {
+    File file = tempFolder.newFile();
+    List<Person> population = new ArrayList<Person>();
+    population.add(person(1L));
+    population.add(person(2L));
+    try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(file))) {
+      oos.writeObject(population);
+    }
+    List<Person> persons = readAll(file);
+    assertEquals(2, persons.size());
+    assertEquals("Person 2", persons.get(1).attributes.get(Person.NAME));
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsNewerVersion() throws Exception {
+    File file = tempFolder.newFile();
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+      out.writeInt(PopulationSnapshot.MAGIC);
+      out.writeInt(PopulationSnapshot.VERSION + 1);
+      out.writeInt(0);
+    }
+    new PopulationSnapshot.Reader(file).close();
+  }
+}
@@ -0,0 +1,159 @@
+package org.mitre.synthea.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import org.mitre.synthea.helpers.Config;
+
+public class ProgressJournalTest {
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private static void append(Path file, String contents) throws IOException {
+    Files.write(file, contents.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE,
+        StandardOpenOption.APPEND);
+  }
+
+  private static String read(Path file) throws IOException {
+    return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void resumesFromLastCheckpoint() throws Exception {
+    File journalFile = new File(tempFolder.getRoot(), "progress.journal");
+    Path output = tempFolder.newFolder("output").toPath().toAbsolutePath();
+    Path csv = output.resolve("csv/patients.csv");
+    Path ndjson = output.resolve("fhir/Patient.ndjson");
+    // not an exporter folder, so never restored
+    Path metrics = output.resolve("metrics/person_costs.csv");
+    // written for a single person
+    Path before = output.resolve("ccda/person_0.xml");
+    Path after = output.resolve("ccda/person_1.xml");
+    Files.createDirectories(csv.getParent());
+    Files.createDirectories(ndjson.getParent());
+    Files.createDirectories(metrics.getParent());
+    Files.createDirectories(before.getParent());
+    Properties state = new Properties();
+
+    Generator.GeneratorOptions options = new Generator.GeneratorOptions();
+    options.seed = 123L;
+    options.clinicianSeed = 456L;
+    options.population = 10;
+    append(csv, "header\n");
+    try (ProgressJournal journal = ProgressJournal.create(journalFile, options)) {
+      journal.checkpoint(output, state);
+      journal.turnedDown(0, 999L);
+      journal.completed(0, 1000L);
+      append(csv, "person 0\n");
+      append(before, "person 0\n");
+      before.toFile().setLastModified(System.currentTimeMillis() - 60000L);
+      state.setProperty("exporter.bfd.bene_id_start", "-2");
+      journal.checkpoint(output, state);
+      // the run is interrupted after person 1 is done, but before the next checkpoint
+      journal.completed(1, 1001L);
+      append(csv, "person 1\n");
+      append(ndjson, "{}\n");
+      append(metrics, "person 1\n");
+      append(after, "person 1\n");
+      after.toFile().setLastModified(System.currentTimeMillis() + 60000L);
+    }
+
+    Generator.GeneratorOptions resumed = new Generator.GeneratorOptions();
+    try (ProgressJournal journal = ProgressJournal.resume(journalFile, resumed)) {
+      assertEquals(123L, resumed.seed);
+      assertEquals(456L, resumed.clinicianSeed);
+      assertEquals(10, resumed.population);
+      assertEquals(options.referenceTime, resumed.referenceTime);
+      assertEquals(1, journal.completedCount());
+      assertTrue(journal.isCompleted(0));
+      assertFalse(journal.isCompleted(1));
+      assertEquals(1000L, journal.completedSeed(0));
+      assertTrue(journal.wasTurnedDown(0, 999L));
+      assertFalse(journal.wasTurnedDown(0, 1000L));
+      assertEquals("-2", journal.exporterState().getProperty("exporter.bfd.bene_id_start"));
+
+      journal.restoreOutputs(output);
+      assertEquals("header\nperson 0\n", read(csv));
+      assertFalse(Files.exists(ndjson));
+      assertEquals("person 1\n", read(metrics));
+      assertTrue(Files.exists(before));
+      assertFalse(Files.exists(after));
+
+      journal.completed(1, 1001L);
+      append(csv, "person 1\n");
+      state.setProperty("exporter.bfd.bene_id_start", "-3");
+      journal.checkpoint(output, state);
+    }
+
+    try (ProgressJournal journal = ProgressJournal.resume(journalFile, resumed)) {
+      assertEquals(2, journal.completedCount());
+      assertEquals("-3", journal.exporterState().getProperty("exporter.bfd.bene_id_start"));
+      journal.restoreOutputs(output);
+      assertEquals("header\nperson 0\nperson 1\n", read(csv));
+    }
+  }
+
+  @Test
+  public void ignoresPartlyWrittenCheckpoint() throws Exception {
+    File journalFile = new File(tempFolder.getRoot(), "progress.journal");
+    Path output = tempFolder.newFolder("output").toPath();
+    Generator.GeneratorOptions options = new Generator.GeneratorOptions();
+    try (ProgressJournal journal = ProgressJournal.create(journalFile, options)) {
+      journal.checkpoint(output, new Properties());
+      journal.completed(0, 1000L);
+    }
+    append(journalFile.toPath(), "checkpoint 1\nfile 12 ");
+
+    try (ProgressJournal journal = ProgressJournal.resume(journalFile, options)) {
+      assertEquals(0, journal.completedCount());
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsOtherOptions() throws Exception {
+    File journalFile = new File(tempFolder.getRoot(), "progress.journal");
+    Generator.GeneratorOptions options = new Generator.GeneratorOptions();
+    options.state = "Ohio";
+    options.minAge = 18;
+    ProgressJournal.create(journalFile, options).close();
+
+    Generator.GeneratorOptions resumed = new Generator.GeneratorOptions();
+    resumed.state = "Ohio";
+    ProgressJournal.resume(journalFile, resumed);
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsOtherConfiguration() throws Exception {
+    File journalFile = new File(tempFolder.getRoot(), "progress.journal");
+    Generator.GeneratorOptions options = new Generator.GeneratorOptions();
+    ProgressJournal.create(journalFile, options).close();
+
+    String populationSize = Config.get("generate.default_population");
+    Config.set("generate.default_population", "12345");
+    try {
+      ProgressJournal.resume(journalFile, options);
+    } finally {
+      Config.set("generate.default_population", populationSize);
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsOtherFiles() throws Exception {
+    File file = tempFolder.newFile();
+    append(file.toPath(), "not a journal\n");
+    ProgressJournal.resume(file, new Generator.GeneratorOptions());
+  }
+}
@@ -0,0 +1,139 @@
+package org.mitre.synthea.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.mitre.synthea.TestHelper;
+
+public class StateHistoryTest {
+
+  @Test
+  public void compactsStatesThatAreNotRetained() throws Exception {
+    Module module = TestHelper.getFixture("initial_to_terminal.json");
+    StateHistory history = new StateHistory();
+
+    State initial = module.getState("Initial").clone();
+    initial.entered = 1L;
+    initial.exited = 2L;
+    history.add(initial);
+    State terminal = module.getState("Terminal").clone();
+    history.add(0, terminal);
+
+    assertEquals(2, history.size());
+    assertSame(terminal, history.get(0));
+
+    State record = history.get(1);
+    assertNotSame(initial, record);
+    assertEquals("Initial", record.name);
+    assertEquals(1L, (long) record.entered);
+    assertEquals(2L, (long) record.exited);
+
+    List<State> retained = new ArrayList<State>();
+    StateHistory.retained(history).forEach(retained::add);
+    assertEquals(1, retained.size());
+    assertSame(terminal, retained.get(0));
+  }
+
+  @Test
+  public void hadPriorState() throws Exception {
+    Module module = TestHelper.getFixture("initial_to_terminal.json");
+    StateHistory history = new StateHistory();
+
+    State initial = module.getState("Initial").clone();
+    initial.entered = 1L;
+    initial.exited = 2L;
+    history.add(initial);
+    history.add(0, module.getState("Terminal").clone());
+
+    assertTrue(history.hadPriorState("Initial", null, null));
+    assertFalse(history.hadPriorState("Initial", null, 2L));
+    assertFalse(history.hadPriorState("Initial", "Terminal", null));
+    assertFalse(history.hadPriorState("Missing", null, null));
+  }
+
+  @Test
+  public void indexTracksMostRecentVisit() throws Exception {
+    Module module = TestHelper.getFixture("initial_to_terminal.json");
+    StateHistory history = new StateHistory();
+    assertNull(history.lastEntered("Initial"));
+
+    for (long time = 1; time <= 3; time++) {
+      State initial = module.getState("Initial").clone();
+      initial.entered = time;
+      initial.exited = time;
+      history.add(0, initial);
+    }
+    State terminal = module.getState("Terminal").clone();
+    terminal.entered = 4L;
+    history.add(0, terminal);
+
+    assertEquals(3L, (long) history.lastEntered("Initial"));
+    assertEquals(3L, (long) history.lastExited("Initial"));
+    assertEquals(4L, (long) history.lastEntered("Terminal"));
+    assertNull(history.lastExited("Terminal"));
+    assertTrue(history.hadPriorState("Initial", null, 2L));
+    assertFalse(history.hadPriorState("Initial", null, 3L));
+
+    // removing the most recent visit falls back to the previous one
+    history.remove(0);
+    history.remove(0);
+    assertEquals(2L, (long) history.lastEntered("Initial"));
+    assertFalse(history.hadPriorState("Terminal", null, null));
+  }
+
+  @Test
+  public void addAllKeepsOrder() throws Exception {
+    Module module = TestHelper.getFixture("initial_to_terminal.json");
+    StateHistory parent = new StateHistory();
+    State initial = module.getState("Initial").clone();
+    initial.entered = 1L;
+    initial.exited = 1L;
+    parent.add(initial);
+
+    StateHistory child = new StateHistory();
+    State childInitial = module.getState("Initial").clone();
+    childInitial.entered = 2L;
+    childInitial.exited = 2L;
+    child.add(childInitial);
+    child.add(0, module.getState("Terminal").clone());
+
+    parent.addAll(0, child);
+    assertEquals(3, parent.size());
+    assertEquals("Terminal", parent.get(0).name);
+    assertEquals(2L, (long) parent.get(1).entered);
+    assertEquals(1L, (long) parent.get(2).entered);
+  }
+
+  @Test
+  public void reusesInstancesPerHistory() throws Exception {
+    Module module = TestHelper.getFixture("initial_to_terminal.json");
+    StateHistory history = new StateHistory();
+    State initial = history.reuse(module, "Initial");
+    initial.entered = 1L;
+    initial.exited = 1L;
+    history.add(initial);
+
+    // another person's history, even for the same module, gets its own instance
+    assertNotSame(initial, new StateHistory().reuse(module, "Initial"));
+
+    // once the visit is a compact record, the next visit re-uses the instance
+    State again = history.reuse(module, "Initial");
+    assertSame(initial, again);
+    assertNull(again.entered);
+    assertNull(again.exited);
+    history.add(0, again);
+    assertEquals(1L, (long) history.get(1).exited);
+
+    // an instance that is still held in full by the history is never re-used
+    assertNotSame(again, history.reuse(module, "Initial"));
+    assertSame(again, history.get(0));
+  }
+}
@@ -150,6 +150,45 @@ public class StateTest {
     assertFalse(guard.process(person, time));
   }
 
+  @Test
+  public void guard_is_retested_when_inputs_change() throws Exception {
+    Module module = TestHelper.getFixture("guard.json");
+    State guard = module.getState("Gender_Guard").clone();
+    person.attributes.put(Person.GENDER, "M");
+    assertFalse(guard.process(person, time));
+    // the guard reads an attribute, so it must be processed every timestep
+    assertEquals(time, guard.wakeTime(time));
+    assertFalse(guard.process(person, time + 1));
+
+    person.attributes.put(Person.GENDER, "F");
+    assertTrue(guard.process(person, time + 2));
+  }
+
+  @Test
+  public void age_guard_wakes_on_next_birthday() throws Exception {
+    Module module = TestHelper.getFixture("example_module.json");
+    State guard = module.getState("Age_Guard").clone();
+    int age = person.ageInYears(time);
+    assertFalse(guard.process(person, time));
+
+    long wakeTime = guard.wakeTime(time);
+    assertTrue(wakeTime > time);
+    assertEquals(age, person.ageInYears(wakeTime - 1));
+    assertEquals(age + 1, person.ageInYears(wakeTime + Utilities.convertTime("days", 1)));
+  }
+
+  @Test
+  public void guard_forgets_blocked_inputs_when_reused() throws Exception {
+    Module module = TestHelper.getFixture("example_module.json");
+    State guard = module.getState("Age_Guard").clone();
+    assertFalse(guard.process(person, time));
+    assertTrue(guard.wakeTime(time) > time);
+
+    // a re-used instance is tested again, as if it were a new clone
+    guard.reset();
+    assertEquals(time, guard.wakeTime(time));
+  }
+
   @Test
   public void counter() throws Exception {
     Module module = TestHelper.getFixture("counter.json");
@@ -324,6 +363,19 @@ public class StateTest {
     assertTrue(delay.process(person, time + 3L * 1000));
   }
 
+  @Test
+  public void module_wakes_when_delay_expires() throws Exception {
+    Module module = TestHelper.getFixture("delay.json");
+    assertEquals(time, module.wakeTime(person, time));
+
+    // the person is now waiting in the first delay
+    module.process(person, time);
+    assertEquals(time + 2L * 1000, module.wakeTime(person, time));
+
+    module.process(person, time + 2L * 1000);
+    assertEquals(time + 2L * 1000 + 2L * 1000 * 60, module.wakeTime(person, time + 2L * 1000));
+  }
+
   @Test
   public void delay_passes_after_exact_time() throws Exception {
     Module module = TestHelper.getFixture("delay.json");
@@ -0,0 +1,124 @@
+package org.mitre.synthea.export;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mitre.synthea.helpers.SimpleCSV;
+
+public class ShardMergerTest {
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private static void write(Path shard, String file, String contents) throws IOException {
+    Path path = shard.resolve(file);
+    Files.createDirectories(path.getParent());
+    Files.write(path, contents.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String read(Path output, String file) throws IOException {
+    return new String(Files.readAllBytes(output.resolve(file)), StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void mergesShards() throws Exception {
+    Path shard0 = tempFolder.newFolder("shard0").toPath();
+    Path shard1 = tempFolder.newFolder("shard1").toPath();
+    Path output = tempFolder.getRoot().toPath().resolve("output");
+
+    write(shard0, "csv/patients.csv", "Id,NAME\na,Alice\n");
+    write(shard1, "csv/patients.csv", "Id,NAME\nb,Bob\n");
+    write(shard0, "csv/providers.csv", "Id,NAME,ENCOUNTERS,PROCEDURES\n"
+        + "p1,Dr One,3,1\n");
+    write(shard1, "csv/providers.csv", "Id,NAME,ENCOUNTERS,PROCEDURES\n"
+        + "p1,Dr One,2,0\np2,Dr Two,5,4\n");
+    write(shard0, "fhir/Patient.ndjson", "{\"id\":\"a\"}\n");
+    write(shard1, "fhir/Patient.ndjson", "{\"id\":\"b\"}\n");
+    write(shard0, "fhir/Group.ndjson", "{\"resourceType\":\"Group\",\"id\":\"g\",\"quantity\":1,"
+        + "\"member\":[{\"entity\":{\"reference\":\"Patient/a\"}}]}\n");
+    write(shard1, "fhir/Group.ndjson", "{\"resourceType\":\"Group\",\"id\":\"g\",\"quantity\":1,"
+        + "\"member\":[{\"entity\":{\"reference\":\"Patient/b\"}}]}\n");
+    String url = "http://synthetichealth.github.io/synthea/utilization-encounters-extension";
+    write(shard0, "fhir/Organization.1000.ndjson", "{\"resourceType\":\"Organization\","
+        + "\"id\":\"o\",\"extension\":[{\"url\":\"" + url + "\",\"valueInteger\":4}]}\n");
+    write(shard1, "fhir/Organization.1000.ndjson", "{\"resourceType\":\"Organization\","
+        + "\"id\":\"o\",\"extension\":[{\"url\":\"" + url + "\",\"valueInteger\":6}]}\n");
+    write(shard0, "bfd/end_state.properties", "exporter.bfd.bene_id_start=-100\n"
+        + "exporter.bfd.mbi_start=1S00-E00-AA09\n");
+    write(shard1, "bfd/end_state.properties", "exporter.bfd.bene_id_start=-200\n"
+        + "exporter.bfd.mbi_start=1S00-E00-AA05\n");
+    write(shard0, "fhir/a.json", "{}");
+    write(shard1, "fhir/b.json", "{}");
+
+    ShardMerger.merge(output, Arrays.asList(shard0, shard1));
+
+    assertEquals("Id,NAME\na,Alice\nb,Bob\n", read(output, "csv/patients.csv"));
+    assertEquals("{\"id\":\"a\"}\n{\"id\":\"b\"}\n", read(output, "fhir/Patient.ndjson"));
+    assertEquals("{}", read(output, "fhir/b.json"));
+
+    List<LinkedHashMap<String, String>> providers =
+        SimpleCSV.parse(read(output, "csv/providers.csv"));
+    assertEquals(2, providers.size());
+    assertEquals("5", providers.get(0).get("ENCOUNTERS"));
+    assertEquals("1", providers.get(0).get("PROCEDURES"));
+    assertEquals("Dr Two", providers.get(1).get("NAME"));
+
+    JsonObject group = JsonParser.parseString(read(output, "fhir/Group.ndjson").trim())
+        .getAsJsonObject();
+    assertEquals(2, group.get("quantity").getAsInt());
+    assertEquals(2, group.getAsJsonArray("member").size());
+
+    JsonObject organization = JsonParser.parseString(
+        read(output, "fhir/Organization.1000.ndjson").trim()).getAsJsonObject();
+    assertEquals(10, organization.getAsJsonArray("extension").get(0).getAsJsonObject()
+        .get("valueInteger").getAsInt());
+
+    Properties endState = new Properties();
+    endState.load(Files.newBufferedReader(output.resolve("bfd/end_state.properties")));
+    assertEquals("-200", endState.getProperty("exporter.bfd.bene_id_start"));
+    assertEquals("1S00-E00-AA09", endState.getProperty("exporter.bfd.mbi_start"));
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsDifferentStopTimes() throws Exception {
+    Path shard0 = tempFolder.newFolder("shard0").toPath();
+    Path shard1 = tempFolder.newFolder("shard1").toPath();
+    Path output = tempFolder.getRoot().toPath().resolve("output");
+    write(shard0, "fhir/hospitalInformation1000.json", "{\"resourceType\":\"Bundle\"}");
+    write(shard1, "fhir/hospitalInformation1001.json", "{\"resourceType\":\"Bundle\"}");
+
+    ShardMerger.merge(output, Arrays.asList(shard0, shard1));
+  }
+
+  @Test
+  public void weightsPayerQualityOfLife() throws Exception {
+    Path shard0 = tempFolder.newFolder("shard0").toPath();
+    Path shard1 = tempFolder.newFolder("shard1").toPath();
+    Path output = tempFolder.getRoot().toPath().resolve("output");
+    write(shard0, "csv/payers.csv", "Id,NAME,REVENUE,UNIQUE_CUSTOMERS,QOLS_AVG,MEMBER_MONTHS\n"
+        + "x,Payer,10.50,1,1.0,12\n");
+    write(shard1, "csv/payers.csv", "Id,NAME,REVENUE,UNIQUE_CUSTOMERS,QOLS_AVG,MEMBER_MONTHS\n"
+        + "x,Payer,1.25,3,0.5,36\n");
+
+    ShardMerger.merge(output, Arrays.asList(shard0, shard1));
+
+    LinkedHashMap<String, String> payer = SimpleCSV.parse(read(output, "csv/payers.csv")).get(0);
+    assertEquals("11.75", payer.get("REVENUE"));
+    assertEquals("4", payer.get("UNIQUE_CUSTOMERS"));
+    assertEquals("48", payer.get("MEMBER_MONTHS"));
+    assertEquals(0.625, Double.parseDouble(payer.get("QOLS_AVG")), 0.0001);
+  }
+}
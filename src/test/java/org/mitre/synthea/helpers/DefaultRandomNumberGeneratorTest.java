@@ -0,0 +1,114 @@
+package org.mitre.synthea.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class DefaultRandomNumberGeneratorTest {
+
+  @Test
+  public void derivedSeedsMatchSplitMix64() {
+    // the first outputs of SplitMix64 seeded with zero
+    assertEquals(0xE220A8397B1DCDAFL, DefaultRandomNumberGenerator.deriveSeed(0L, 0L));
+    assertEquals(0x6E789E6AA1B965F4L, DefaultRandomNumberGenerator.deriveSeed(0L, 1L));
+    assertEquals(0x06C45D188009454FL, DefaultRandomNumberGenerator.deriveSeed(0L, 2L));
+  }
+
+  @Test
+  public void derivedSeedsAreDistinct() {
+    Set<Long> seeds = new HashSet<Long>();
+    for (long seed = 0; seed < 10; seed++) {
+      for (long index = 0; index < 1000; index++) {
+        seeds.add(DefaultRandomNumberGenerator.deriveSeed(seed * 1000003L, index));
+      }
+    }
+    assertEquals(10000, seeds.size());
+  }
+
+  @Test
+  public void legacyEngineMatchesJavaRandom() {
+    DefaultRandomNumberGenerator generator =
+        new DefaultRandomNumberGenerator(42L, RandomEngine.LEGACY);
+    Random random = new Random(42L);
+    for (int i = 0; i < 100; i++) {
+      assertEquals(random.nextDouble(), generator.rand(), 0.0);
+      assertEquals(random.nextGaussian(), generator.randGaussian(), 0.0);
+      assertEquals(random.nextInt(17), generator.randInt(17));
+      assertEquals(random.nextLong(), generator.randLong());
+    }
+    assertEquals(400, generator.getCount());
+  }
+
+  @Test
+  public void engineIsSelectedByConfig() {
+    String engine = Config.get("generate.rng_engine", "legacy");
+    try {
+      Config.set("generate.rng_engine", "xoshiro256**");
+      DefaultRandomNumberGenerator generator = new DefaultRandomNumberGenerator(42L);
+      DefaultRandomNumberGenerator expected =
+          new DefaultRandomNumberGenerator(42L, RandomEngine.XOSHIRO256);
+      assertEquals(expected.randLong(), generator.randLong());
+    } finally {
+      Config.set("generate.rng_engine", engine);
+    }
+    assertEquals(RandomEngine.SPLITMIX64, RandomEngine.fromString("SplitMix64"));
+    assertEquals(RandomEngine.LEGACY, RandomEngine.fromString(null));
+  }
+
+  @Test
+  public void enginesProduceUniformAndNormalNumbers() {
+    for (RandomEngine engine : RandomEngine.values()) {
+      DefaultRandomNumberGenerator generator = new DefaultRandomNumberGenerator(7L, engine);
+      int samples = 100000;
+      double sum = 0;
+      double gaussianSum = 0;
+      double gaussianSquares = 0;
+      int[] counts = new int[10];
+      for (int i = 0; i < samples; i++) {
+        double value = generator.rand();
+        assertTrue(value >= 0.0 && value < 1.0);
+        sum += value;
+        counts[generator.randInt(10)]++;
+        double gaussian = generator.randGaussian();
+        gaussianSum += gaussian;
+        gaussianSquares += gaussian * gaussian;
+      }
+      assertEquals(engine.toString(), 0.5, sum / samples, 0.01);
+      assertEquals(engine.toString(), 0.0, gaussianSum / samples, 0.02);
+      assertEquals(engine.toString(), 1.0, gaussianSquares / samples, 0.02);
+      for (int count : counts) {
+        assertEquals(engine.toString(), samples / 10, count, samples / 100);
+      }
+    }
+  }
+
+  @Test
+  public void enginesContinueAfterSerialization() throws Exception {
+    for (RandomEngine engine : RandomEngine.values()) {
+      DefaultRandomNumberGenerator generator = new DefaultRandomNumberGenerator(11L, engine);
+      generator.randGaussian();
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+        out.writeObject(generator);
+      }
+      DefaultRandomNumberGenerator copy;
+      try (ObjectInputStream in =
+          new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+        copy = (DefaultRandomNumberGenerator) in.readObject();
+      }
+      for (int i = 0; i < 10; i++) {
+        assertEquals(generator.randGaussian(), copy.randGaussian(), 0.0);
+        assertEquals(generator.randUUID(), copy.randUUID());
+      }
+    }
+  }
+}
@@ -2,12 +2,17 @@ package org.mitre.synthea.helpers;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 
 import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.Test;
 import org.mitre.synthea.world.agents.Person;
@@ -39,6 +44,38 @@ public class ExpressionProcessorTest {
     assertEquals(20L, result.longValue());
   }
 
+  @Test
+  public void testProcessorsAreShared() throws Exception {
+    ExpressionProcessor first = ExpressionProcessor.shared("#{age_attr} * 2");
+    assertSame(first, ExpressionProcessor.shared(" #{age_attr} * 2\n"));
+
+    Map<String,String> typeMap = new HashMap<String,String>();
+    typeMap.put("age_attr", "Decimal");
+    assertNotSame(first, ExpressionProcessor.shared("#{age_attr} * 2", typeMap));
+    assertEquals(1, typeMap.size());
+
+    // every thread gets the same processor, and can evaluate it at the same time
+    ExecutorService threadPool = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<Number>> results = new ArrayList<Future<Number>>();
+      for (int i = 0; i < 100; i++) {
+        final int age = i;
+        results.add(threadPool.submit(() -> {
+          ExpressionProcessor processor = ExpressionProcessor.shared("#{age_attr} * 2");
+          assertSame(first, processor);
+          Person p = new Person(age);
+          p.attributes.put("age_attr", age);
+          return (Number) processor.evaluate(p, 0L);
+        }));
+      }
+      for (int i = 0; i < results.size(); i++) {
+        assertEquals(2L * i, results.get(i).get().longValue());
+      }
+    } finally {
+      threadPool.shutdown();
+    }
+  }
+
   @Test
   public void testInstance() {
     Map<String,String> typeMap = new HashMap<String,String>();
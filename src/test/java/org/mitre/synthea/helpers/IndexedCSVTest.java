@@ -0,0 +1,112 @@
+package org.mitre.synthea.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class IndexedCSVTest {
+  private static final String TEST_CSV = "ID,NAME,STATE\n0,Alice,MA\n1,Bob,CT\n"
+      + "2,Charles,Massachusetts\n3,Dana,ma\n4,Eve,NY\n";
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private File cache;
+  private String csv;
+
+  /**
+   * Write the test CSV and enable the reference cache in a temporary folder.
+   */
+  @Before
+  public void setup() throws Exception {
+    cache = tempFolder.newFolder();
+    File file = tempFolder.newFile("people.csv");
+    Files.write(file.toPath(), TEST_CSV.getBytes(StandardCharsets.UTF_8));
+    csv = file.getAbsolutePath();
+    Config.set("generate.reference_cache", "true");
+    Config.set("generate.reference_cache.folder", cache.getAbsolutePath());
+  }
+
+  @After
+  public void reset() {
+    Config.set("generate.reference_cache", "false");
+  }
+
+  private static List<String> names(Iterator<LinkedHashMap<String, String>> rows) {
+    List<String> names = new ArrayList<String>();
+    rows.forEachRemaining(row -> names.add(row.get("NAME")));
+    return names;
+  }
+
+  @Test
+  public void testIndexedRows() throws Exception {
+    List<String> expected = names(IndexedCSV.parse(csv, "STATE", "MA", "Massachusetts"));
+    assertEquals(1, cache.listFiles().length);
+
+    // every lookup after the first reads the binary file
+    assertEquals(expected, names(IndexedCSV.parse(csv, "STATE", "MA", "Massachusetts")));
+    assertEquals(5, names(IndexedCSV.parse(csv, "STATE")).size());
+    assertEquals(5, names(IndexedCSV.parse(csv, "STATE", (String) null)).size());
+    assertTrue(names(IndexedCSV.parse(csv, "STATE", "TX")).isEmpty());
+    assertEquals(1, cache.listFiles().length);
+
+    // the same rows are read without the cache
+    Config.set("generate.reference_cache", "false");
+    assertEquals(expected, names(IndexedCSV.parse(csv, "STATE", "MA", "Massachusetts")));
+  }
+
+  @Test
+  public void testRowsMatchSimpleCSV() throws Exception {
+    List<LinkedHashMap<String, String>> expected = SimpleCSV.parse(TEST_CSV);
+    List<LinkedHashMap<String, String>> actual = new ArrayList<LinkedHashMap<String, String>>();
+    IndexedCSV.parse(csv, "STATE").forEachRemaining(actual::add);
+    assertEquals(expected, actual);
+    assertEquals(new ArrayList<String>(expected.get(0).keySet()),
+        new ArrayList<String>(actual.get(0).keySet()));
+    assertEquals("[Alice, Charles, Dana]",
+        names(IndexedCSV.parse(csv, "STATE", "ma", "MASSACHUSETTS")).toString());
+  }
+
+  @Test
+  public void testRebuildWhenChanged() throws Exception {
+    assertEquals("[Alice, Dana]", names(IndexedCSV.parse(csv, "STATE", "MA")).toString());
+
+    // a changed CSV no longer matches the checksum of the cache file
+    Files.write(new File(csv).toPath(),
+        (TEST_CSV + "5,Frank,MA\n").getBytes(StandardCharsets.UTF_8));
+    assertEquals("[Alice, Dana, Frank]", names(IndexedCSV.parse(csv, "STATE", "MA")).toString());
+
+    // an unreadable cache file is replaced
+    File file = cache.listFiles()[0];
+    Files.write(file.toPath(), new byte[] {1, 2, 3});
+    Files.write(new File(csv).toPath(), TEST_CSV.getBytes(StandardCharsets.UTF_8));
+    assertEquals("[Alice, Dana]", names(IndexedCSV.parse(csv, "STATE", "MA")).toString());
+    assertTrue(file.length() > 3);
+  }
+
+  @Test
+  public void testProviders() throws Exception {
+    String hospitals = Config.get("generate.providers.hospitals.default_file");
+    List<LinkedHashMap<String, String>> cached = new ArrayList<LinkedHashMap<String, String>>();
+    IndexedCSV.parse(hospitals, "state", "Massachusetts", "MA").forEachRemaining(cached::add);
+    assertTrue(cached.size() > 0);
+
+    Config.set("generate.reference_cache", "false");
+    List<LinkedHashMap<String, String>> parsed = new ArrayList<LinkedHashMap<String, String>>();
+    IndexedCSV.parse(hospitals, "state", "Massachusetts", "MA").forEachRemaining(parsed::add);
+    assertEquals(parsed, cached);
+  }
+}
@@ -0,0 +1,67 @@
+package org.mitre.synthea.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class RunMetricsTest {
+  @After
+  public void cleanup() {
+    RunMetrics.reset();
+  }
+
+  @Test
+  public void summarizesTimers() {
+    RunMetrics.reset();
+    RunMetrics.Timer timer = RunMetrics.timer("simulate");
+    for (int i = 0; i < 99; i++) {
+      timer.add(1_000_000L);
+    }
+    timer.add(3_000_000_000L);
+
+    Map<String, Double> summary = RunMetrics.summary();
+    assertEquals(100.0, summary.get("simulate.count"), 0.0);
+    assertEquals(3000.0, summary.get("simulate.max_ms"), 0.0);
+    assertEquals(30.99, summary.get("simulate.mean_ms"), 0.001);
+    // percentiles are the upper bound of their bucket, 2^20 ns
+    assertEquals(1.048576, summary.get("simulate.p50_ms"), 0.0);
+    assertEquals(1.048576, summary.get("simulate.p99_ms"), 0.0);
+    assertTrue(summary.containsKey("heap_used_bytes"));
+    assertTrue(summary.containsKey("gc_collections"));
+  }
+
+  @Test
+  public void heapPeakIsAWatermark() {
+    RunMetrics.reset();
+    byte[] block = new byte[64 * 1024 * 1024];
+    block[block.length - 1] = 1;
+    block = null;
+    System.gc();
+
+    // the block is no longer in use, but the peak was never read while it was
+    Map<String, Number> values = RunMetrics.values();
+    long peak = values.get("heap_used_peak_bytes").longValue();
+    assertTrue(peak >= 64L * 1024 * 1024);
+    assertTrue(peak >= values.get("heap_used_bytes").longValue());
+  }
+
+  @Test
+  public void writesPrometheusText() {
+    RunMetrics.reset();
+    RunMetrics.gauge("persons_completed", () -> 42);
+    RunMetrics.timer("export.fhir").add(2048L);
+
+    String text = RunMetrics.toPrometheus();
+    assertTrue(text.contains("# TYPE synthea_persons_completed gauge\n"
+        + "synthea_persons_completed 42\n"));
+    assertTrue(text.contains("# TYPE synthea_export_fhir_seconds histogram\n"));
+    assertTrue(text.contains("synthea_export_fhir_seconds_bucket{le=\"1.024E-6\"} 0\n"));
+    assertTrue(text.contains("synthea_export_fhir_seconds_bucket{le=\"2.048E-6\"} 1\n"));
+    assertTrue(text.contains("synthea_export_fhir_seconds_bucket{le=\"+Inf\"} 1\n"));
+    assertTrue(text.contains("synthea_export_fhir_seconds_count 1\n"));
+  }
+}
@@ -1,6 +1,9 @@
 package org.mitre.synthea.helpers;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -19,6 +22,7 @@ import org.mitre.synthea.world.agents.Provider;
 import org.mitre.synthea.world.agents.behaviors.planeligibility.PlanEligibilityFinder;
 import org.mitre.synthea.world.concepts.ClinicianSpecialty;
 import org.mitre.synthea.world.concepts.HealthRecord.EncounterType;
+import org.powermock.reflect.Whitebox;
 
 public class TransitionMetricsTest {
 
@@ -97,9 +101,102 @@ public class TransitionMetricsTest {
     m = TransitionMetrics.getMetric(example.name, "Terminal");
     assertEquals(3, m.entered.get());
     assertEquals(3, m.current.get());
+
+    // everyone waited in Age_Guard
+    assertTrue(TransitionMetrics.getGuardsEvaluated() > 0);
     TransitionMetrics.enabled = false;
   }
 
+  @Test
+  public void testProfile() throws Exception {
+    TransitionMetrics.profiling = true;
+    TransitionMetrics.sampleRate = 1;
+    TransitionMetrics.clear();
+    try {
+      Provider mockProvider = TestHelper.buildMockProvider();
+      Person person = new Person(0L);
+      person.attributes.put(Person.RACE, "black");
+      person.attributes.put(Person.ETHNICITY, "nonhispanic");
+      person.attributes.put(Person.GENDER, "F");
+      person.setProvider(EncounterType.WELLNESS, mockProvider);
+      person.setProvider(EncounterType.AMBULATORY, mockProvider);
+      long time = System.currentTimeMillis();
+      LifecycleModule.birth(person, time);
+      PayerManager.loadNoInsurance();
+      person.coverage.setPlanToNoInsurance(time);
+
+      run(person, TestHelper.getFixture("example_module.json"), time);
+
+      // gender != M transitions immediately from Initial to Terminal
+      assertEquals(1, TransitionMetrics.getStateProfile("Initial").samples.sum());
+      assertEquals(1, TransitionMetrics.getStateProfile("Terminal").samples.sum());
+
+      assertTrue(TransitionMetrics.shouldProfile());
+      long start = System.nanoTime();
+      TransitionMetrics.profileModule("Example", start, TransitionMetrics.allocatedBytes());
+      TransitionMetrics.Profile profile = TransitionMetrics.getModuleProfile("Example");
+      assertEquals(1, profile.samples.sum());
+      assertTrue(profile.nanos.sum() >= 0);
+
+      TransitionMetrics.profiling = false;
+      assertFalse(TransitionMetrics.shouldProfile());
+    } finally {
+      TransitionMetrics.profiling = false;
+      TransitionMetrics.sampleRate = 100;
+      TransitionMetrics.clear();
+    }
+  }
+
+  @Test
+  public void testSubmoduleProfile() throws Exception {
+    Map<String, Module.ModuleSupplier> modules =
+        Whitebox.<Map<String, Module.ModuleSupplier>>getInternalState(Module.class, "modules");
+    // load the test submodules so they can be called by the CallSubmodule states
+    Module encounterSubmodule = TestHelper.getFixture("submodules/encounter_submodule.json");
+    encounterSubmodule.submodule = true;
+    Module medicationSubmodule = TestHelper.getFixture("submodules/medication_submodule.json");
+    medicationSubmodule.submodule = true;
+    modules.put("submodules/encounter_submodule", new Module.ModuleSupplier(encounterSubmodule));
+    modules.put("submodules/medication_submodule",
+        new Module.ModuleSupplier(medicationSubmodule));
+    TransitionMetrics.profiling = true;
+    TransitionMetrics.sampleRate = 1;
+    TransitionMetrics.clear();
+    try {
+      Provider mockProvider = TestHelper.buildMockProvider();
+      Person person = new Person(0L);
+      person.attributes.put(Person.RACE, "black");
+      person.attributes.put(Person.ETHNICITY, "nonhispanic");
+      person.attributes.put(Person.GENDER, "F");
+      person.setProvider(EncounterType.WELLNESS, mockProvider);
+      person.setProvider(EncounterType.AMBULATORY, mockProvider);
+      long time = System.currentTimeMillis();
+      LifecycleModule.birth(person, time);
+      PayerManager.loadNoInsurance();
+      person.coverage.setPlanToNoInsurance(time);
+      person.coverage.setPlanToNoInsurance(time + Utilities.convertTime("years", 20));
+
+      Module module = TestHelper.getFixture("recursively_calls_submodules.json");
+      while (!module.process(person, time)) {
+        time += Utilities.convertTime("years", 1);
+      }
+
+      // each submodule is profiled by its path, and the states calling them are not profiled
+      assertTrue(TransitionMetrics.getModuleProfile("submodules/encounter_submodule")
+          .samples.sum() >= 1);
+      assertTrue(TransitionMetrics.getModuleProfile("submodules/medication_submodule")
+          .samples.sum() >= 1);
+      assertNull(TransitionMetrics.getStateProfile("CallSubmodule"));
+      assertTrue(TransitionMetrics.getStateProfile("Initial").samples.sum() >= 3);
+    } finally {
+      TransitionMetrics.profiling = false;
+      TransitionMetrics.sampleRate = 100;
+      TransitionMetrics.clear();
+      modules.remove("submodules/encounter_submodule");
+      modules.remove("submodules/medication_submodule");
+    }
+  }
+
   private long run(Person person, Module singleModule, long start) {
     long time = start;
     // hack the wellness encounter just in case
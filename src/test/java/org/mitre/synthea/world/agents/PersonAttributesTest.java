@@ -0,0 +1,153 @@
+package org.mitre.synthea.world.agents;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class PersonAttributesTest {
+
+  @Test
+  public void behavesLikeAMap() {
+    PersonAttributes attributes = new PersonAttributes();
+    assertTrue(attributes.isEmpty());
+    assertNull(attributes.put("person_attributes_test_string", "value"));
+    assertNull(attributes.put("person_attributes_test_int", 3));
+    assertNull(attributes.put("person_attributes_test_long", 4L));
+    assertNull(attributes.put("person_attributes_test_double", 5.5));
+    assertNull(attributes.put("person_attributes_test_boolean", true));
+    assertEquals(5, attributes.size());
+
+    // boxed values keep their type
+    assertEquals("value", attributes.get("person_attributes_test_string"));
+    assertEquals(Integer.valueOf(3), attributes.get("person_attributes_test_int"));
+    assertEquals(Long.valueOf(4L), attributes.get("person_attributes_test_long"));
+    assertEquals(Double.valueOf(5.5), attributes.get("person_attributes_test_double"));
+    assertEquals(Boolean.TRUE, attributes.get("person_attributes_test_boolean"));
+    assertNull(attributes.get("person_attributes_test_missing"));
+    assertFalse(attributes.containsKey("person_attributes_test_missing"));
+
+    Map<String, Object> expected = new HashMap<String, Object>();
+    expected.put("person_attributes_test_string", "value");
+    expected.put("person_attributes_test_int", 3);
+    expected.put("person_attributes_test_long", 4L);
+    expected.put("person_attributes_test_double", 5.5);
+    expected.put("person_attributes_test_boolean", true);
+    assertEquals(expected, attributes);
+
+    assertEquals(Integer.valueOf(3), attributes.remove("person_attributes_test_int"));
+    assertFalse(attributes.containsKey("person_attributes_test_int"));
+    assertEquals(4, attributes.size());
+  }
+
+  @Test
+  public void primitiveAccessors() {
+    PersonAttributes attributes = new PersonAttributes();
+    PersonAttributes.Key count = PersonAttributes.intern("person_attributes_test_count");
+    PersonAttributes.Key flag = PersonAttributes.intern("person_attributes_test_flag");
+    PersonAttributes.Key ratio = PersonAttributes.intern("person_attributes_test_ratio");
+    assertSame(count, PersonAttributes.intern("person_attributes_test_count"));
+
+    assertEquals(-1L, attributes.getLong(count, -1L));
+    attributes.putLong(count, 42L);
+    attributes.putBoolean(flag, true);
+    attributes.putDouble(ratio, 0.25);
+    assertEquals(42L, attributes.getLong(count, -1L));
+    assertEquals(42.0, attributes.getDouble(count, -1.0), 0.0);
+    assertTrue(attributes.getBoolean(flag, false));
+    assertEquals(0.25, attributes.getDouble(ratio, -1.0), 0.0);
+
+    // and are visible through the Map view
+    assertEquals(Long.valueOf(42L), attributes.get("person_attributes_test_count"));
+    assertEquals(Boolean.TRUE, attributes.get("person_attributes_test_flag"));
+    assertEquals(Double.valueOf(0.25), attributes.get("person_attributes_test_ratio"));
+
+    attributes.put("person_attributes_test_count", 7);
+    assertEquals(7L, attributes.getLong(count, -1L));
+  }
+
+  @Test
+  public void iteratorSupportsRemoveAndUpdates() {
+    PersonAttributes attributes = new PersonAttributes();
+    attributes.put("person_attributes_test_a", 1);
+    attributes.put("person_attributes_test_b", 2);
+    attributes.put("person_attributes_test_c", 3);
+
+    // updating values while iterating, as ConcurrentHashMap allowed
+    attributes.forEach((key, value) -> attributes.put(key, ((Integer) value) * 10));
+    assertEquals(20, attributes.get("person_attributes_test_b"));
+
+    Iterator<Map.Entry<String, Object>> iterator = attributes.entrySet().iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next().getKey().equals("person_attributes_test_b")) {
+        iterator.remove();
+      }
+    }
+    assertEquals(2, attributes.size());
+    assertFalse(attributes.containsKey("person_attributes_test_b"));
+  }
+
+  @Test(expected = NullPointerException.class)
+  public void rejectsNullValues() {
+    new PersonAttributes().put("person_attributes_test_null", null);
+  }
+
+  @Test
+  public void readingDoesNotRegister() {
+    PersonAttributes attributes = new PersonAttributes();
+    int registered = PersonAttributes.registered();
+    assertNull(attributes.get("person_attributes_test_unread"));
+    assertFalse(attributes.containsKey("person_attributes_test_unread"));
+    assertNull(attributes.remove("person_attributes_test_unread"));
+    assertEquals(registered, PersonAttributes.registered());
+  }
+
+  @Test
+  public void growsOnDemand() {
+    PersonAttributes.Key last = null;
+    for (int i = 0; i < 100; i++) {
+      last = PersonAttributes.intern("person_attributes_test_grow_" + i);
+    }
+    PersonAttributes attributes = new PersonAttributes();
+    int initial = attributes.capacity();
+    assertTrue(initial < 100);
+
+    attributes.putLong(last, 7L);
+    assertTrue(attributes.capacity() > initial);
+    assertEquals(7L, attributes.getLong(last, 0L));
+    assertNull(attributes.get("person_attributes_test_grow_0"));
+    assertEquals(1, attributes.size());
+    assertEquals("person_attributes_test_grow_99",
+        attributes.entrySet().iterator().next().getKey());
+  }
+
+  @Test
+  public void serializesByName() throws Exception {
+    PersonAttributes attributes = new PersonAttributes();
+    attributes.put("person_attributes_test_name", "Jane");
+    attributes.putLong(PersonAttributes.intern("person_attributes_test_time"), 123L);
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(attributes);
+    }
+    PersonAttributes copy;
+    try (ObjectInputStream in =
+        new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+      copy = (PersonAttributes) in.readObject();
+    }
+    assertEquals(attributes, copy);
+    assertEquals(123L, copy.getLong(PersonAttributes.intern("person_attributes_test_time"), 0L));
+  }
+}
@@ -1,6 +1,7 @@
 package org.mitre.synthea.world.agents;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mitre.synthea.TestHelper.timestamp;
 
@@ -16,6 +17,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -172,6 +174,24 @@ public class PersonTest {
     assertEquals(expectedAge, person.ageInMonths(now));
   }
 
+  @Test
+  public void testThreadConfinedPerson() {
+    Config.set("generate.thread_confined_persons", "true");
+    try {
+      Generator.GeneratorOptions opts = new Generator.GeneratorOptions();
+      opts.population = 1;
+      Generator generator = new Generator(opts);
+      Person confined = generator.generatePerson(0, 1L);
+      assertFalse(confined.vitalSigns instanceof ConcurrentHashMap);
+      assertFalse(confined.symptoms instanceof ConcurrentHashMap);
+      assertFalse(confined.chronicMedications instanceof ConcurrentHashMap);
+      assertTrue(confined.attributes.containsKey(Person.BIRTHDATE));
+      assertFalse(confined.vitalSigns.isEmpty());
+    } finally {
+      Config.set("generate.thread_confined_persons", "false");
+    }
+  }
+
   @Test(expected = IllegalArgumentException.class)
   public void testVitalSignNaN() {
     person.setVitalSign(VitalSign.HEIGHT, Double.NaN);